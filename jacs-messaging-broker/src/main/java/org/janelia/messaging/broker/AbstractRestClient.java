@@ -1,28 +1,24 @@
 package org.janelia.messaging.broker;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
-import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
-import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
-
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.glassfish.jersey.apache.connector.ApacheClientProperties;
-import org.glassfish.jersey.client.ClientConfig;
-import org.glassfish.jersey.client.ClientProperties;
-import org.glassfish.jersey.media.multipart.MultiPartFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,36 +34,24 @@ public class AbstractRestClient {
     protected final String serverURL;
     private final String apiKey;
     protected final WebTarget serverTarget;
+    private final Semaphore inFlightRequests;
+    // bulk endpoints, as "METHOD path", mapped to whether the server supports them
+    private final ConcurrentMap<String, Boolean> supportedBulkEndpoints = new ConcurrentHashMap<>();
 
     protected AbstractRestClient(String serverURL, String apiKey) {
+        this(serverURL, apiKey, new RestClientConfig());
+    }
+
+    /**
+     * The underlying HTTP client is shared by all REST clients created in this process for the same server and
+     * API key so the restClientConfig only takes effect for the first of them.
+     */
+    protected AbstractRestClient(String serverURL, String apiKey, RestClientConfig restClientConfig) {
         this.serverURL = StringUtils.appendIfMissing(serverURL, "/");
         this.apiKey = apiKey;
-        JacksonJsonProvider provider = new JacksonJaxbJsonProvider();
-        ObjectMapper mapper = provider.locateMapper(Object.class, MediaType.APPLICATION_JSON_TYPE);
-        mapper.addHandler(new DeserializationProblemHandler() {
-            @Override
-            public boolean handleUnknownProperty(DeserializationContext ctxt, JsonParser jp, JsonDeserializer<?> deserializer, Object beanOrClass, String propertyName) {
-                LOG.error("Failed to deserialize property which does not exist in model: {}.{}", beanOrClass.getClass().getName(), propertyName);
-                return true;
-            }
-        });
-
-        ClientConfig clientConfig = new ClientConfig();
-        // values are in milliseconds
-        clientConfig.property(ClientProperties.READ_TIMEOUT, 2000);
-        clientConfig.property(ClientProperties.CONNECT_TIMEOUT, 5000);
-
-        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
-        connectionManager.setMaxTotal(100);
-        connectionManager.setDefaultMaxPerRoute(100);
-
-        clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
-
-        Client client = ClientBuilder.newClient();
-        client.register(provider);
-        client.register(MultiPartFeature.class);
-
-        serverTarget = client.target(serverURL);
+        RestClientRegistry.SharedClient sharedClient = RestClientRegistry.getInstance().getClient(serverURL, apiKey, restClientConfig);
+        this.serverTarget = sharedClient.serverTarget;
+        this.inFlightRequests = sharedClient.inFlightRequests;
     }
 
     protected Invocation.Builder createRequestWithCredentials(WebTarget requestTarget) {
@@ -81,6 +65,151 @@ public class AbstractRestClient {
         }
     }
 
+    /**
+     * Invoke a request asynchronously, e.g. <code>() -> target.request().rx().get()</code>. If the maximum number of
+     * requests are already in flight the caller blocks until one of them completes. The returned future fails with
+     * a {@link WebApplicationException} if the server responds with an error, otherwise it completes with
+     * the value extracted by the responseMapper.
+     *
+     * @param endpointURI endpoint URI used for reporting
+     * @param invocation issues the request using an rx invoker
+     * @param responseMapper extracts the result from a successful response
+     */
+    protected <T> CompletableFuture<T> invokeAsync(URI endpointURI,
+                                                   Supplier<CompletionStage<Response>> invocation,
+                                                   Function<Response, T> responseMapper) {
+        try {
+            inFlightRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<T> interrupted = new CompletableFuture<>();
+            interrupted.completeExceptionally(e);
+            return interrupted;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletionStage<Response> responseStage;
+        try {
+            responseStage = invocation.get();
+        } catch (Exception e) {
+            inFlightRequests.release();
+            result.completeExceptionally(e);
+            return result;
+        }
+        responseStage.whenComplete((response, error) -> {
+            inFlightRequests.release();
+            if (error != null) {
+                LOG.error("Request to {} failed", endpointURI, error);
+                result.completeExceptionally(error);
+            } else if (isErrorResponse(endpointURI, response)) {
+                response.close();
+                result.completeExceptionally(new WebApplicationException(response));
+            } else {
+                try {
+                    result.complete(responseMapper.apply(response));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Send all items to a bulk endpoint in a single request and return one result per item, in the order of
+     * the items. Before the first bulk request to an endpoint the server is asked with an OPTIONS request if it
+     * allows the bulk method; if it does not, or it later responds with 405 or 501, the items are sent one at a time
+     * with the singleRequest, as is a single item. Other error responses fail every item, and an item for which
+     * the server did not return a result fails on its own.
+     *
+     * @param bulkTarget bulk endpoint
+     * @param bulkMethod HTTP method of the bulk request, e.g. PUT
+     * @param requestBuilder creates the request for the bulk endpoint
+     * @param items items sent as a JSON list
+     * @param resultType type of the list returned by the bulk endpoint
+     * @param singleRequest sends one item if the bulk endpoint is not supported
+     */
+    protected <T, R> List<BulkItemResult<R>> invokeBulk(WebTarget bulkTarget,
+                                                        String bulkMethod,
+                                                        Function<WebTarget, Invocation.Builder> requestBuilder,
+                                                        List<T> items,
+                                                        GenericType<List<R>> resultType,
+                                                        Function<T, R> singleRequest) {
+        String bulkEndpoint = bulkMethod + " " + bulkTarget.getUri().getPath();
+        if (items.size() <= 1 || !isBulkEndpointSupported(bulkEndpoint, bulkTarget, requestBuilder, bulkMethod)) {
+            return invokeOneAtATime(items, singleRequest);
+        }
+        Response response = requestBuilder.apply(bulkTarget).method(bulkMethod, Entity.json(items));
+        int responseStatus = response.getStatus();
+        if (responseStatus == Response.Status.METHOD_NOT_ALLOWED.getStatusCode() ||
+                responseStatus == Response.Status.NOT_IMPLEMENTED.getStatusCode()) {
+            response.close();
+            LOG.warn("{} responded with {} - fall back to one request per item", bulkEndpoint, responseStatus);
+            supportedBulkEndpoints.put(bulkEndpoint, false);
+            return invokeOneAtATime(items, singleRequest);
+        }
+        List<BulkItemResult<R>> results = new ArrayList<>(items.size());
+        if (isErrorResponse(bulkTarget.getUri(), response)) {
+            response.close();
+            WebApplicationException error = new WebApplicationException(response);
+            items.forEach(item -> results.add(BulkItemResult.failed(error)));
+            return results;
+        }
+        List<R> bulkResults = response.readEntity(resultType);
+        int nResults = bulkResults == null ? 0 : bulkResults.size();
+        if (nResults != items.size()) {
+            LOG.warn("{} returned {} results for {} items", bulkEndpoint, nResults, items.size());
+        }
+        for (int i = 0; i < items.size(); i++) {
+            R result = i < nResults ? bulkResults.get(i) : null;
+            if (result == null) {
+                results.add(BulkItemResult.failed(
+                        new IllegalStateException(bulkEndpoint + " returned no result for item " + i)));
+            } else {
+                results.add(BulkItemResult.of(result));
+            }
+        }
+        return results;
+    }
+
+    private boolean isBulkEndpointSupported(String bulkEndpoint,
+                                            WebTarget bulkTarget,
+                                            Function<WebTarget, Invocation.Builder> requestBuilder,
+                                            String bulkMethod) {
+        Boolean supported = supportedBulkEndpoints.get(bulkEndpoint);
+        if (supported != null) {
+            return supported;
+        }
+        try {
+            Response response = requestBuilder.apply(bulkTarget).options();
+            String allowedMethods = response.getHeaderString("Allow");
+            response.close();
+            supported = response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL &&
+                    allowedMethods != null &&
+                    StringUtils.containsIgnoreCase(allowedMethods, bulkMethod);
+        } catch (Exception e) {
+            // do not remember anything if the server could not be asked
+            LOG.warn("Could not check if {} is supported", bulkEndpoint, e);
+            return false;
+        }
+        if (!supported) {
+            LOG.warn("{} is not supported by {} - fall back to one request per item", bulkEndpoint, serverURL);
+        }
+        supportedBulkEndpoints.put(bulkEndpoint, supported);
+        return supported;
+    }
+
+    private <T, R> List<BulkItemResult<R>> invokeOneAtATime(List<T> items, Function<T, R> singleRequest) {
+        List<BulkItemResult<R>> results = new ArrayList<>(items.size());
+        for (T item : items) {
+            try {
+                results.add(BulkItemResult.of(singleRequest.apply(item)));
+            } catch (Exception e) {
+                results.add(BulkItemResult.failed(e));
+            }
+        }
+        return results;
+    }
+
     protected boolean isErrorResponse(URI endpointURI, Response response) {
         int responseStatus = response.getStatus();
         Response.Status status = Response.Status.fromStatusCode(response.getStatus());
@@ -91,4 +220,37 @@ public class AbstractRestClient {
         return false;
     }
 
+    /**
+     * Outcome of one item of a bulk request: either the result returned for the item or the error that prevented it.
+     */
+    public static class BulkItemResult<R> {
+        private final R result;
+        private final Exception error;
+
+        private BulkItemResult(R result, Exception error) {
+            this.result = result;
+            this.error = error;
+        }
+
+        static <R> BulkItemResult<R> of(R result) {
+            return new BulkItemResult<>(result, null);
+        }
+
+        static <R> BulkItemResult<R> failed(Exception error) {
+            return new BulkItemResult<>(null, error);
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public R getResult() {
+            return result;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+
 }
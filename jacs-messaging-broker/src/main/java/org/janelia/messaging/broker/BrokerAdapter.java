@@ -2,18 +2,22 @@ package org.janelia.messaging.broker;
 
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
 import org.janelia.messaging.core.GenericMessage;
 import org.janelia.messaging.core.MessageConnection;
 import org.janelia.messaging.core.MessageHandler;
 import org.janelia.messaging.core.impl.BulkMessageConsumerImpl;
+import org.janelia.messaging.tools.backup.BackupFormat;
+import org.janelia.messaging.tools.backup.MessageArchiveWriter;
+import org.janelia.messaging.tools.backup.MessageBackupWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,7 +37,7 @@ public abstract class BrokerAdapter {
     }
 
     public boolean useAutoAck() {
-        return true;
+        return adapterArgs.isAutoAck();
     }
 
     public boolean isEnabled() {
@@ -67,17 +71,29 @@ public abstract class BrokerAdapter {
                 String currentBackupLocation = adapterArgs.getBackupLocation() + c.get(Calendar.DAY_OF_WEEK);
                 try {
                     LOG.info ("{} - starting scheduled backup to {}", adapterArgs.getAdapterName(), currentBackupLocation);
-                    ObjectMapper mapper = new ObjectMapper();
                     BulkMessageConsumerImpl consumer = new BulkMessageConsumerImpl(messageConnection);
                     consumer.connectTo(adapterArgs.getBackupQueue());
                     consumer.setAutoAck(true);
-                    List<GenericMessage> messageList = consumer.retrieveMessages().collect(Collectors.toList());
-                    LOG.info("{} - retrieved messages to backup {} at {}", adapterArgs.getAdapterName(), messageList.size(), currentBackupLocation);
-                    try (OutputStream backupStream = new FileOutputStream(currentBackupLocation)) {
-                        mapper.writeValue(backupStream, messageList);
-                        LOG.info("{} - finished scheduled backup at {} after backing up {} messages",
-                                adapterArgs.getAdapterName(), new Date(), messageList.size());
+                    consumer.setPrefetchCount(adapterArgs.getBackupPrefetchCount());
+                    long messageCount;
+                    if (adapterArgs.getBackupFormat() == BackupFormat.ARCHIVE) {
+                        Path archivePrefix = Paths.get(currentBackupLocation);
+                        // same as the JSON backups, replace the backup from a week ago
+                        MessageArchiveWriter.deleteArchive(archivePrefix);
+                        try (MessageArchiveWriter archiveWriter = new MessageArchiveWriter(archivePrefix,
+                                MessageArchiveWriter.DEFAULT_BLOCK_SIZE, adapterArgs.getBackupSegmentSizeInBytes());
+                             Stream<GenericMessage> messages = consumer.retrieveMessages()) {
+                            messageCount = archiveWriter.writeAll(messages);
+                        }
+                    } else {
+                        try (OutputStream backupStream = new FileOutputStream(currentBackupLocation);
+                             MessageBackupWriter backupWriter = new MessageBackupWriter(backupStream);
+                             Stream<GenericMessage> messages = consumer.retrieveMessages()) {
+                            messageCount = backupWriter.writeAll(messages);
+                        }
                     }
+                    LOG.info("{} - finished scheduled backup at {} after backing up {} messages",
+                            adapterArgs.getAdapterName(), new Date(), messageCount);
                 } catch (Exception e) {
                     LOG.error("{} - error writing backup to {}", adapterArgs.getAdapterName(), currentBackupLocation, e);
                 }
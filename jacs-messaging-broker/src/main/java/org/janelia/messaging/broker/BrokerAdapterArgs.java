@@ -3,9 +3,12 @@ package org.janelia.messaging.broker;
 import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
+import org.janelia.messaging.tools.backup.BackupFormat;
+import org.janelia.messaging.tools.backup.MessageArchiveWriter;
 
 public class BrokerAdapterArgs {
     private static final long DEFAULT_BACKUP_INTERVAL_IN_MILLIS = 86400000L;
+    private static final int DEFAULT_BACKUP_PREFETCH_COUNT = 1000;
 
     private final String adapterName;
     private final Map<String, String> brokerAdapterConfig;
@@ -57,6 +60,23 @@ public class BrokerAdapterArgs {
         return getAdapterConfigOrDefault("errorResponseRouting", "");
     }
 
+    public boolean isAutoAck() {
+        String autoAck = getAdapterConfig("autoAck");
+        if (StringUtils.isNotBlank(autoAck)) {
+            return Boolean.valueOf(autoAck.trim());
+        } else {
+            return true;
+        }
+    }
+
+    public int getPrefetchCount() {
+        return getIntAdapterConfig("prefetchCount", 0);
+    }
+
+    public int getAckBatchSize() {
+        return getIntAdapterConfig("ackBatchSize", 1);
+    }
+
     public String getBackupQueue() {
         return getAdapterConfig("backupQueue");
     }
@@ -74,4 +94,41 @@ public class BrokerAdapterArgs {
         return getAdapterConfig("backupLocation");
     }
 
+    /**
+     * Number of messages in flight while draining the backup queue - 0 retrieves the messages one at a time.
+     */
+    public int getBackupPrefetchCount() {
+        return getIntAdapterConfig("backupPrefetchCount", DEFAULT_BACKUP_PREFETCH_COUNT);
+    }
+
+    public BackupFormat getBackupFormat() {
+        String backupFormat = getAdapterConfig("backupFormat");
+        if (StringUtils.isNotBlank(backupFormat)) {
+            return BackupFormat.valueOf(backupFormat.trim().toUpperCase());
+        } else {
+            return BackupFormat.JSON;
+        }
+    }
+
+    /**
+     * Size after which an archive backup starts a new segment.
+     */
+    public long getBackupSegmentSizeInBytes() {
+        String segmentSize = getAdapterConfig("backupSegmentSizeInBytes");
+        if (StringUtils.isNotBlank(segmentSize)) {
+            return Long.parseLong(segmentSize.trim());
+        } else {
+            return MessageArchiveWriter.DEFAULT_SEGMENT_SIZE;
+        }
+    }
+
+    private int getIntAdapterConfig(String configProperty, int defaultValue) {
+        String value = getAdapterConfig(configProperty);
+        if (StringUtils.isNotBlank(value)) {
+            return Integer.parseInt(value.trim());
+        } else {
+            return defaultValue;
+        }
+    }
+
 }
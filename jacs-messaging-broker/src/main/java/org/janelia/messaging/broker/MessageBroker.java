@@ -14,6 +14,7 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 
 import org.janelia.messaging.broker.agentadapter.AgentBrokerAdapterFactory;
+import org.janelia.messaging.broker.archiveadapter.ArchiveBrokerAdapterFactory;
 import org.janelia.messaging.broker.indexingadapter.IndexingBrokerAdapterFactory;
 import org.janelia.messaging.broker.neuronadapter.NeuronBrokerAdapterFactory;
 import org.janelia.messaging.config.ApplicationConfig;
@@ -21,6 +22,7 @@ import org.janelia.messaging.config.ApplicationConfigProvider;
 import org.janelia.messaging.core.ConnectionManager;
 import org.janelia.messaging.core.ConnectionParameters;
 import org.janelia.messaging.core.MessageConnection;
+import org.janelia.messaging.core.MessageHandler;
 import org.janelia.messaging.core.impl.AsyncMessageConsumerImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +50,8 @@ public class MessageBroker {
     Map<String, String> appDynamicConfig = new HashMap<>();
 
     private void startBroker(MessageConnection messageConnection, BrokerAdapter brokerAdapter, int scheduledTasksPoolSize) {
+        // the handler is created first because it may have to restore the adapter state the scheduled tasks work on
+        MessageHandler messageHandler = brokerAdapter.getMessageHandler(messageConnection);
         ScheduledExecutorService scheduledAdapterTaskExecutorService = Executors.newScheduledThreadPool(scheduledTasksPoolSize);
         brokerAdapter.getScheduledTasks(messageConnection).stream()
                 .filter(st -> st.command != null)
@@ -60,8 +64,10 @@ public class MessageBroker {
 
         AsyncMessageConsumerImpl messageConsumer = new AsyncMessageConsumerImpl(messageConnection);
         messageConsumer.setAutoAck(brokerAdapter.useAutoAck());
+        messageConsumer.setPrefetchCount(brokerAdapter.adapterArgs.getPrefetchCount());
+        messageConsumer.setAckBatchSize(brokerAdapter.adapterArgs.getAckBatchSize());
         messageConsumer.connectTo(brokerAdapter.adapterArgs.getReceiveQueue());
-        messageConsumer.subscribe(brokerAdapter.getMessageHandler(messageConnection));
+        messageConsumer.subscribe(messageHandler);
     }
 
     private boolean parseArgs(String[] args) {
@@ -98,6 +104,8 @@ public class MessageBroker {
                     factories.add(new NeuronBrokerAdapterFactory());
                 } else if (brokers[i].equals("Agent")) {
                     factories.add(new AgentBrokerAdapterFactory());
+                } else if (brokers[i].equals("Archive")) {
+                    factories.add(new ArchiveBrokerAdapterFactory());
                 }
             }
         }
@@ -115,7 +123,9 @@ public class MessageBroker {
                                 .setPassword(mb.messagingPassword)
                                 .setMaxRetries(config.getIntegerPropertyValue("connection.maxRetries", 1))
                                 .setPauseBetweenRetriesInMillis(config.getLongPropertyValue("connection.pauseBetweenRetriesInMillis", 100L))
-                                .setConsumerThreads(config.getIntegerPropertyValue("connection.consumerThreads", 1)),
+                                .setConsumerThreads(config.getIntegerPropertyValue("connection.consumerThreads", 1))
+                                .setPublisherChannels(config.getIntegerPropertyValue("connection.publisherChannels", Runtime.getRuntime().availableProcessors()))
+                                .setPublisherConfirms(config.getBooleanPropertyValue("connection.publisherConfirms", false)),
                                 (error) -> {
                                     errorHolder.set(error);
                                 }
@@ -0,0 +1,121 @@
+package org.janelia.messaging.broker;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.janelia.messaging.core.MessageHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Message handler that dispatches messages to a fixed number of single threaded lanes. The lane is selected
+ * by hashing a key extracted from the message headers so messages with the same key are handled in the order
+ * in which they were received while messages with different keys may be handled in parallel.
+ * When a lane's queue is full the caller blocks, which pushes back on the consumer.
+ */
+public class OrderedDispatchMessageHandler implements MessageHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(OrderedDispatchMessageHandler.class);
+
+    private final MessageHandler delegate;
+    private final Function<Map<String, Object>, Object> dispatchKeyExtractor;
+    private final ExecutorService[] lanes;
+
+    public OrderedDispatchMessageHandler(String name,
+                                         MessageHandler delegate,
+                                         Function<Map<String, Object>, Object> dispatchKeyExtractor,
+                                         int nLanes,
+                                         int laneCapacity) {
+        this.delegate = delegate;
+        this.dispatchKeyExtractor = dispatchKeyExtractor;
+        this.lanes = new ExecutorService[nLanes > 0 ? nLanes : 1];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(laneCapacity > 0 ? laneCapacity : Integer.MAX_VALUE),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat(name + "-lane-" + i)
+                            .setDaemon(true)
+                            .build(),
+                    (task, executor) -> {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Lane " + name + " has been shut down");
+                        }
+                        try {
+                            // block the caller until the lane has room
+                            executor.getQueue().put(task);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    });
+        }
+        LOG.info("Created {} dispatch lanes for {} with capacity {}", lanes.length, name, laneCapacity);
+    }
+
+    @Override
+    public void handleMessage(Map<String, Object> messageHeaders, byte[] messageBody) {
+        handleMessageAsync(messageHeaders, messageBody);
+    }
+
+    @Override
+    public CompletionStage<Void> handleMessageAsync(Map<String, Object> messageHeaders, byte[] messageBody) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        ExecutorService lane = selectLane(messageHeaders);
+        lane.execute(() -> {
+            try {
+                delegate.handleMessage(messageHeaders, messageBody);
+                completion.complete(null);
+            } catch (Exception e) {
+                LOG.error("Error handling message {}", messageHeaders, e);
+                completion.completeExceptionally(e);
+            }
+        });
+        return completion;
+    }
+
+    @Override
+    public void cancelMessage(String routingTag) {
+        delegate.cancelMessage(routingTag);
+    }
+
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Stop accepting messages and wait until the messages already queued in the lanes have been handled.
+     *
+     * @return true if all lanes were drained before the timeout
+     */
+    public boolean shutdownAndDrain(long timeout, TimeUnit unit) throws InterruptedException {
+        shutdown();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ExecutorService selectLane(Map<String, Object> messageHeaders) {
+        Object key = messageHeaders != null ? dispatchKeyExtractor.apply(messageHeaders) : null;
+        if (key == null) {
+            return lanes[0];
+        }
+        int hash = key.hashCode();
+        // spread the hash so that keys which differ only in the high bits still use different lanes
+        hash ^= (hash >>> 16);
+        return lanes[Math.floorMod(hash, lanes.length)];
+    }
+}
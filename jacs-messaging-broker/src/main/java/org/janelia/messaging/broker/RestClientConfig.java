@@ -0,0 +1,129 @@
+package org.janelia.messaging.broker;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * HTTP settings for the REST clients used by the broker adapters. All the settings can be overridden per adapter,
+ * e.g. <code>neuronBroker.http.readTimeoutInMillis=60000</code>.
+ */
+public class RestClientConfig {
+    private int connectTimeoutInMillis = 5000;
+    private int readTimeoutInMillis = 30000;
+    private int maxTotalConnections = 100;
+    private int maxConnectionsPerRoute = 100;
+    private long idleConnectionTimeoutInMillis = 30000L;
+    private long statsIntervalInMillis = 0L;
+    private int maxInFlightRequests = 64;
+
+    public static RestClientConfig fromAdapterArgs(BrokerAdapterArgs adapterArgs) {
+        RestClientConfig restClientConfig = new RestClientConfig();
+        String connectTimeout = adapterArgs.getAdapterConfig("http.connectTimeoutInMillis");
+        if (StringUtils.isNotBlank(connectTimeout)) {
+            restClientConfig.setConnectTimeoutInMillis(Integer.parseInt(connectTimeout.trim()));
+        }
+        String readTimeout = adapterArgs.getAdapterConfig("http.readTimeoutInMillis");
+        if (StringUtils.isNotBlank(readTimeout)) {
+            restClientConfig.setReadTimeoutInMillis(Integer.parseInt(readTimeout.trim()));
+        }
+        String maxTotal = adapterArgs.getAdapterConfig("http.maxTotalConnections");
+        if (StringUtils.isNotBlank(maxTotal)) {
+            restClientConfig.setMaxTotalConnections(Integer.parseInt(maxTotal.trim()));
+        }
+        String maxPerRoute = adapterArgs.getAdapterConfig("http.maxConnectionsPerRoute");
+        if (StringUtils.isNotBlank(maxPerRoute)) {
+            restClientConfig.setMaxConnectionsPerRoute(Integer.parseInt(maxPerRoute.trim()));
+        }
+        String idleTimeout = adapterArgs.getAdapterConfig("http.idleConnectionTimeoutInMillis");
+        if (StringUtils.isNotBlank(idleTimeout)) {
+            restClientConfig.setIdleConnectionTimeoutInMillis(Long.parseLong(idleTimeout.trim()));
+        }
+        String statsInterval = adapterArgs.getAdapterConfig("http.statsIntervalInMillis");
+        if (StringUtils.isNotBlank(statsInterval)) {
+            restClientConfig.setStatsIntervalInMillis(Long.parseLong(statsInterval.trim()));
+        }
+        String maxInFlightRequests = adapterArgs.getAdapterConfig("http.maxInFlightRequests");
+        if (StringUtils.isNotBlank(maxInFlightRequests)) {
+            restClientConfig.setMaxInFlightRequests(Integer.parseInt(maxInFlightRequests.trim()));
+        }
+        return restClientConfig;
+    }
+
+    public int getConnectTimeoutInMillis() {
+        return connectTimeoutInMillis;
+    }
+
+    public RestClientConfig setConnectTimeoutInMillis(int connectTimeoutInMillis) {
+        this.connectTimeoutInMillis = connectTimeoutInMillis;
+        return this;
+    }
+
+    public int getReadTimeoutInMillis() {
+        return readTimeoutInMillis;
+    }
+
+    public RestClientConfig setReadTimeoutInMillis(int readTimeoutInMillis) {
+        this.readTimeoutInMillis = readTimeoutInMillis;
+        return this;
+    }
+
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    public RestClientConfig setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+        return this;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public RestClientConfig setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        return this;
+    }
+
+    public long getIdleConnectionTimeoutInMillis() {
+        return idleConnectionTimeoutInMillis;
+    }
+
+    public RestClientConfig setIdleConnectionTimeoutInMillis(long idleConnectionTimeoutInMillis) {
+        this.idleConnectionTimeoutInMillis = idleConnectionTimeoutInMillis;
+        return this;
+    }
+
+    public long getStatsIntervalInMillis() {
+        return statsIntervalInMillis;
+    }
+
+    public RestClientConfig setStatsIntervalInMillis(long statsIntervalInMillis) {
+        this.statsIntervalInMillis = statsIntervalInMillis;
+        return this;
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Maximum number of asynchronous requests that may be outstanding at any time.
+     */
+    public RestClientConfig setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests > 0 ? maxInFlightRequests : 1;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "RestClientConfig{" +
+                "connectTimeoutInMillis=" + connectTimeoutInMillis +
+                ", readTimeoutInMillis=" + readTimeoutInMillis +
+                ", maxTotalConnections=" + maxTotalConnections +
+                ", maxConnectionsPerRoute=" + maxConnectionsPerRoute +
+                ", idleConnectionTimeoutInMillis=" + idleConnectionTimeoutInMillis +
+                ", statsIntervalInMillis=" + statsIntervalInMillis +
+                ", maxInFlightRequests=" + maxInFlightRequests +
+                '}';
+    }
+}
@@ -0,0 +1,142 @@
+package org.janelia.messaging.broker;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
+import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.media.multipart.MultiPartFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide registry of the HTTP clients used by the REST clients. The Jersey client, its connection pool
+ * and its JSON provider are created once for each server URL and API key and then shared by all the adapters.
+ */
+public class RestClientRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(RestClientRegistry.class);
+    private static final RestClientRegistry instance = new RestClientRegistry();
+
+    public static RestClientRegistry getInstance() {
+        return instance;
+    }
+
+    static class SharedClient {
+        final WebTarget serverTarget;
+        final Semaphore inFlightRequests;
+
+        private SharedClient(WebTarget serverTarget, Semaphore inFlightRequests) {
+            this.serverTarget = serverTarget;
+            this.inFlightRequests = inFlightRequests;
+        }
+    }
+
+    // evicts idle connections and reports the connection pool usage for all clients
+    private final ScheduledExecutorService connectionPoolMaintenance;
+    private final Map<String, SharedClient> sharedClients;
+
+    private RestClientRegistry() {
+        connectionPoolMaintenance = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("http-connection-pool-maintenance")
+                        .setDaemon(true)
+                        .build());
+        sharedClients = new ConcurrentHashMap<>();
+    }
+
+    SharedClient getClient(String serverURL, String apiKey, RestClientConfig restClientConfig) {
+        String clientKey = StringUtils.appendIfMissing(serverURL, "/") + "#" + StringUtils.defaultString(apiKey);
+        return sharedClients.computeIfAbsent(clientKey, k -> {
+            Client client = createHttpClient(serverURL, restClientConfig);
+            return new SharedClient(client.target(serverURL), new Semaphore(restClientConfig.getMaxInFlightRequests()));
+        });
+    }
+
+    /**
+     * Create a client that uses a pool of keep-alive connections through the Apache connector.
+     */
+    private Client createHttpClient(String serverURL, RestClientConfig restClientConfig) {
+        JacksonJsonProvider provider = new JacksonJaxbJsonProvider();
+        ObjectMapper mapper = provider.locateMapper(Object.class, MediaType.APPLICATION_JSON_TYPE);
+        mapper.addHandler(new DeserializationProblemHandler() {
+            @Override
+            public boolean handleUnknownProperty(DeserializationContext ctxt, JsonParser jp, JsonDeserializer<?> deserializer, Object beanOrClass, String propertyName) {
+                LOG.error("Failed to deserialize property which does not exist in model: {}.{}", beanOrClass.getClass().getName(), propertyName);
+                return true;
+            }
+        });
+
+        ClientConfig clientConfig = new ClientConfig();
+        // values are in milliseconds
+        clientConfig.property(ClientProperties.READ_TIMEOUT, restClientConfig.getReadTimeoutInMillis());
+        clientConfig.property(ClientProperties.CONNECT_TIMEOUT, restClientConfig.getConnectTimeoutInMillis());
+
+        AtomicLong openedConnections = new AtomicLong();
+        AtomicLong sentRequests = new AtomicLong();
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory = (route, connectionConfig) -> {
+            openedConnections.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, connectionConfig);
+        };
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(connectionFactory);
+        connectionManager.setMaxTotal(restClientConfig.getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(restClientConfig.getMaxConnectionsPerRoute());
+
+        clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+        clientConfig.connectorProvider(new ApacheConnectorProvider());
+        clientConfig.register((ClientRequestFilter) requestContext -> sentRequests.incrementAndGet());
+
+        long idleTimeout = restClientConfig.getIdleConnectionTimeoutInMillis();
+        if (idleTimeout > 0) {
+            connectionPoolMaintenance.scheduleWithFixedDelay(() -> {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        long statsInterval = restClientConfig.getStatsIntervalInMillis();
+        if (statsInterval > 0) {
+            connectionPoolMaintenance.scheduleAtFixedRate(() -> {
+                PoolStats poolStats = connectionManager.getTotalStats();
+                long requests = sentRequests.get();
+                long connections = openedConnections.get();
+                LOG.info("Connection pool for {}: leased {}, available {}, pending {}, max {}; {} requests sent over {} opened connections (reuse {}%)",
+                        serverURL, poolStats.getLeased(), poolStats.getAvailable(), poolStats.getPending(), poolStats.getMax(),
+                        requests, connections, requests > 0 ? Math.max(0L, (requests - connections) * 100 / requests) : 0);
+            }, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+        }
+        LOG.info("Created HTTP client for {} using {}", serverURL, restClientConfig);
+
+        Client client = ClientBuilder.newClient(clientConfig);
+        client.register(provider);
+        client.register(MultiPartFeature.class);
+        return client;
+    }
+}
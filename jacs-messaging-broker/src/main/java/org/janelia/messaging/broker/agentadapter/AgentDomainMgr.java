@@ -1,5 +1,7 @@
 package org.janelia.messaging.broker.agentadapter;
 
+import org.janelia.messaging.broker.AbstractRestClient.BulkItemResult;
+import org.janelia.messaging.broker.RestClientConfig;
 import org.janelia.messaging.tools.persistence.DomainMgr;
 import org.janelia.model.domain.tiledMicroscope.TmAgentMetadata;
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
@@ -20,7 +22,11 @@ public class AgentDomainMgr implements DomainMgr {
     private final AgentTrackingClient client;
 
     public AgentDomainMgr(String remoteUrl, String apiKey) {
-        client = new AgentTrackingClient(remoteUrl, apiKey);
+        this(remoteUrl, apiKey, new RestClientConfig());
+    }
+
+    public AgentDomainMgr(String remoteUrl, String apiKey, RestClientConfig restClientConfig) {
+        client = new AgentTrackingClient(remoteUrl, apiKey, restClientConfig);
     }
 
     public TmWorkspace createWorkspaceForSample(Long sampleId, String workspaceName, String subjectKey) throws Exception {
@@ -46,6 +52,15 @@ public class AgentDomainMgr implements DomainMgr {
         return client.create(neuronMetadata, subjectKey);
     }
 
+    /**
+     * Create all neurons using as few requests as possible. The returned list contains the outcome of each neuron
+     * in the same order as the given list.
+     */
+    List<BulkItemResult<TmNeuronMetadata>> createNeurons(List<TmNeuronMetadata> neuronsMetadata, String subjectKey) {
+        log.debug("create({} neurons)", neuronsMetadata.size());
+        return client.createAll(neuronsMetadata, subjectKey);
+    }
+
     void updateNeuron(TmNeuronMetadata neuronMetadata, String subjectKey) {
         client.update(neuronMetadata, subjectKey);
     }
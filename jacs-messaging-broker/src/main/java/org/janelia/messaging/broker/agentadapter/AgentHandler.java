@@ -13,6 +13,7 @@ import com.google.common.collect.ImmutableList;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
+import org.janelia.messaging.broker.AbstractRestClient.BulkItemResult;
 import org.janelia.messaging.broker.neuronadapter.NeuronMessageHeaders;
 import org.janelia.messaging.broker.neuronadapter.NeuronMessageType;
 import org.janelia.messaging.core.MessageHandler;
@@ -193,20 +194,33 @@ class AgentHandler implements MessageHandler {
                 matrixCalcs.init(agentDomainMgr, agentSubject);
                 converter.setSWCExchanger(matrixCalcs);
 
-                int neuroncount = 1;
-
-                for (String root: rootNodes) {
-                    Map<Integer, TmGeoAnnotation> annotations = new HashMap<>();
-
+                // create all the neurons with a single request and then fill in their annotations
+                List<TmNeuronMetadata> neuronShells = new ArrayList<>();
+                for (int neuroncount = 1; neuroncount <= rootNodes.size(); neuroncount++) {
                     TmNeuronMetadata neuron = new TmNeuronMetadata();
                     neuron.setWorkspaceRef(Reference.createFor(TmWorkspace.class, workspaceId));
-                    neuron.setName("Neuron" + neuroncount++);
+                    neuron.setName("Neuron" + neuroncount);
                     neuron.setOwnerKey(agentSubject);
                     Set<String> readersWriter = new HashSet<>();
                     readersWriter.add(agentSubject);
                     neuron.setReaders(readersWriter);
                     neuron.setWriters(readersWriter);
-                    neuron = agentDomainMgr.createNeuron(neuron, agentSubject);
+                    neuronShells.add(neuron);
+                }
+                List<BulkItemResult<TmNeuronMetadata>> createdNeurons = neuronShells.isEmpty()
+                        ? Collections.emptyList()
+                        : agentDomainMgr.createNeurons(neuronShells, agentSubject);
+
+                for (int i = 0; i < rootNodes.size(); i++) {
+                    String root = rootNodes.get(i);
+                    if (!createdNeurons.get(i).isSuccess()) {
+                        LOG.error("Error creating neuron {} of workspace {}", neuronShells.get(i).getName(), workspaceId,
+                                createdNeurons.get(i).getError());
+                        fireErrorMessage(msgHeaders, "Problems creating neuron " + neuronShells.get(i).getName() + ": " +
+                                createdNeurons.get(i).getError().getMessage());
+                        continue;
+                    }
+                    TmNeuronMetadata neuron = createdNeurons.get(i).getResult();
 
                     // start at the root and recursively generate annotations
                     if (neuron!=null && neuron.getId()!=null) {
@@ -2,6 +2,7 @@ package org.janelia.messaging.broker.agentadapter;
 
 import org.apache.commons.lang3.StringUtils;
 import org.janelia.messaging.broker.AbstractRestClient;
+import org.janelia.messaging.broker.RestClientConfig;
 import org.janelia.model.domain.dto.DomainQuery;
 import org.janelia.model.domain.tiledMicroscope.TmAgentMetadata;
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
@@ -10,6 +11,7 @@ import org.janelia.model.domain.tiledMicroscope.TmWorkspace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
@@ -27,8 +29,8 @@ class AgentTrackingClient extends AbstractRestClient {
 
     private static final String REMOTE_MOUSELIGHT_DATA_PREFIX = "mouselight/data";
 
-    AgentTrackingClient(String remoteApiURL, String apiKey) {
-        super(remoteApiURL, apiKey);
+    AgentTrackingClient(String remoteApiURL, String apiKey, RestClientConfig restClientConfig) {
+        super(remoteApiURL, apiKey, restClientConfig);
     }
 
     private WebTarget getMouselightEndpoint(String suffix, String subjectKey) {
@@ -134,6 +136,19 @@ class AgentTrackingClient extends AbstractRestClient {
         return response.readEntity(TmNeuronMetadata.class);
     }
 
+    /**
+     * Create all neurons with a single request to the bulk endpoint, if the server has one, otherwise one at a time.
+     * The results are in the order of the given neurons.
+     */
+    List<BulkItemResult<TmNeuronMetadata>> createAll(List<TmNeuronMetadata> neuronsMetadata, String subjectKey) {
+        return invokeBulk(getMouselightEndpoint("/workspace/neurons", subjectKey),
+                HttpMethod.PUT,
+                target -> target.request().header("username", subjectKey),
+                neuronsMetadata,
+                new GenericType<List<TmNeuronMetadata>>() {},
+                n -> create(n, subjectKey));
+    }
+
     TmWorkspace createWorkspaceForSample(Long sampleId, String workspaceName, String subjectKey) {
         LOG.info("Workspace creation request for sample {}, using name {}",
                 sampleId, workspaceName);
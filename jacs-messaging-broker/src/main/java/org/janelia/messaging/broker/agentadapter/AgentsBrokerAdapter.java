@@ -2,6 +2,7 @@ package org.janelia.messaging.broker.agentadapter;
 
 import org.janelia.messaging.broker.BrokerAdapter;
 import org.janelia.messaging.broker.BrokerAdapterArgs;
+import org.janelia.messaging.broker.RestClientConfig;
 import org.janelia.messaging.core.MessageConnection;
 import org.janelia.messaging.core.MessageHandler;
 import org.janelia.messaging.core.MessageSender;
@@ -39,7 +40,7 @@ public class AgentsBrokerAdapter extends BrokerAdapter {
         MessageHandler.HandlerCallback forwardCallback = successCallback.andThen(((messageHeaders, messageBody) -> forwardWorkstationSender.sendMessage(messageHeaders, messageBody)));
 
         return new AgentHandler(
-                new AgentDomainMgr(persistenceServer, adapterArgs.getAdapterConfig("persistenceApiKey")),
+                new AgentDomainMgr(persistenceServer, adapterArgs.getAdapterConfig("persistenceApiKey"), RestClientConfig.fromAdapterArgs(adapterArgs)),
                 successCallback,
                 errorCallback,
                 forwardCallback
@@ -0,0 +1,82 @@
+package org.janelia.messaging.broker.archiveadapter;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.messaging.broker.BrokerAdapter;
+import org.janelia.messaging.broker.BrokerAdapterArgs;
+import org.janelia.messaging.core.MessageConnection;
+import org.janelia.messaging.core.MessageHandler;
+import org.janelia.messaging.tools.backup.MessageArchiveWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Archives the messages from the receive queue as they arrive, instead of draining the queue once a day,
+ * to a rolling message archive that can be read by the backup tools.
+ */
+public class ArchiveBrokerAdapter extends BrokerAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveBrokerAdapter.class);
+    private static final long DEFAULT_ROTATION_INTERVAL_IN_MILLIS = 3600000L;
+    private static final long DEFAULT_SYNC_INTERVAL_IN_MILLIS = 200L;
+    private static final int DEFAULT_SYNC_BATCH_SIZE = 500;
+    private static final long DEFAULT_MAX_SYNC_DELAY_IN_MILLIS = 5000L;
+
+    private final RollingMessageArchive messageArchive;
+
+    ArchiveBrokerAdapter(BrokerAdapterArgs adapterArgs) {
+        super(adapterArgs);
+        String archiveLocation = adapterArgs.getAdapterConfig("archiveLocation");
+        if (StringUtils.isNotBlank(archiveLocation)) {
+            long segmentSize = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("archiveSegmentSizeInBytes",
+                    String.valueOf(MessageArchiveWriter.DEFAULT_SEGMENT_SIZE)).trim());
+            long rotationIntervalInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("archiveRotationIntervalInMillis",
+                    String.valueOf(DEFAULT_ROTATION_INTERVAL_IN_MILLIS)).trim());
+            int syncBatchSize = Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("archiveSyncBatchSize",
+                    String.valueOf(DEFAULT_SYNC_BATCH_SIZE)).trim());
+            long maxSyncDelayInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("archiveMaxSyncDelayInMillis",
+                    String.valueOf(DEFAULT_MAX_SYNC_DELAY_IN_MILLIS)).trim());
+            LOG.info("Archive messages from {} to {} with segment size {}, rotation interval {}ms, sync batch size {} and max sync delay {}ms",
+                    adapterArgs.getReceiveQueue(), archiveLocation, segmentSize, rotationIntervalInMillis, syncBatchSize, maxSyncDelayInMillis);
+            messageArchive = new RollingMessageArchive(Paths.get(archiveLocation),
+                    MessageArchiveWriter.DEFAULT_BLOCK_SIZE, segmentSize, rotationIntervalInMillis, syncBatchSize, maxSyncDelayInMillis);
+            // sync whatever was received when the broker is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(messageArchive::close));
+        } else {
+            messageArchive = null;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return super.isEnabled() && messageArchive != null;
+    }
+
+    /**
+     * Messages are only acknowledged after they were archived.
+     */
+    @Override
+    public boolean useAutoAck() {
+        return false;
+    }
+
+    @Override
+    public MessageHandler getMessageHandler(MessageConnection messageConnection) {
+        return new ArchiveHandler(messageArchive);
+    }
+
+    @Override
+    public List<ScheduledTask> getScheduledTasks(MessageConnection messageConnection) {
+        if (messageArchive == null) {
+            return Collections.emptyList();
+        }
+        ScheduledTask syncTask = new ScheduledTask();
+        syncTask.command = messageArchive::sync;
+        syncTask.intervalInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("archiveSyncIntervalInMillis",
+                String.valueOf(DEFAULT_SYNC_INTERVAL_IN_MILLIS)).trim());
+        syncTask.initialDelayInMillis = syncTask.intervalInMillis;
+        return Collections.singletonList(syncTask);
+    }
+}
@@ -0,0 +1,20 @@
+package org.janelia.messaging.broker.archiveadapter;
+
+import javax.annotation.Nonnull;
+
+import org.janelia.messaging.broker.BrokerAdapterArgs;
+import org.janelia.messaging.broker.BrokerAdapterFactory;
+
+public class ArchiveBrokerAdapterFactory extends BrokerAdapterFactory<ArchiveBrokerAdapter> {
+
+    @Nonnull
+    @Override
+    public String getName() {
+        return "archiveBroker";
+    }
+
+    @Override
+    public ArchiveBrokerAdapter createBrokerAdapter(BrokerAdapterArgs brokerAdapterArgs) {
+        return new ArchiveBrokerAdapter(brokerAdapterArgs);
+    }
+}
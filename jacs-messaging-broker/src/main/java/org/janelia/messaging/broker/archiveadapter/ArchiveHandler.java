@@ -0,0 +1,48 @@
+package org.janelia.messaging.broker.archiveadapter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+import org.janelia.messaging.core.GenericMessage;
+import org.janelia.messaging.core.MessageHandler;
+import org.janelia.messaging.utils.MessagingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends every received message to the archive. The delivery is only acknowledged once the message is durable.
+ */
+public class ArchiveHandler implements MessageHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveHandler.class);
+
+    private final RollingMessageArchive messageArchive;
+
+    ArchiveHandler(RollingMessageArchive messageArchive) {
+        this.messageArchive = messageArchive;
+    }
+
+    @Override
+    public void handleMessage(Map<String, Object> messageHeaders, byte[] messageBody) {
+        handleMessageAsync(messageHeaders, messageBody).toCompletableFuture().join();
+    }
+
+    @Override
+    public CompletionStage<Void> handleMessageAsync(Map<String, Object> messageHeaders, byte[] messageBody) {
+        return messageArchive.append(new GenericMessage(getArchivedHeaders(messageHeaders), messageBody));
+    }
+
+    @Override
+    public void cancelMessage(String routingTag) {
+        LOG.error("Canceled message for {}", routingTag);
+    }
+
+    private Map<String, Object> getArchivedHeaders(Map<String, Object> messageHeaders) {
+        // archive the headers the same way the queue backups save them
+        Map<String, Object> archivedHeaders = new HashMap<>();
+        if (messageHeaders != null) {
+            messageHeaders.forEach((k, v) -> archivedHeaders.put(k, MessagingUtils.getHeaderValue(messageHeaders, k)));
+        }
+        return archivedHeaders;
+    }
+}
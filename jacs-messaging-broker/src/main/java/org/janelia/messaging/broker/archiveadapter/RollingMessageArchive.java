@@ -0,0 +1,166 @@
+package org.janelia.messaging.broker.archiveadapter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+import org.janelia.messaging.core.GenericMessage;
+import org.janelia.messaging.core.impl.RetryableStateException;
+import org.janelia.messaging.tools.backup.MessageArchiveWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends messages to a message archive and makes them durable in groups. A message is only reported as archived
+ * once it was synced to disk. The periodic sync only forces the compressed blocks that are already complete, so it
+ * does not cut blocks short; the block that is being filled is written early only when enough messages are waiting
+ * for the sync or when its oldest message waited for the max sync delay.
+ * The archive starts a new segment when the current one reaches the segment size or the rotation interval.
+ */
+class RollingMessageArchive {
+    private static final Logger LOG = LoggerFactory.getLogger(RollingMessageArchive.class);
+
+    private static class PendingMessage {
+        private final CompletableFuture<Void> archived;
+        // number of messages written by the current archive writer up to and including this one
+        private final long writerSequence;
+        private final long appendTime;
+
+        private PendingMessage(CompletableFuture<Void> archived, long writerSequence, long appendTime) {
+            this.archived = archived;
+            this.writerSequence = writerSequence;
+            this.appendTime = appendTime;
+        }
+    }
+
+    private final Path archivePrefix;
+    private final int blockSize;
+    private final long segmentSize;
+    private final long rotationIntervalInMillis;
+    private final int syncBatchSize;
+    private final long maxSyncDelayInMillis;
+    private final Deque<PendingMessage> pendingSync = new ArrayDeque<>();
+    private MessageArchiveWriter archiveWriter;
+    private long segmentStartTime;
+    private long syncedMessages;
+
+    RollingMessageArchive(Path archivePrefix, int blockSize, long segmentSize, long rotationIntervalInMillis,
+                          int syncBatchSize, long maxSyncDelayInMillis) {
+        this.archivePrefix = archivePrefix;
+        this.blockSize = blockSize;
+        this.segmentSize = segmentSize;
+        this.rotationIntervalInMillis = rotationIntervalInMillis;
+        this.syncBatchSize = syncBatchSize > 0 ? syncBatchSize : 1;
+        this.maxSyncDelayInMillis = maxSyncDelayInMillis;
+    }
+
+    /**
+     * @return a future that completes when the message is durable or fails with a {@link RetryableStateException}
+     * if the message could not be archived
+     */
+    synchronized CompletableFuture<Void> append(GenericMessage message) {
+        CompletableFuture<Void> archived = new CompletableFuture<>();
+        try {
+            MessageArchiveWriter writer = getArchiveWriter();
+            writer.write(message);
+            pendingSync.add(new PendingMessage(archived, writer.getMessageCount(), System.currentTimeMillis()));
+        } catch (Exception e) {
+            LOG.error("Error archiving message {} to {}", message.getHeaders(), archivePrefix, e);
+            archived.completeExceptionally(new RetryableStateException(e));
+            return archived;
+        }
+        if (pendingSync.size() >= syncBatchSize) {
+            sync(true);
+        }
+        return archived;
+    }
+
+    /**
+     * Sync the complete blocks and the block being filled if its oldest message waited for the max sync delay,
+     * and complete the futures of the messages that are durable. It also starts a new segment if the current one
+     * is older than the rotation interval.
+     */
+    synchronized void sync() {
+        PendingMessage oldestPending = pendingSync.peekFirst();
+        sync(oldestPending != null && System.currentTimeMillis() - oldestPending.appendTime >= maxSyncDelayInMillis);
+    }
+
+    synchronized void close() {
+        sync(true);
+        closeArchiveWriter();
+        LOG.info("Archived {} messages to {}", syncedMessages, archivePrefix);
+    }
+
+    private void sync(boolean flushPendingBlock) {
+        if (archiveWriter == null) {
+            return;
+        }
+        if (!pendingSync.isEmpty()) {
+            try {
+                if (flushPendingBlock) {
+                    archiveWriter.flush();
+                }
+                completeSynced(archiveWriter.syncWrittenBlocks());
+            } catch (Exception e) {
+                LOG.error("Error syncing {} messages to {}", pendingSync.size(), archivePrefix, e);
+                failPending(e);
+                // the state of the writer is unknown so start over with a new segment
+                closeArchiveWriter();
+            }
+        }
+        if (archiveWriter != null && rotationIntervalInMillis > 0 &&
+                System.currentTimeMillis() - segmentStartTime >= rotationIntervalInMillis) {
+            try {
+                // the writer syncs the segment it closes
+                archiveWriter.rotate();
+                completeSynced(archiveWriter.getSyncedMessageCount());
+            } catch (IOException e) {
+                LOG.error("Error rotating {}", archivePrefix, e);
+                closeArchiveWriter();
+            }
+            segmentStartTime = System.currentTimeMillis();
+        }
+    }
+
+    private void completeSynced(long syncedWriterMessages) {
+        while (!pendingSync.isEmpty() && pendingSync.peekFirst().writerSequence <= syncedWriterMessages) {
+            pendingSync.pollFirst().archived.complete(null);
+            syncedMessages++;
+        }
+    }
+
+    private void failPending(Exception syncError) {
+        for (PendingMessage pendingMessage : pendingSync) {
+            pendingMessage.archived.completeExceptionally(new RetryableStateException(syncError));
+        }
+        pendingSync.clear();
+    }
+
+    private MessageArchiveWriter getArchiveWriter() throws IOException {
+        if (archiveWriter == null) {
+            // a new writer always starts a new segment after the existing ones
+            archiveWriter = new MessageArchiveWriter(archivePrefix, blockSize, segmentSize);
+            segmentStartTime = System.currentTimeMillis();
+        }
+        return archiveWriter;
+    }
+
+    /**
+     * Close the writer, which writes and syncs everything appended so far, so the messages that were still waiting
+     * are durable unless closing the writer failed.
+     */
+    private void closeArchiveWriter() {
+        if (archiveWriter != null) {
+            try {
+                archiveWriter.close();
+                completeSynced(archiveWriter.getSyncedMessageCount());
+            } catch (IOException e) {
+                LOG.error("Error closing {}", archivePrefix, e);
+            }
+            failPending(new IOException("Archive " + archivePrefix + " was closed before the messages were synced"));
+            archiveWriter = null;
+        }
+    }
+}
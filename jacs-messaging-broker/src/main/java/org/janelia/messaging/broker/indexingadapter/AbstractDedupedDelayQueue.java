@@ -0,0 +1,270 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.janelia.messaging.core.impl.RetryableStateException;
+
+/**
+ * Base of the delayed processing queues which do not accept duplicates. It takes care of the delay, the retries
+ * of the failed batches and the processing callback, while the subclasses decide how the waiting items are stored
+ * and what a batch of them looks like.
+ *
+ * @param <B> batch of work items handed out for processing, e.g. a list of items or an array of IDs
+ */
+abstract class AbstractDedupedDelayQueue<B> {
+    static final long DEADLINE_BUCKET_WIDTH = 100; // items may wait up to 100ms longer than the delay
+
+    private long workItemDelay = 5000; // Wait 5 seconds for each item by default
+
+    // the batches carry the futures of their tracked items so that each item is completed from its own outcome
+    private final BatchRetrier<WorkBatch<B>> batchRetrier = new BatchRetrier<WorkBatch<B>>() {
+        @Override
+        int size(WorkBatch<B> workBatch) {
+            return batchSize(workBatch.workItems);
+        }
+
+        @Override
+        WorkBatch<B> slice(WorkBatch<B> workBatch, int from, int to) {
+            return new WorkBatch<>(sliceBatch(workBatch.workItems, from, to),
+                    workBatch.trackers.isEmpty() ? workBatch.trackers : new ArrayList<>(workBatch.trackers.subList(from, to)));
+        }
+
+        @Override
+        Object itemAt(WorkBatch<B> workBatch, int index) {
+            return batchItemAt(workBatch.workItems, index);
+        }
+
+        @Override
+        String format(WorkBatch<B> workBatch) {
+            return formatBatch(workBatch.workItems);
+        }
+
+        @Override
+        void process(WorkBatch<B> workBatch) {
+            AbstractDedupedDelayQueue.this.process(workBatch.workItems);
+            completeTrackers(workBatch.trackers, null);
+        }
+
+        @Override
+        void requeue(WorkBatch<B> workBatch, long retryDelay, Throwable error) {
+            try {
+                retryWorkItems(workBatch.workItems, System.currentTimeMillis() + retryDelay);
+            } finally {
+                completeTrackers(workBatch.trackers, error);
+            }
+        }
+
+        @Override
+        void park(WorkBatch<B> workBatch, Throwable error) {
+            try {
+                if (deadLetterCallback != null) {
+                    deadLetterCallback.accept(workBatch.workItems, error);
+                }
+            } finally {
+                // redelivering the messages of parked items would not get them indexed
+                completeTrackers(workBatch.trackers, null);
+            }
+        }
+
+        @Override
+        long getDefaultRetryDelay() {
+            return workItemDelay;
+        }
+    };
+
+    private Consumer<B> processingCompleteCallback = null;
+    private BiConsumer<B, Throwable> deadLetterCallback = null;
+
+    /**
+     * Work items taken from the queue together with the futures of the tracked items among them.
+     */
+    static class WorkBatch<B> {
+        final B workItems;
+        // the future of each work item, null if the item is not tracked, or empty if none of the items is tracked
+        final List<CompletableFuture<Void>> trackers;
+
+        WorkBatch(B workItems, List<CompletableFuture<Void>> trackers) {
+            this.workItems = workItems;
+            this.trackers = trackers;
+        }
+    }
+
+    /**
+     * Get the delay that is applied to each work item before it can be processed.
+     * @return delay in milliseconds
+     */
+    public long getWorkItemDelay() {
+        return workItemDelay;
+    }
+
+    /**
+     * Set the delay that is applied to each work item before it can be processed.
+     * @param workItemDelay delay in milliseconds
+     */
+    public void setWorkItemDelay(long workItemDelay) {
+        this.workItemDelay = workItemDelay;
+    }
+
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        batchRetrier.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * Set the consumer of the items that are parked after the retry policy gave up on them.
+     */
+    void setDeadLetterCallback(BiConsumer<B, Throwable> deadLetterCallback) {
+        this.deadLetterCallback = deadLetterCallback;
+    }
+
+    /**
+     * Set the consumer of the batches that were processed successfully.
+     */
+    void setProcessingCompleteCallback(Consumer<B> processingCompleteCallback) {
+        this.processingCompleteCallback = processingCompleteCallback;
+    }
+
+    /**
+     * @return the time after which a work item added now can be processed
+     */
+    long nextDeadline() {
+        return System.currentTimeMillis() + workItemDelay;
+    }
+
+    /**
+     * Process as many expired work items in the queue as possible, limited only by the given batch size.
+     * @param maxBatchSize max number of items to processList
+     * @return the number of items that were processed or parked
+     */
+    synchronized int process(int maxBatchSize) {
+        if (getQueueSize() == 0) return 0;
+        return processBatch(takeExpired(maxBatchSize));
+    }
+
+    /**
+     * Remove the expired work items from the queue without processing them. Nothing is taken while the retry policy
+     * backs off.
+     * @param maxBatchSize max number of items to take
+     * @return the expired work items, possibly none
+     */
+    WorkBatch<B> takeExpired(int maxBatchSize) {
+        List<CompletableFuture<Void>> trackers = new ArrayList<>();
+        int maxItems = batchRetrier.getRemainingBackoffInMillis() > 0 ? 0 : maxBatchSize;
+        return new WorkBatch<>(drainExpired(System.currentTimeMillis(), maxItems, trackers), trackers);
+    }
+
+    /**
+     * Process work items taken from the queue and put them back if processing fails. A tracked item completes
+     * when the part of the batch it belongs to is processed or parked and fails when that part is put back.
+     * @return the number of items that were processed or parked
+     */
+    synchronized int processBatch(WorkBatch<B> workBatch) {
+        if (batchSize(workBatch.workItems) == 0) return 0;
+        return batchRetrier.processBatch(workBatch);
+    }
+
+    /**
+     * Process on its own a batch that was rejected as part of a larger request and put it back if that fails.
+     * @return the number of items that were processed or parked
+     */
+    synchronized int retryBatch(WorkBatch<B> workBatch) {
+        if (batchSize(workBatch.workItems) == 0) return 0;
+        return batchRetrier.retryBatch(workBatch);
+    }
+
+    /**
+     * Complete the tracked items of a batch that was processed as part of a larger request.
+     */
+    synchronized void batchSucceeded(WorkBatch<B> workBatch) {
+        batchRetrier.batchSucceeded(workBatch);
+        completeTrackers(workBatch.trackers, null);
+    }
+
+    /**
+     * Put back the work items of a batch that failed as part of a larger request and fail the tracked items.
+     * The items wait for the backoff of the retry policy, if there is one.
+     */
+    synchronized void batchFailed(WorkBatch<B> workBatch, Throwable error) {
+        batchRetrier.batchFailed(workBatch, error);
+    }
+
+    /**
+     * Forget the rejected attempts of work items that were dropped because a later request superseded them.
+     */
+    synchronized void workItemsSuperseded(B workItems) {
+        batchRetrier.forgetAttempts(new WorkBatch<>(workItems, Collections.emptyList()));
+    }
+
+    /**
+     * @return the number of rejected items whose attempts are still counted
+     */
+    synchronized int getRejectedItems() {
+        return batchRetrier.getRejectedItems();
+    }
+
+    /**
+     * Complete the futures of the tracked items of a batch.
+     * @param error null if the batch was processed successfully
+     */
+    static void completeTrackers(List<CompletableFuture<Void>> trackers, Throwable error) {
+        for (CompletableFuture<Void> tracker : trackers) {
+            if (tracker == null) {
+                continue;
+            } else if (error == null) {
+                tracker.complete(null);
+            } else {
+                tracker.completeExceptionally(new RetryableStateException(error));
+            }
+        }
+    }
+
+    void process(B workItems) {
+        if (batchSize(workItems) > 0) {
+            processList(workItems);
+            if (processingCompleteCallback != null) {
+                processingCompleteCallback.accept(workItems);
+            }
+        }
+    }
+
+    /**
+     * Override this method to provide logic for processing a batch of work items. These items are about to be
+     * removed from the queue.
+     * @param workItems work items to processList
+     */
+    abstract void processList(B workItems);
+
+    /**
+     * Returns the current size of the queue.
+     * @return
+     */
+    abstract int getQueueSize();
+
+    /**
+     * @return the number of items in the queue that waited long enough to be processed
+     */
+    abstract int getExpiredQueueSize();
+
+    /**
+     * Remove up to maxItems expired work items, oldest first. The empty trackers list receives the future of each
+     * removed item, or null for an untracked item, and it stays empty if none of the removed items is tracked.
+     */
+    abstract B drainExpired(long now, int maxItems, List<CompletableFuture<Void>> trackers);
+
+    /**
+     * Put the work items back in the queue unless they were added again in the meantime.
+     */
+    abstract void retryWorkItems(B workItems, long deadline);
+
+    abstract int batchSize(B workItems);
+
+    abstract B sliceBatch(B workItems, int from, int to);
+
+    abstract Object batchItemAt(B workItems, int index);
+
+    abstract String formatBatch(B workItems);
+}
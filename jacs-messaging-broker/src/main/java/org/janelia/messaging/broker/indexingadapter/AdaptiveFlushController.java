@@ -0,0 +1,128 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the indexing queues are flushed and how large the batches sent to the indexing server are.
+ * The queues are flushed when the flush interval elapsed or, earlier, as soon as the items that waited long enough
+ * to be processed reach the flush threshold. The batch size follows an additive increase / multiplicative decrease rule: it grows while batches
+ * complete within the target latency and it is halved when a batch is slow or fails, so bursts are pushed through
+ * as fast as the indexing server can take them without overloading it.
+ */
+class AdaptiveFlushController {
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int batchSizeIncrement;
+    private final long targetLatencyInMillis;
+    private final int flushThreshold;
+    private final long flushIntervalInMillis;
+
+    private int batchSize;
+    private long lastFlushTime;
+    // metrics
+    private long sizeTriggeredFlushes;
+    private long intervalTriggeredFlushes;
+    private long batches;
+    private long failedBatches;
+    private long items;
+    private long batchSizeIncreases;
+    private long batchSizeDecreases;
+    private long lastLatencyInMillis;
+    private double averageLatencyInMillis;
+
+    AdaptiveFlushController(int minBatchSize, int maxBatchSize, long targetLatencyInMillis,
+                            int flushThreshold, long flushIntervalInMillis) {
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        this.batchSizeIncrement = Math.max(1, this.maxBatchSize / 20);
+        this.targetLatencyInMillis = targetLatencyInMillis;
+        this.flushThreshold = flushThreshold > 0 ? flushThreshold : this.maxBatchSize;
+        this.flushIntervalInMillis = flushIntervalInMillis;
+        this.batchSize = this.maxBatchSize;
+        this.lastFlushTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Only the expired items count because a flush does not take the items that are still waiting, so counting
+     * those would trigger a flush on every check without draining anything.
+     * @param expiredItems number of items in the indexing queues that waited long enough to be processed
+     * @return true if the queues should be flushed now
+     */
+    synchronized boolean shouldFlush(int expiredItems) {
+        if (expiredItems == 0) {
+            return false;
+        } else if (expiredItems >= flushThreshold) {
+            sizeTriggeredFlushes++;
+            return true;
+        } else if (System.currentTimeMillis() - lastFlushTime >= flushIntervalInMillis) {
+            // after an idle period the interval already elapsed so the items are flushed as soon as they expire
+            intervalTriggeredFlushes++;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Record the end of a flush. The interval only restarts if the flush processed anything, otherwise the items
+     * that have not yet expired would wait for another interval.
+     */
+    synchronized void flushCompleted(int processedItems) {
+        if (processedItems > 0) {
+            lastFlushTime = System.currentTimeMillis();
+        }
+    }
+
+    synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Run a batch against the indexing server and adjust the batch size based on its latency and outcome.
+     * A failure is rethrown after it was recorded. A batch rejected by the server is not recorded as failed because
+     * the rejection is caused by its documents, not by the load of the server.
+     */
+    void runBatch(int batchItems, Runnable batch) {
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            batch.run();
+            failed = false;
+        } catch (IndexingServiceException e) {
+            failed = e.isRetryable();
+            throw e;
+        } finally {
+            recordBatch(batchItems, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), failed);
+        }
+    }
+
+    synchronized void recordBatch(int batchItems, long latencyInMillis, boolean failed) {
+        batches++;
+        items += batchItems;
+        lastLatencyInMillis = latencyInMillis;
+        averageLatencyInMillis = batches == 1 ? latencyInMillis : 0.8 * averageLatencyInMillis + 0.2 * latencyInMillis;
+        if (failed) {
+            failedBatches++;
+        }
+        if (failed || latencyInMillis > targetLatencyInMillis) {
+            int newBatchSize = Math.max(minBatchSize, batchSize / 2);
+            if (newBatchSize < batchSize) {
+                batchSizeDecreases++;
+                batchSize = newBatchSize;
+            }
+        } else if (batchItems >= batchSize && batchSize < maxBatchSize) {
+            // only grow when the batch was full, a small batch says nothing about what the server can take
+            batchSizeIncreases++;
+            batchSize = Math.min(maxBatchSize, batchSize + batchSizeIncrement);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("batch size %d (%d increases, %d decreases), flushes %d by size and %d by interval, " +
+                        "%d batches with %d items, %d failed, latency last %dms avg %.0fms",
+                batchSize, batchSizeIncreases, batchSizeDecreases, sizeTriggeredFlushes, intervalTriggeredFlushes,
+                batches, items, failedBatches, lastLatencyInMillis, averageLatencyInMillis);
+    }
+}
@@ -0,0 +1,191 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes the batches taken from an indexing queue and handles the batches that fail using the retry policy shared
+ * by all indexing queues. A batch that failed because of the server or the connection is put back with a backoff,
+ * a batch rejected by the server is split to isolate the rejected items, and an item that is still rejected on its own
+ * after the max attempts is parked. Without a retry policy a failed batch is put back after the default retry delay.
+ * The retrier is not thread safe, the queue that owns it must serialize the calls.
+ *
+ * @param <B> batch of work items, e.g. a list of references or an array of IDs
+ */
+abstract class BatchRetrier<B> {
+    private final static Logger LOG = LoggerFactory.getLogger(BatchRetrier.class);
+
+    private RetryPolicy retryPolicy = null;
+    // attempts of the items that were rejected on their own
+    private final Map<Object, Integer> rejectedAttempts = new HashMap<>();
+
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return the time left until the indexing server should be tried again, 0 if it can be tried now
+     */
+    long getRemainingBackoffInMillis() {
+        return retryPolicy != null ? retryPolicy.getRemainingBackoffInMillis() : 0;
+    }
+
+    /**
+     * Process a batch that is sent for the first time.
+     * @return the number of items that were processed or parked
+     */
+    int processBatch(B workItems) {
+        if (retryPolicy != null) {
+            retryPolicy.batchSent();
+        }
+        return processOrRetry(workItems, new ArrayList<>());
+    }
+
+    /**
+     * Process a batch again after the request it was part of was rejected, without adding to the retry budget.
+     * @return the number of items that were processed or parked
+     */
+    int retryBatch(B workItems) {
+        return processOrRetry(workItems, new ArrayList<>());
+    }
+
+    /**
+     * Record a batch that was processed as part of a larger request.
+     */
+    void batchSucceeded(B workItems) {
+        if (retryPolicy != null) {
+            retryPolicy.requestSucceeded();
+        }
+        forgetAttempts(workItems);
+    }
+
+    /**
+     * Put back a batch that failed as part of a larger request. The items wait for the backoff of the retry policy,
+     * if there is one.
+     */
+    void batchFailed(B workItems, Throwable error) {
+        requeueSafely(workItems, retryPolicy != null ? retryPolicy.getRemainingBackoffInMillis() : getDefaultRetryDelay(), error);
+    }
+
+    /**
+     * Forget the rejected attempts of items that were processed or that will not be processed any more,
+     * e.g. because a later request superseded them.
+     */
+    void forgetAttempts(B workItems) {
+        if (!rejectedAttempts.isEmpty()) {
+            for (int i = 0; i < size(workItems); i++) {
+                rejectedAttempts.remove(itemAt(workItems, i));
+            }
+        }
+    }
+
+    /**
+     * @return the number of items with rejected attempts that are still remembered
+     */
+    int getRejectedItems() {
+        return rejectedAttempts.size();
+    }
+
+    /**
+     * Process the work items and, if that fails, put them back with a backoff, split them if the server rejected
+     * them or park them if they were rejected too many times. Every slice of the batch ends up either processed,
+     * parked or put back.
+     * @param retryErrors collects the errors of the items that were put back
+     * @return the number of items that were processed or parked
+     */
+    private int processOrRetry(B workItems, List<Throwable> retryErrors) {
+        if (retryPolicy != null && !retryErrors.isEmpty() && retryPolicy.getRemainingBackoffInMillis() > 0) {
+            // the rest of a split batch waits for the indexing server to recover
+            requeueSafely(workItems, retryPolicy.getRemainingBackoffInMillis(), retryErrors.get(retryErrors.size() - 1));
+            return 0;
+        }
+        try {
+            process(workItems);
+            if (retryPolicy != null) {
+                retryPolicy.requestSucceeded();
+            }
+            forgetAttempts(workItems);
+            return size(workItems);
+        } catch (Exception e) {
+            LOG.error("Error processing {}", format(workItems), e);
+            if (retryPolicy != null && !retryPolicy.isRetryable(e)) {
+                int batchSize = size(workItems);
+                if (batchSize > 1 && retryPolicy.tryAcquireRetry()) {
+                    // isolate the items that are rejected
+                    int middle = batchSize / 2;
+                    return processOrRetry(slice(workItems, 0, middle), retryErrors)
+                            + processOrRetry(slice(workItems, middle, batchSize), retryErrors);
+                } else if (batchSize == 1) {
+                    Object workItem = itemAt(workItems, 0);
+                    int attempts = rejectedAttempts.merge(workItem, 1, Integer::sum);
+                    if (retryPolicy.isExhausted(attempts)) {
+                        rejectedAttempts.remove(workItem);
+                        parkWorkItems(workItems, attempts, e);
+                        return 1;
+                    }
+                    requeue(workItems, retryPolicy.getBackoffInMillis(attempts), e, retryErrors);
+                } else {
+                    requeue(workItems, retryPolicy.getBackoffInMillis(1), e, retryErrors);
+                }
+            } else {
+                requeue(workItems, retryPolicy != null ? retryPolicy.requestFailed() : getDefaultRetryDelay(), e, retryErrors);
+            }
+            return 0;
+        }
+    }
+
+    private void requeue(B workItems, long retryDelay, Throwable error, List<Throwable> retryErrors) {
+        retryErrors.add(error);
+        requeueSafely(workItems, retryDelay, error);
+    }
+
+    private void requeueSafely(B workItems, long retryDelay, Throwable error) {
+        try {
+            requeue(workItems, retryDelay, error);
+        } catch (Exception re) {
+            LOG.error("Error requeueing {}", format(workItems), re);
+        }
+    }
+
+    private void parkWorkItems(B workItems, int attempts, Throwable error) {
+        LOG.error("Park {} after {} attempts", format(workItems), attempts);
+        park(workItems, error);
+    }
+
+    abstract int size(B workItems);
+
+    abstract B slice(B workItems, int from, int to);
+
+    /**
+     * @return the item at the given index, boxed if needed, used for counting the rejected attempts of the item
+     */
+    abstract Object itemAt(B workItems, int index);
+
+    abstract String format(B workItems);
+
+    /**
+     * Send the batch to the indexing server.
+     */
+    abstract void process(B workItems);
+
+    /**
+     * Put the items back in the queue to be processed again after the delay.
+     * @param error the failure that made the items go back
+     */
+    abstract void requeue(B workItems, long retryDelay, Throwable error);
+
+    /**
+     * Set aside the items the retry policy gave up on.
+     */
+    abstract void park(B workItems, Throwable error);
+
+    /**
+     * @return the delay of a failed batch if there is no retry policy
+     */
+    abstract long getDefaultRetryDelay();
+}
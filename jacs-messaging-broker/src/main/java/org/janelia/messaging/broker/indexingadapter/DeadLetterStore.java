@@ -0,0 +1,95 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.janelia.model.domain.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local store of the indexing work items that the indexing server kept rejecting. Every parked item is appended
+ * as a JSON line with the operation, the document and the last error so that it can be inspected and resubmitted.
+ * Without a location the parked items are only logged.
+ */
+class DeadLetterStore {
+    private static final Logger LOG = LoggerFactory.getLogger(DeadLetterStore.class);
+
+    private final Path location;
+    private final ObjectMapper objectMapper;
+    private long parkedItems;
+
+    DeadLetterStore(Path location) {
+        this.location = location;
+        this.objectMapper = new ObjectMapper();
+    }
+
+    void parkIndexDocs(List<Reference> docReferences, Throwable error) {
+        List<Map<String, Object>> deadLetters = new ArrayList<>();
+        docReferences.forEach(docReference -> {
+            Map<String, Object> deadLetter = createDeadLetter("INDEX_DOC", docReference.getTargetId(), error);
+            deadLetter.put("docClass", docReference.getTargetClassName());
+            deadLetters.add(deadLetter);
+        });
+        park(deadLetters);
+    }
+
+    void parkRemoveDocs(long[] docIds, Throwable error) {
+        List<Map<String, Object>> deadLetters = new ArrayList<>();
+        for (long docId : docIds) {
+            deadLetters.add(createDeadLetter("REMOVE_DOC", docId, error));
+        }
+        park(deadLetters);
+    }
+
+    void parkAncestorToDocs(long ancestorId, long[] docIds, Throwable error) {
+        List<Map<String, Object>> deadLetters = new ArrayList<>();
+        for (long docId : docIds) {
+            Map<String, Object> deadLetter = createDeadLetter("ADD_ANCESTOR", docId, error);
+            deadLetter.put("ancestorId", ancestorId);
+            deadLetters.add(deadLetter);
+        }
+        park(deadLetters);
+    }
+
+    synchronized long getParkedItems() {
+        return parkedItems;
+    }
+
+    private Map<String, Object> createDeadLetter(String operation, long docId, Throwable error) {
+        Map<String, Object> deadLetter = new LinkedHashMap<>();
+        deadLetter.put("parkedAt", Instant.now().toString());
+        deadLetter.put("operation", operation);
+        deadLetter.put("docId", docId);
+        deadLetter.put("error", error != null ? error.getMessage() : null);
+        return deadLetter;
+    }
+
+    private synchronized void park(List<Map<String, Object>> deadLetters) {
+        parkedItems += deadLetters.size();
+        if (location == null) {
+            LOG.error("Parked indexing work items {}", deadLetters);
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(location, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Map<String, Object> deadLetter : deadLetters) {
+                writer.write(objectMapper.writeValueAsString(deadLetter));
+                writer.newLine();
+            }
+            LOG.warn("Parked indexing work items {} in {}", deadLetters, location);
+        } catch (IOException e) {
+            LOG.error("Error writing {} to {}", deadLetters, location, e);
+        }
+    }
+}
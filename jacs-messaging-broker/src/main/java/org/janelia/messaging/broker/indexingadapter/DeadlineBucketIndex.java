@@ -0,0 +1,131 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Deduplicating set of items with deadlines. A concurrent hash index makes the duplicate check O(1) and lock free
+ * and the items are grouped in buckets of deadlines, ordered by time, so that expired items are drained
+ * a bucket at a time. An item never expires before its deadline but it may wait up to the bucket width after it.
+ * <p>
+ * An item can be tracked, in which case its index entry holds a future that is handed out with the item when it is
+ * drained so that whoever added it can be told when it was processed. Duplicates share the future of the waiting item.
+ */
+class DeadlineBucketIndex<T> {
+    // the value is either TRUE or the future of a tracked item
+    private final ConcurrentMap<T, Object> index = new ConcurrentHashMap<>();
+    // guarded by itself
+    private final DeadlineBuckets<ArrayDeque<T>> buckets;
+
+    DeadlineBucketIndex(long bucketWidthInMillis) {
+        this.buckets = new DeadlineBuckets<>(bucketWidthInMillis, ArrayDeque::new);
+    }
+
+    /**
+     * Add the item unless it is already waiting.
+     *
+     * @param deadline time in milliseconds after which the item can be drained
+     * @return true if the item was added
+     */
+    boolean add(T item, long deadline) {
+        if (index.putIfAbsent(item, Boolean.TRUE) != null) {
+            return false;
+        }
+        addToBucket(item, deadline);
+        return true;
+    }
+
+    /**
+     * Add the item unless it is already waiting and track it.
+     *
+     * @param deadline time in milliseconds after which the item can be drained
+     * @return the future shared by all the additions of the item while it waits
+     */
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Void> addTracked(T item, long deadline) {
+        boolean[] added = {false};
+        Object entry = index.compute(item, (k, v) -> {
+            added[0] = v == null;
+            return v instanceof CompletableFuture ? v : new CompletableFuture<Void>();
+        });
+        if (added[0]) {
+            addToBucket(item, deadline);
+        }
+        return (CompletableFuture<Void>) entry;
+    }
+
+    private void addToBucket(T item, long deadline) {
+        synchronized (buckets) {
+            buckets.bucketOf(deadline).add(item);
+        }
+    }
+
+    /**
+     * Move up to maxItems expired items, oldest first, to the given collection. The empty trackers list receives
+     * the future of each drained item, or null for an item that is not tracked, and it stays empty if none of
+     * the drained items is tracked.
+     *
+     * @return the number of items drained
+     */
+    @SuppressWarnings("unchecked")
+    int drainExpired(long now, int maxItems, Collection<? super T> expired, List<CompletableFuture<Void>> trackers) {
+        int drained = 0;
+        synchronized (buckets) {
+            while (drained < maxItems) {
+                ArrayDeque<T> bucketItems = buckets.firstExpired(now);
+                if (bucketItems == null) {
+                    break;
+                }
+                while (drained < maxItems && !bucketItems.isEmpty()) {
+                    T item = bucketItems.poll();
+                    Object entry = index.remove(item);
+                    if (entry instanceof CompletableFuture) {
+                        while (trackers.size() < drained) {
+                            trackers.add(null);
+                        }
+                        trackers.add((CompletableFuture<Void>) entry);
+                    }
+                    expired.add(item);
+                    drained++;
+                }
+                if (bucketItems.isEmpty()) {
+                    buckets.removeFirst();
+                }
+            }
+        }
+        while (!trackers.isEmpty() && trackers.size() < drained) {
+            trackers.add(null);
+        }
+        return drained;
+    }
+
+    boolean contains(T item) {
+        return index.containsKey(item);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * @return the number of items that can be drained at the given time
+     */
+    int expiredSize(long now) {
+        synchronized (buckets) {
+            return buckets.countExpired(now, ArrayDeque::size);
+        }
+    }
+
+    void forEach(Consumer<? super T> action) {
+        index.keySet().forEach(action);
+    }
+}
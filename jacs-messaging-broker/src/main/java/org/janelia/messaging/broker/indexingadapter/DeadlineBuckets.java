@@ -0,0 +1,68 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Time ordered buckets of deadlines used by the deadline bucket indexes. Bucket k holds the deadlines
+ * in ((k - 1) * width, k * width] so an item never expires before its deadline but it may wait up to the bucket
+ * width after it. What a bucket holds is up to the index. The buckets are not thread safe.
+ *
+ * @param <Q> bucket of items
+ */
+class DeadlineBuckets<Q> {
+    private final long bucketWidthInMillis;
+    private final Supplier<Q> bucketSupplier;
+    private final NavigableMap<Long, Q> buckets = new TreeMap<>();
+
+    DeadlineBuckets(long bucketWidthInMillis, Supplier<Q> bucketSupplier) {
+        this.bucketWidthInMillis = bucketWidthInMillis > 0 ? bucketWidthInMillis : 1;
+        this.bucketSupplier = bucketSupplier;
+    }
+
+    /**
+     * @return the bucket for the deadline, created if needed
+     */
+    Q bucketOf(long deadline) {
+        long bucket = Math.floorDiv(deadline + bucketWidthInMillis - 1, bucketWidthInMillis);
+        // deadlines are mostly increasing so this is usually the last bucket
+        Map.Entry<Long, Q> lastBucket = buckets.lastEntry();
+        if (lastBucket != null && lastBucket.getKey() == bucket) {
+            return lastBucket.getValue();
+        } else {
+            return buckets.computeIfAbsent(bucket, k -> bucketSupplier.get());
+        }
+    }
+
+    /**
+     * @return the oldest bucket if all its deadlines passed, null otherwise
+     */
+    Q firstExpired(long now) {
+        Map.Entry<Long, Q> firstBucket = buckets.firstEntry();
+        if (firstBucket == null || firstBucket.getKey() * bucketWidthInMillis > now) {
+            return null;
+        }
+        return firstBucket.getValue();
+    }
+
+    /**
+     * @return the number of items in the buckets whose deadlines all passed
+     */
+    int countExpired(long now, ToIntFunction<Q> bucketSize) {
+        int expired = 0;
+        for (Q bucket : buckets.headMap(Math.floorDiv(now, bucketWidthInMillis), true).values()) {
+            expired += bucketSize.applyAsInt(bucket);
+        }
+        return expired;
+    }
+
+    /**
+     * Drop the oldest bucket once it was drained.
+     */
+    void removeFirst() {
+        buckets.pollFirstEntry();
+    }
+}
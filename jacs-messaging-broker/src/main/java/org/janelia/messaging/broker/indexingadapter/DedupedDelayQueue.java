@@ -1,42 +1,38 @@
 package org.janelia.messaging.broker.indexingadapter;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.DelayQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.janelia.messaging.core.impl.RetryableStateException;
 
 /**
  * A delayed processing queue which does not accept duplicates, thereby eliminating any duplicates that occur within
- * a certain predefined delay time.
+ * a certain predefined delay time. Duplicates are detected with a hash lookup and the expired items are drained
+ * from time ordered deadline buckets so neither adding nor draining depends on the number of waiting items.
  *
  * @author <a href="mailto:rokickik@janelia.hhmi.org">Konrad Rokicki</a>
  */
-abstract class DedupedDelayQueue<T> {
-    private final static Logger LOG = LoggerFactory.getLogger(DedupedDelayQueue.class);
+abstract class DedupedDelayQueue<T> extends AbstractDedupedDelayQueue<List<T>> {
 
-    private long workItemDelay = 5000; // Wait 5 seconds for each item by default
+    private final DeadlineBucketIndex<T> delayed = new DeadlineBucketIndex<>(DEADLINE_BUCKET_WIDTH);
+    private final ToLongFunction<? super T> workItemId;
+    // IDs of the waiting items, only kept if the items have an ID - guarded by itself
+    private final LongOpenHashSet waitingIds;
 
-    private final BlockingQueue<DelayedItem<T>> delayed = new DelayQueue<DelayedItem<T>>();
-
-    /**
-     * Get the delay that is applied to each work item before it can be processed.
-     * @return delay in milliseconds
-     */
-    public long getWorkItemDelay() {
-        return workItemDelay;
+    DedupedDelayQueue() {
+        this(null);
     }
 
     /**
-     * Set the delay that is applied to each work item before it can be processed.
-     * @param workItemDelay delay in milliseconds
+     * @param workItemId the ID of a work item, if set the queue can tell whether an item with a given ID is waiting -
+     *                   the items that share an ID are assumed to be the same
      */
-    public void setWorkItemDelay(long workItemDelay) {
-        this.workItemDelay = workItemDelay;
+    DedupedDelayQueue(ToLongFunction<? super T> workItemId) {
+        this.workItemId = workItemId;
+        this.waitingIds = workItemId != null ? new LongOpenHashSet() : null;
     }
 
     /**
@@ -44,68 +40,109 @@ abstract class DedupedDelayQueue<T> {
      * @param workItem
      */
     void addWorkItem(final T workItem) {
-        DelayedItem<T> postponed = new DelayedItem<T>(workItem, workItemDelay);
-        synchronized (this) {
-            if (!delayed.contains(postponed)) {
-                delayed.offer(postponed);
+        if (waitingIds == null) {
+            delayed.add(workItem, nextDeadline());
+        } else {
+            synchronized (waitingIds) {
+                waitingIds.add(workItemId.applyAsLong(workItem));
+                delayed.add(workItem, nextDeadline());
             }
         }
     }
 
-    private void retryWorkItems(final Collection<T> workItems) {
-        synchronized (this) {
-            workItems.stream()
-                    .map(workItem -> new DelayedItem<T>(workItem, workItemDelay))
-                    .forEach(postponed -> delayed.offer(postponed))
-                    ;
+    /**
+     * Add a work item to the queue and track its processing.
+     * @param workItem
+     * @return a future that completes when the batch containing the item was processed or that fails with a
+     * {@link RetryableStateException} if processing the batch failed
+     */
+    CompletableFuture<Void> addTrackedWorkItem(final T workItem) {
+        if (waitingIds == null) {
+            return delayed.addTracked(workItem, nextDeadline());
+        } else {
+            synchronized (waitingIds) {
+                waitingIds.add(workItemId.applyAsLong(workItem));
+                return delayed.addTracked(workItem, nextDeadline());
+            }
         }
     }
 
     /**
-     * Returns the current size of the queue.
-     * @return
+     * @return true if an item with the given ID is waiting in the queue, always false if the items have no ID
      */
+    boolean containsWorkItemId(long id) {
+        if (waitingIds == null) {
+            return false;
+        }
+        synchronized (waitingIds) {
+            return waitingIds.contains(id);
+        }
+    }
+
+    @Override
+    void retryWorkItems(final List<T> workItems, long deadline) {
+        // an item that was added again in the meantime is already waiting
+        if (waitingIds == null) {
+            workItems.forEach(workItem -> delayed.add(workItem, deadline));
+        } else {
+            synchronized (waitingIds) {
+                workItems.forEach(workItem -> {
+                    waitingIds.add(workItemId.applyAsLong(workItem));
+                    delayed.add(workItem, deadline);
+                });
+            }
+        }
+    }
+
+    @Override
     int getQueueSize() {
         return delayed.size();
     }
 
+    @Override
+    int getExpiredQueueSize() {
+        return delayed.expiredSize(System.currentTimeMillis());
+    }
+
     /**
-     * Process as many expired work items in the queue as possible, limited only by the given batch size.
-     * @param maxBatchSize max number of items to processList
-     * @return the number of items that were processed
+     * Visit the work items waiting in the queue.
+     * @param action
      */
-    synchronized int process(int maxBatchSize) {
-        // collect items that waited long enough
-        Collection<DelayedItem<T>> expired = new ArrayList<>();
-        synchronized (this) {
-            if (delayed.isEmpty()) return 0;
-            delayed.drainTo(expired, maxBatchSize);
-        }
-        List<T> workItems = expired.stream().map(delayedItem -> delayedItem.getItem()).collect(Collectors.toList());
-        try {
-            process(workItems);
-            return expired.size();
-        } catch (Exception e) {
-            LOG.error("Error processing {}", workItems, e);
-            try {
-                retryWorkItems(workItems);
-            } catch (Exception re) {
-                LOG.error("Error requeueing {}", workItems, e);
+    void forEachWorkItem(Consumer<? super T> action) {
+        delayed.forEach(action);
+    }
+
+    @Override
+    List<T> drainExpired(long now, int maxItems, List<CompletableFuture<Void>> trackers) {
+        List<T> workItems = new ArrayList<>();
+        if (waitingIds == null) {
+            delayed.drainExpired(now, maxItems, workItems, trackers);
+        } else {
+            synchronized (waitingIds) {
+                delayed.drainExpired(now, maxItems, workItems, trackers);
+                workItems.forEach(workItem -> waitingIds.remove(workItemId.applyAsLong(workItem)));
             }
-            return 0;
         }
+        return workItems;
     }
 
-    void process(List<T> workItems) {
-        if (!workItems.isEmpty()) {
-            processList(workItems);
-        }
+    @Override
+    int batchSize(List<T> workItems) {
+        return workItems.size();
     }
 
-    /**
-     * Override this method to provide logic for processing a batch of work items. These items are about to be
-     * removed from the queue.
-     * @param workItems list of work items to processList
-     */
-    abstract void processList(List<T> workItems);
+    @Override
+    List<T> sliceBatch(List<T> workItems, int from, int to) {
+        return new ArrayList<>(workItems.subList(from, to));
+    }
+
+    @Override
+    Object batchItemAt(List<T> workItems, int index) {
+        return workItems.get(index);
+    }
+
+    @Override
+    String formatBatch(List<T> workItems) {
+        return workItems.toString();
+    }
 }
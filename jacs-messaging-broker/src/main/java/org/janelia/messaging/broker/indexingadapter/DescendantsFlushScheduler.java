@@ -0,0 +1,190 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flushes the queues of descendants waiting for an ancestor. Every flush drains all ancestors that have expired
+ * descendants in rounds of at most one batch per ancestor, so an ancestor with many descendants does not hold up
+ * the others, and the batches of a round are sent to the indexing server by a bounded pool. If the indexing server
+ * supports it, small batches of different ancestors are combined in a single request.
+ * All descendants queues share the retry policy of the other indexing queues.
+ */
+class DescendantsFlushScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(DescendantsFlushScheduler.class);
+
+    private final NavigableMap<Long, LongDedupedDelayQueue> docDescendantsToAdd;
+    private final IndexingService indexingService;
+    private final AdaptiveFlushController flushController;
+    private final RetryPolicy retryPolicy;
+    private final DeadLetterStore deadLetterStore;
+    private final boolean multiAncestorRequests;
+    private final ExecutorService indexingExecutor;
+    private BiConsumer<Long, long[]> descendantsAddedCallback = null;
+
+    private static class AncestorBatch {
+        final Long ancestorId;
+        final LongDedupedDelayQueue descendantsQueue;
+        final AbstractDedupedDelayQueue.WorkBatch<long[]> docsBatch;
+
+        AncestorBatch(Long ancestorId, LongDedupedDelayQueue descendantsQueue, AbstractDedupedDelayQueue.WorkBatch<long[]> docsBatch) {
+            this.ancestorId = ancestorId;
+            this.descendantsQueue = descendantsQueue;
+            this.docsBatch = docsBatch;
+        }
+    }
+
+    DescendantsFlushScheduler(NavigableMap<Long, LongDedupedDelayQueue> docDescendantsToAdd,
+                              IndexingService indexingService,
+                              AdaptiveFlushController flushController,
+                              RetryPolicy retryPolicy,
+                              DeadLetterStore deadLetterStore,
+                              int nThreads,
+                              boolean multiAncestorRequests) {
+        this.docDescendantsToAdd = docDescendantsToAdd;
+        this.indexingService = indexingService;
+        this.flushController = flushController;
+        this.retryPolicy = retryPolicy;
+        this.deadLetterStore = deadLetterStore;
+        this.multiAncestorRequests = multiAncestorRequests;
+        this.indexingExecutor = Executors.newFixedThreadPool(Math.max(1, nThreads),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("indexing-descendants-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    void setDescendantsAddedCallback(BiConsumer<Long, long[]> descendantsAddedCallback) {
+        this.descendantsAddedCallback = descendantsAddedCallback;
+    }
+
+    /**
+     * Create the queue of descendants for an ancestor.
+     */
+    LongDedupedDelayQueue createDescendantsQueue(Long ancestorId, long workItemDelay) {
+        LongDedupedDelayQueue descendantsQueue = new LongDedupedDelayQueue() {
+            @Override
+            void processList(long[] workItems) {
+                addAncestorToDocs(ancestorId, workItems);
+            }
+        };
+        descendantsQueue.setWorkItemDelay(workItemDelay);
+        descendantsQueue.setRetryPolicy(retryPolicy);
+        descendantsQueue.setDeadLetterCallback((docIds, error) -> deadLetterStore.parkAncestorToDocs(ancestorId, docIds, error));
+        return descendantsQueue;
+    }
+
+    /**
+     * Add the ancestors to all expired descendants.
+     * @return the number of descendants that were processed
+     */
+    int flush() {
+        List<Map.Entry<Long, LongDedupedDelayQueue>> ancestorQueues;
+        synchronized (docDescendantsToAdd) {
+            ancestorQueues = new ArrayList<>(docDescendantsToAdd.entrySet());
+        }
+        int processedItems = 0;
+        boolean moreExpired = !ancestorQueues.isEmpty();
+        while (moreExpired) {
+            int batchSize = flushController.getBatchSize();
+            List<Future<Integer>> batchResults = new ArrayList<>();
+            List<AncestorBatch> smallBatches = new ArrayList<>();
+            int smallBatchesItems = 0;
+            moreExpired = false;
+            for (Map.Entry<Long, LongDedupedDelayQueue> ancestorQueue : ancestorQueues) {
+                LongDedupedDelayQueue descendantsQueue = ancestorQueue.getValue();
+                AbstractDedupedDelayQueue.WorkBatch<long[]> docsBatch = descendantsQueue.takeExpired(batchSize);
+                int batchItems = docsBatch.workItems.length;
+                if (batchItems == 0) {
+                    continue;
+                } else if (batchItems == batchSize) {
+                    // the ancestor may have more expired descendants for the next round
+                    moreExpired = true;
+                }
+                if (multiAncestorRequests && batchItems < batchSize / 2) {
+                    if (smallBatchesItems + batchItems > batchSize) {
+                        batchResults.add(submitAncestorsToDocs(smallBatches, smallBatchesItems));
+                        smallBatches = new ArrayList<>();
+                        smallBatchesItems = 0;
+                    }
+                    smallBatches.add(new AncestorBatch(ancestorQueue.getKey(), descendantsQueue, docsBatch));
+                    smallBatchesItems += batchItems;
+                } else {
+                    batchResults.add(indexingExecutor.submit(() -> descendantsQueue.processBatch(docsBatch)));
+                }
+            }
+            if (smallBatches.size() == 1) {
+                AncestorBatch ancestorBatch = smallBatches.get(0);
+                batchResults.add(indexingExecutor.submit(() -> ancestorBatch.descendantsQueue.processBatch(ancestorBatch.docsBatch)));
+            } else if (!smallBatches.isEmpty()) {
+                batchResults.add(submitAncestorsToDocs(smallBatches, smallBatchesItems));
+            }
+            for (Future<Integer> batchResult : batchResults) {
+                try {
+                    processedItems += batchResult.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return processedItems;
+                } catch (ExecutionException e) {
+                    LOG.error("Error adding ancestors to descendants", e.getCause());
+                }
+            }
+        }
+        synchronized (docDescendantsToAdd) {
+            // nothing left in these queues
+            docDescendantsToAdd.values().removeIf(descendantsQueue -> descendantsQueue.getQueueSize() == 0);
+        }
+        return processedItems;
+    }
+
+    private void addAncestorToDocs(Long ancestorId, long[] docIds) {
+        LOG.info("Add ancestor {} to {}", ancestorId, Arrays.toString(docIds));
+        flushController.runBatch(docIds.length, () -> indexingService.addAncestorToDocs(ancestorId, docIds));
+        if (descendantsAddedCallback != null) {
+            descendantsAddedCallback.accept(ancestorId, docIds);
+        }
+    }
+
+    private Future<Integer> submitAncestorsToDocs(List<AncestorBatch> ancestorBatches, int batchItems) {
+        return indexingExecutor.submit(() -> {
+            Map<Long, long[]> ancestorDocs = new LinkedHashMap<>();
+            ancestorBatches.forEach(ancestorBatch -> ancestorDocs.put(ancestorBatch.ancestorId, ancestorBatch.docsBatch.workItems));
+            LOG.info("Add {} ancestors to {} descendants", ancestorDocs.size(), batchItems);
+            retryPolicy.batchSent();
+            try {
+                flushController.runBatch(batchItems, () -> indexingService.addAncestorsToDocs(ancestorDocs));
+            } catch (Exception e) {
+                LOG.error("Error adding ancestors {} to their descendants", ancestorDocs.keySet(), e);
+                if (retryPolicy.isRetryable(e)) {
+                    retryPolicy.requestFailed();
+                    ancestorBatches.forEach(ancestorBatch -> ancestorBatch.descendantsQueue.batchFailed(ancestorBatch.docsBatch, e));
+                    return 0;
+                }
+                // the request was rejected so send every ancestor on its own to find the descendants that cause it
+                int processedItems = 0;
+                for (AncestorBatch ancestorBatch : ancestorBatches) {
+                    processedItems += ancestorBatch.descendantsQueue.retryBatch(ancestorBatch.docsBatch);
+                }
+                return processedItems;
+            }
+            if (descendantsAddedCallback != null) {
+                ancestorDocs.forEach(descendantsAddedCallback);
+            }
+            ancestorBatches.forEach(ancestorBatch -> ancestorBatch.descendantsQueue.batchSucceeded(ancestorBatch.docsBatch));
+            return batchItems;
+        });
+    }
+}
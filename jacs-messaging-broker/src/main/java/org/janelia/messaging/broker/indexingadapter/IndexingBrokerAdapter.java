@@ -1,15 +1,20 @@
 package org.janelia.messaging.broker.indexingadapter;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.janelia.messaging.broker.BrokerAdapter;
 import org.janelia.messaging.broker.BrokerAdapterArgs;
+import org.janelia.messaging.broker.RestClientConfig;
 import org.janelia.messaging.core.MessageConnection;
 import org.janelia.messaging.core.MessageHandler;
 import org.janelia.messaging.core.MessageSender;
@@ -20,51 +25,190 @@ import org.slf4j.LoggerFactory;
 
 public class IndexingBrokerAdapter extends BrokerAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(IndexingBrokerAdapter.class);
+    private static final int MIN_BATCH_SIZE = 100;
     private static final int MAX_BATCH_SIZE = 10000;
     private static final int WORK_DELAY_MILLIS = 5000;
     private static final long INITIAL_DELAY_IN_MILLIS = 15000L;
-    private static final long INDEXING_INTERVAL_IN_MILLIS = 15000L;
+    private static final long FLUSH_INTERVAL_IN_MILLIS = 15000L;
+    private static final long TICK_INTERVAL_IN_MILLIS = 1000L;
+    private static final long TARGET_LATENCY_IN_MILLIS = 2000L;
+    private static final int DESCENDANTS_THREADS = 4;
+    private static final long WORK_LOG_SYNC_INTERVAL_IN_MILLIS = 200L;
+    private static final int WORK_LOG_SYNC_BATCH_SIZE = 500;
+    private static final long WORK_LOG_COMPACTION_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_IN_MILLIS = 1000L;
+    private static final long MAX_BACKOFF_IN_MILLIS = 300000L;
+    private static final double RETRY_BUDGET_RATIO = 0.2;
 
     private final IndexingService indexingService;
-    private final DedupedDelayWithCallbackQueue<Reference> docsToIndex;
-    private final DedupedDelayWithCallbackQueue<Long> docIdsToRemove;
-    private final NavigableMap<Long, DedupedDelayQueue<Long>> docDescendantsToAdd;
+    private final AdaptiveFlushController flushController;
+    private final RetryPolicy retryPolicy;
+    private final DeadLetterStore deadLetterStore;
+    private final PendingDocumentStates documentStates;
+    private final DedupedDelayQueue<Reference> docsToIndex;
+    private final LongDedupedDelayQueue docIdsToRemove;
+    private final NavigableMap<Long, LongDedupedDelayQueue> docDescendantsToAdd;
+    private final DescendantsFlushScheduler descendantsFlushScheduler;
+    private final IndexingWorkLog workLog;
+    private final boolean ackAfterFlush;
 
     IndexingBrokerAdapter(BrokerAdapterArgs adapterArgs) {
         super(adapterArgs);
         this.indexingService = createIndexingService(adapterArgs);
+        this.flushController = createFlushController(adapterArgs);
+        this.retryPolicy = createRetryPolicy(adapterArgs);
+        this.deadLetterStore = createDeadLetterStore(adapterArgs);
+        this.documentStates = new PendingDocumentStates();
 
-        docsToIndex = new DedupedDelayWithCallbackQueue<Reference>() {
+        docsToIndex = new DedupedDelayQueue<Reference>(Reference::getTargetId) {
             {
                 setWorkItemDelay(WORK_DELAY_MILLIS);
+                setRetryPolicy(retryPolicy);
+                setDeadLetterCallback((workItems, error) -> {
+                    deadLetterStore.parkIndexDocs(workItems, error);
+                    documentStates.indexingCompleted(workItems, documentStates.currentSequence());
+                });
+            }
+
+            @Override
+            void process(List<Reference> workItems) {
+                long batchSequence = documentStates.currentSequence();
+                List<Reference> indexedItems = documentStates.withoutSupersededIndexing(workItems);
+                if (indexedItems.size() < workItems.size()) {
+                    // the superseded items are dropped for good
+                    workItemsSuperseded(workItems.stream()
+                            .filter(docReference -> documentStates.isIndexSuperseded(docReference.getTargetId()))
+                            .collect(Collectors.toList()));
+                }
+                super.process(indexedItems);
+                documentStates.indexingCompleted(workItems, batchSequence);
             }
 
             @Override
             void processList(List<Reference> workItems) {
                 LOG.info("Index items {}", workItems);
-                indexingService.indexDocReferences(workItems);
+                flushController.runBatch(workItems.size(), () -> indexingService.indexDocReferences(workItems));
             }
         };
 
-        docIdsToRemove = new DedupedDelayWithCallbackQueue<Long>() {
+        docIdsToRemove = new LongDedupedDelayQueue() {
             {
                 setWorkItemDelay(WORK_DELAY_MILLIS);
+                setRetryPolicy(retryPolicy);
+                setDeadLetterCallback((workItems, error) -> {
+                    deadLetterStore.parkRemoveDocs(workItems, error);
+                    documentStates.removalsCompleted(workItems, documentStates.currentSequence());
+                });
             }
 
             @Override
-            void processList(List<Long> workItems) {
-                LOG.info("Remove items {}", workItems);
-                indexingService.remmoveDocIds(workItems);
+            void process(long[] workItems) {
+                long batchSequence = documentStates.currentSequence();
+                long[] removedItems = documentStates.withoutSupersededRemovals(workItems);
+                if (removedItems.length < workItems.length) {
+                    // the superseded items are dropped for good
+                    workItemsSuperseded(Arrays.stream(workItems)
+                            .filter(documentStates::isRemoveSuperseded)
+                            .toArray());
+                }
+                super.process(removedItems);
+                documentStates.removalsCompleted(workItems, batchSequence);
+            }
+
+            @Override
+            void processList(long[] workItems) {
+                LOG.info("Remove items {}", Arrays.toString(workItems));
+                flushController.runBatch(workItems.length, () -> indexingService.remmoveDocIds(workItems));
             }
         };
 
         docDescendantsToAdd = new ConcurrentSkipListMap<>();
+        descendantsFlushScheduler = new DescendantsFlushScheduler(
+                docDescendantsToAdd,
+                indexingService,
+                flushController,
+                retryPolicy,
+                deadLetterStore,
+                Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("indexingDescendantsThreads",
+                        String.valueOf(DESCENDANTS_THREADS)).trim()),
+                Boolean.parseBoolean(adapterArgs.getAdapterConfigOrDefault("indexingMultiAncestorRequests", "false").trim()));
+        workLog = createWorkLog(adapterArgs);
+        ackAfterFlush = Boolean.parseBoolean(adapterArgs.getAdapterConfigOrDefault("indexingAckAfterFlush", "false").trim());
+        if (ackAfterFlush) {
+            LOG.info("Indexing requests are acknowledged after they were sent to the indexing server");
+        }
+    }
+
+    /**
+     * If the requests are acknowledged after the flush the messages cannot be acknowledged automatically.
+     */
+    @Override
+    public boolean useAutoAck() {
+        return !ackAfterFlush && super.useAutoAck();
     }
 
     private IndexingService createIndexingService(BrokerAdapterArgs adapterArgs) {
         return new RestIndexingService(
                 adapterArgs.getAdapterConfig("indexingServer"),
-                adapterArgs.getAdapterConfig("indexingApiKey"));
+                adapterArgs.getAdapterConfig("indexingApiKey"),
+                RestClientConfig.fromAdapterArgs(adapterArgs));
+    }
+
+    private AdaptiveFlushController createFlushController(BrokerAdapterArgs adapterArgs) {
+        int minBatchSize = Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("indexingMinBatchSize",
+                String.valueOf(MIN_BATCH_SIZE)).trim());
+        int maxBatchSize = Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("indexingMaxBatchSize",
+                String.valueOf(MAX_BATCH_SIZE)).trim());
+        long targetLatencyInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("indexingTargetLatencyInMillis",
+                String.valueOf(TARGET_LATENCY_IN_MILLIS)).trim());
+        int flushThreshold = Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("indexingFlushThreshold",
+                String.valueOf(maxBatchSize)).trim());
+        long flushIntervalInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("indexingFlushIntervalInMillis",
+                String.valueOf(FLUSH_INTERVAL_IN_MILLIS)).trim());
+        LOG.info("Index in batches of {} to {} documents with target latency {}ms, flush threshold {} and flush interval {}ms",
+                minBatchSize, maxBatchSize, targetLatencyInMillis, flushThreshold, flushIntervalInMillis);
+        return new AdaptiveFlushController(minBatchSize, maxBatchSize, targetLatencyInMillis, flushThreshold, flushIntervalInMillis);
+    }
+
+    private RetryPolicy createRetryPolicy(BrokerAdapterArgs adapterArgs) {
+        int maxAttempts = Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("indexingMaxAttempts",
+                String.valueOf(MAX_ATTEMPTS)).trim());
+        long initialBackoffInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("indexingInitialBackoffInMillis",
+                String.valueOf(INITIAL_BACKOFF_IN_MILLIS)).trim());
+        long maxBackoffInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("indexingMaxBackoffInMillis",
+                String.valueOf(MAX_BACKOFF_IN_MILLIS)).trim());
+        double retryBudgetRatio = Double.parseDouble(adapterArgs.getAdapterConfigOrDefault("indexingRetryBudgetRatio",
+                String.valueOf(RETRY_BUDGET_RATIO)).trim());
+        LOG.info("Retry failed indexing batches with backoff from {}ms to {}ms and retry budget ratio {}, park rejected documents after {} attempts",
+                initialBackoffInMillis, maxBackoffInMillis, retryBudgetRatio, maxAttempts);
+        return new RetryPolicy(maxAttempts, initialBackoffInMillis, maxBackoffInMillis, retryBudgetRatio);
+    }
+
+    private DeadLetterStore createDeadLetterStore(BrokerAdapterArgs adapterArgs) {
+        String deadLetterLocation = adapterArgs.getAdapterConfig("indexingDeadLetterLocation");
+        if (StringUtils.isBlank(deadLetterLocation)) {
+            LOG.info("No indexing dead letter location configured - rejected documents are only logged");
+            return new DeadLetterStore(null);
+        }
+        LOG.info("Park rejected indexing work items in {}", deadLetterLocation);
+        return new DeadLetterStore(Paths.get(deadLetterLocation));
+    }
+
+    private IndexingWorkLog createWorkLog(BrokerAdapterArgs adapterArgs) {
+        String workLogLocation = adapterArgs.getAdapterConfig("indexingWorkLogLocation");
+        if (StringUtils.isBlank(workLogLocation)) {
+            LOG.info("No indexing work log configured - pending indexing work is lost when the broker stops");
+            return null;
+        }
+        long compactionSize = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("indexingWorkLogCompactionSizeInBytes",
+                String.valueOf(WORK_LOG_COMPACTION_SIZE)).trim());
+        int syncBatchSize = Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("indexingWorkLogSyncBatchSize",
+                String.valueOf(WORK_LOG_SYNC_BATCH_SIZE)).trim());
+        LOG.info("Log indexing work to {} with compaction size {} and sync batch size {}", workLogLocation, compactionSize, syncBatchSize);
+        IndexingWorkLog indexingWorkLog = new IndexingWorkLog(Paths.get(workLogLocation), compactionSize, syncBatchSize);
+        Runtime.getRuntime().addShutdownHook(new Thread(indexingWorkLog::close));
+        return indexingWorkLog;
     }
 
     @Override
@@ -90,7 +234,16 @@ public class IndexingBrokerAdapter extends BrokerAdapter {
                 messageHeaders.put(IndexingMessageHeaders.TYPE, "DELETE_DOCS");
                 replySuccessSender.sendMessage(
                         messageHeaders,
-                        workItems.stream().map(Object::toString).reduce((o1, o2) -> o1 + "," + o2).orElse("").getBytes()
+                        joinIds(workItems).getBytes()
+                );
+            });
+            descendantsFlushScheduler.setDescendantsAddedCallback((ancestorId, workItems) -> {
+                Map<String, Object> messageHeaders = new LinkedHashMap<>();
+                messageHeaders.put(IndexingMessageHeaders.TYPE, "ADD_ANCESTOR");
+                messageHeaders.put(IndexingMessageHeaders.ANCESTOR_ID, ancestorId);
+                replySuccessSender.sendMessage(
+                        messageHeaders,
+                        joinIds(workItems).getBytes()
                 );
             });
         } else {
@@ -98,68 +251,116 @@ public class IndexingBrokerAdapter extends BrokerAdapter {
             replySuccessSender = null;
         }
 
-        return new IndexingHandler(
+        IndexingHandler indexingHandler = new IndexingHandler(
                 docsToIndex,
                 docIdsToRemove,
+                documentStates,
                 docDescendantsToAdd,
-                (ancestorId) -> new DedupedDelayQueue<Long>() {
-                    {
-                        setWorkItemDelay(WORK_DELAY_MILLIS);
-                    }
-
-                    @Override
-                    void process(List<Long> workItems) {
-                        super.process(workItems);
-                        if (getQueueSize() == 0) {
-                            // nothing left in the queue
-                            docDescendantsToAdd.remove(ancestorId);
-                        }
-                    }
-
-                    @Override
-                    void processList(List<Long> workItems) {
-                        LOG.info("Add ancestor {} to {}", ancestorId, workItems);
-                        indexingService.addAncestorToDocs(ancestorId, workItems);
-                        if (replySuccessSender != null) {
-                            Map<String, Object> messageHeaders = new LinkedHashMap<>();
-                            messageHeaders.put(IndexingMessageHeaders.TYPE, "ADD_ANCESTOR");
-                            messageHeaders.put(IndexingMessageHeaders.ANCESTOR_ID, ancestorId);
-                            replySuccessSender.sendMessage(
-                                    messageHeaders,
-                                    workItems.stream().map(Object::toString).reduce((o1, o2) -> o1 + "," + o2).orElse("").getBytes()
-                            );
-                        }
-                    }
-                });
+                (ancestorId) -> descendantsFlushScheduler.createDescendantsQueue(ancestorId, WORK_DELAY_MILLIS),
+                workLog,
+                ackAfterFlush);
+        if (workLog != null) {
+            // queue the work left from the previous run before any new message is handled
+            try {
+                workLog.open(indexingHandler);
+            } catch (Exception e) {
+                LOG.error("Error replaying indexing work log", e);
+            }
+        }
+        return indexingHandler;
     }
 
     @Override
     public List<ScheduledTask> getScheduledTasks(MessageConnection messageConnection) {
-        return Arrays.asList(
+        List<ScheduledTask> scheduledTasks = new ArrayList<>(Arrays.asList(
                 getBackupQueueTask(messageConnection),
                 getIncrementalIndexingTask()
-        );
+        ));
+        if (workLog != null) {
+            ScheduledTask syncTask = new ScheduledTask();
+            syncTask.command = workLog::sync;
+            syncTask.intervalInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("indexingWorkLogSyncIntervalInMillis",
+                    String.valueOf(WORK_LOG_SYNC_INTERVAL_IN_MILLIS)).trim());
+            syncTask.initialDelayInMillis = syncTask.intervalInMillis;
+            scheduledTasks.add(syncTask);
+        }
+        return scheduledTasks;
     }
 
     private ScheduledTask getIncrementalIndexingTask() {
         LOG.info("{} - configure incremental indexing task", adapterArgs.getAdapterName());
 
+        // the tick only checks whether a flush is due, the flush controller decides when the queues are flushed
         Runnable command = () -> {
-            docsToIndex.process(MAX_BATCH_SIZE);
-            docIdsToRemove.process(MAX_BATCH_SIZE);
-            synchronized (docDescendantsToAdd) {
-                if (!docDescendantsToAdd.isEmpty()) {
-                    Long ancestorId = docDescendantsToAdd.firstKey();
-                    DedupedDelayQueue<Long> descendantsQueue = docDescendantsToAdd.get(ancestorId);
-                    descendantsQueue.process(MAX_BATCH_SIZE);
-                }
+            if (!flushController.shouldFlush(getExpiredItems())) {
+                return;
+            }
+            int processedItems = processQueue(docsToIndex::process)
+                    + processQueue(docIdsToRemove::process)
+                    + descendantsFlushScheduler.flush();
+            flushController.flushCompleted(processedItems);
+            if (workLog != null) {
+                // nothing is being processed at this point so the queues hold all the pending work
+                workLog.flushCompleted(processedItems, this::writePendingItems);
+            }
+            if (processedItems > 0) {
+                LOG.info("Flushed {} indexing items: {}, {}, {} parked", processedItems, flushController, retryPolicy,
+                        deadLetterStore.getParkedItems());
             }
         };
         ScheduledTask scheduledTask = new ScheduledTask();
         scheduledTask.command = command;
         scheduledTask.initialDelayInMillis = INITIAL_DELAY_IN_MILLIS;
-        scheduledTask.intervalInMillis = INDEXING_INTERVAL_IN_MILLIS;
+        scheduledTask.intervalInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("indexingTickIntervalInMillis",
+                String.valueOf(TICK_INTERVAL_IN_MILLIS)).trim());
         return scheduledTask;
     }
 
+    private int getExpiredItems() {
+        int expiredItems = docsToIndex.getExpiredQueueSize() + docIdsToRemove.getExpiredQueueSize();
+        for (LongDedupedDelayQueue descendantsQueue : docDescendantsToAdd.values()) {
+            expiredItems += descendantsQueue.getExpiredQueueSize();
+        }
+        return expiredItems;
+    }
+
+    /**
+     * Write the pending items without the superseded ones because the compacted log does not keep the order
+     * in which the index and remove requests of a document were received.
+     */
+    private void writePendingItems(IndexingWorkLog.WorkItemConsumer workItemConsumer) {
+        docsToIndex.forEachWorkItem(docReference -> {
+            if (!documentStates.isIndexSuperseded(docReference.getTargetId())) {
+                workItemConsumer.indexDoc(docReference);
+            }
+        });
+        docIdsToRemove.forEachWorkItem(docId -> {
+            if (!documentStates.isRemoveSuperseded(docId)) {
+                workItemConsumer.removeDoc(docId);
+            }
+        });
+        docDescendantsToAdd.forEach((ancestorId, descendantsQueue) ->
+                descendantsQueue.forEachWorkItem(docId -> workItemConsumer.addAncestorToDoc(ancestorId, docId)));
+    }
+
+    /**
+     * Process batches of the current batch size as long as the queue fills them, so a burst is pushed through
+     * in one flush.
+     */
+    private int processQueue(IntUnaryOperator queue) {
+        int processedItems = 0;
+        for (;;) {
+            int batchSize = flushController.getBatchSize();
+            int batchItems = queue.applyAsInt(batchSize);
+            processedItems += batchItems;
+            if (batchItems < batchSize) {
+                return processedItems;
+            }
+        }
+    }
+
+    private static String joinIds(long[] ids) {
+        return Arrays.stream(ids).mapToObj(Long::toString).collect(Collectors.joining(","));
+    }
+
 }
@@ -1,7 +1,10 @@
 package org.janelia.messaging.broker.indexingadapter;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.janelia.messaging.core.MessageHandler;
 import org.janelia.messaging.utils.MessagingUtils;
@@ -9,41 +12,71 @@ import org.janelia.model.domain.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class IndexingHandler implements MessageHandler {
+public class IndexingHandler implements MessageHandler, IndexingWorkLog.WorkItemConsumer {
     private static final Logger LOG = LoggerFactory.getLogger(IndexingHandler.class);
 
     private final DedupedDelayQueue<Reference> docsToIndex;
-    private final DedupedDelayQueue<Long> docIdsToRemove;
-    private final Map<Long, DedupedDelayQueue<Long>> docDescendantsToAdd;
-    private final Function<Long, DedupedDelayQueue<Long>> docDescendantsQueueSupplier;
+    private final LongDedupedDelayQueue docIdsToRemove;
+    private final PendingDocumentStates documentStates;
+    private final Map<Long, LongDedupedDelayQueue> docDescendantsToAdd;
+    private final Function<Long, LongDedupedDelayQueue> docDescendantsQueueSupplier;
+    private final IndexingWorkLog workLog;
+    private final boolean ackAfterFlush;
 
     IndexingHandler(DedupedDelayQueue<Reference> docsToIndex,
-                    DedupedDelayQueue<Long> docIdsToRemove,
-                    Map<Long, DedupedDelayQueue<Long>> docDescendantsToAdd,
-                    Function<Long, DedupedDelayQueue<Long>> docDescendantsQueueSupplier) {
+                    LongDedupedDelayQueue docIdsToRemove,
+                    PendingDocumentStates documentStates,
+                    Map<Long, LongDedupedDelayQueue> docDescendantsToAdd,
+                    Function<Long, LongDedupedDelayQueue> docDescendantsQueueSupplier,
+                    IndexingWorkLog workLog,
+                    boolean ackAfterFlush) {
         this.docsToIndex = docsToIndex;
         this.docIdsToRemove = docIdsToRemove;
+        this.documentStates = documentStates;
         this.docDescendantsToAdd = docDescendantsToAdd;
         this.docDescendantsQueueSupplier = docDescendantsQueueSupplier;
+        this.workLog = workLog;
+        this.ackAfterFlush = ackAfterFlush;
     }
 
     @Override
     public void handleMessage(Map<String, Object> messageHeaders, byte[] messageBody) {
+        handleMessage(messageHeaders, false);
+    }
+
+    /**
+     * If the processing is acknowledged after the flush, the message is only acknowledged once the batch
+     * containing its work item was sent to the indexing server and it is requeued if that failed.
+     */
+    @Override
+    public CompletionStage<Void> handleMessageAsync(Map<String, Object> messageHeaders, byte[] messageBody) {
+        if (!ackAfterFlush) {
+            return MessageHandler.super.handleMessageAsync(messageHeaders, messageBody);
+        }
+        try {
+            return handleMessage(messageHeaders, true);
+        } catch (Exception e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private CompletableFuture<Void> handleMessage(Map<String, Object> messageHeaders, boolean trackProcessing) {
         if (messageHeaders == null) {
-            return; // won't be able to figure out what to do anyway
+            return CompletableFuture.completedFuture(null); // won't be able to figure out what to do anyway
         }
         LOG.debug("Processing request {}", messageHeaders);
         IndexingMessageType action = IndexingMessageType.valueOf(MessagingUtils.getHeaderAsString(messageHeaders, IndexingMessageHeaders.TYPE));
         switch (action) {
             case ADD_ANCESTOR:
-                handleAddAncestor(messageHeaders);
-                break;
+                return handleAddAncestor(messageHeaders, trackProcessing);
             case DELETE_DOC:
-                handleDeleteDoc(messageHeaders);
-                break;
+                return handleDeleteDoc(messageHeaders, trackProcessing);
             case UPDATE_DOC:
-                handleUpdateDoc(messageHeaders);
-                break;
+                return handleUpdateDoc(messageHeaders, trackProcessing);
+            default:
+                return CompletableFuture.completedFuture(null);
         }
     }
 
@@ -52,34 +85,85 @@ public class IndexingHandler implements MessageHandler {
         LOG.error("Canceled message for {}", routingTag);
     }
 
-    private void handleAddAncestor(Map<String, Object> messageHeaders) {
+    private CompletableFuture<Void> handleAddAncestor(Map<String, Object> messageHeaders, boolean trackProcessing) {
         Long objectId = MessagingUtils.getHeaderAsLong(messageHeaders, IndexingMessageHeaders.OBJECT_ID);
         Long ancestorId =  MessagingUtils.getHeaderAsLong(messageHeaders, IndexingMessageHeaders.ANCESTOR_ID);
-        // map descendants to the ancestor and only add the ancestor to its descendants after the work delay
-        synchronized (docDescendantsToAdd) {
-            LOG.debug("Queue add ancestor {} to {}", ancestorId, objectId);
-            DedupedDelayQueue<Long> docDescendants;
-            if (docDescendantsToAdd.get(ancestorId) == null) {
-                docDescendants = docDescendantsQueueSupplier.apply(ancestorId);
-            } else {
-                docDescendants = docDescendantsToAdd.get(ancestorId);
-            }
-            docDescendants.addWorkItem(objectId);
+        if (objectId == null || ancestorId == null) {
+            return CompletableFuture.completedFuture(null);
         }
+        LOG.debug("Queue add ancestor {} to {}", ancestorId, objectId);
+        Supplier<CompletableFuture<Void>> enqueue = () -> enqueueAddAncestorToDoc(ancestorId, objectId, trackProcessing);
+        return workLog != null ? workLog.logAddAncestorToDoc(ancestorId, objectId, enqueue) : enqueue.get();
     }
 
-    private void handleDeleteDoc(Map<String, Object> messageHeaders) {
+    private CompletableFuture<Void> handleDeleteDoc(Map<String, Object> messageHeaders, boolean trackProcessing) {
         Long objectId = MessagingUtils.getHeaderAsLong(messageHeaders, IndexingMessageHeaders.OBJECT_ID);
+        if (objectId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
         LOG.debug("Queue delete {}", objectId);
-        docIdsToRemove.addWorkItem(objectId);
+        Supplier<CompletableFuture<Void>> enqueue = () -> enqueueRemoveDoc(objectId, trackProcessing);
+        return workLog != null ? workLog.logRemoveDoc(objectId, enqueue) : enqueue.get();
     }
 
-    private void handleUpdateDoc(Map<String, Object> messageHeaders) {
+    private CompletableFuture<Void> handleUpdateDoc(Map<String, Object> messageHeaders, boolean trackProcessing) {
         Long objectId = MessagingUtils.getHeaderAsLong(messageHeaders, IndexingMessageHeaders.OBJECT_ID);
-        if (objectId != null) {
-            String objectClass = MessagingUtils.getHeaderAsString(messageHeaders, IndexingMessageHeaders.OBJECT_CLASS);
-            LOG.debug("Queue update {}:{}", objectClass, objectId);
-            docsToIndex.addWorkItem(Reference.createFor(objectClass, objectId));
+        if (objectId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String objectClass = MessagingUtils.getHeaderAsString(messageHeaders, IndexingMessageHeaders.OBJECT_CLASS);
+        LOG.debug("Queue update {}:{}", objectClass, objectId);
+        Reference docReference = Reference.createFor(objectClass, objectId);
+        Supplier<CompletableFuture<Void>> enqueue = () -> enqueueIndexDoc(docReference, trackProcessing);
+        return workLog != null ? workLog.logIndexDoc(docReference, enqueue) : enqueue.get();
+    }
+
+    private CompletableFuture<Void> enqueueIndexDoc(Reference docReference, boolean trackProcessing) {
+        // record the request first so that a flush that takes the item sees it as the latest request
+        documentStates.indexRequested(docReference.getTargetId(), docIdsToRemove.containsWorkItem(docReference.getTargetId()));
+        if (trackProcessing) {
+            return docsToIndex.addTrackedWorkItem(docReference);
+        } else {
+            docsToIndex.addWorkItem(docReference);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private CompletableFuture<Void> enqueueRemoveDoc(long docId, boolean trackProcessing) {
+        documentStates.removeRequested(docId, docsToIndex.containsWorkItemId(docId));
+        if (trackProcessing) {
+            return docIdsToRemove.addTrackedWorkItem(docId);
+        } else {
+            docIdsToRemove.addWorkItem(docId);
+            return CompletableFuture.completedFuture(null);
         }
     }
+
+    private CompletableFuture<Void> enqueueAddAncestorToDoc(long ancestorId, long docId, boolean trackProcessing) {
+        // map descendants to the ancestor and only add the ancestor to its descendants after the work delay
+        synchronized (docDescendantsToAdd) {
+            LongDedupedDelayQueue docDescendants = docDescendantsToAdd.computeIfAbsent(ancestorId, docDescendantsQueueSupplier);
+            if (trackProcessing) {
+                return docDescendants.addTrackedWorkItem(docId);
+            } else {
+                docDescendants.addWorkItem(docId);
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+    }
+
+    @Override
+    public void indexDoc(Reference docReference) {
+        enqueueIndexDoc(docReference, false);
+    }
+
+    @Override
+    public void removeDoc(long docId) {
+        enqueueRemoveDoc(docId, false);
+    }
+
+    @Override
+    public void addAncestorToDoc(long ancestorId, long docId) {
+        enqueueAddAncestorToDoc(ancestorId, docId, false);
+    }
 }
@@ -1,13 +1,19 @@
 package org.janelia.messaging.broker.indexingadapter;
 
 import java.util.List;
+import java.util.Map;
 
 import org.janelia.model.domain.Reference;
 
 interface IndexingService {
     void indexDocReferences(List<Reference> docReferences);
 
-    void remmoveDocIds(List<Long> docIds);
+    void remmoveDocIds(long[] docIds);
 
-    void addAncestorToDocs(Long ancestorId, List<Long> docIds);
+    void addAncestorToDocs(Long ancestorId, long[] docIds);
+
+    /**
+     * Add several ancestors to their descendants in a single request.
+     */
+    void addAncestorsToDocs(Map<Long, long[]> ancestorDocs);
 }
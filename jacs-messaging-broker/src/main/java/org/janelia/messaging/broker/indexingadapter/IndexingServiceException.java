@@ -0,0 +1,41 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+/**
+ * Failure of a request to the indexing server. A retryable failure is caused by the server or the connection and
+ * the same request may succeed later. A failure that is not retryable means that the server rejected the request,
+ * usually because of one of the documents in it, so it will fail again as long as that document is in the batch.
+ */
+class IndexingServiceException extends RuntimeException {
+    private final int status;
+    private final boolean retryable;
+
+    IndexingServiceException(String message, int status) {
+        super(message);
+        this.status = status;
+        this.retryable = isRetryableStatus(status);
+    }
+
+    IndexingServiceException(String message, Throwable cause) {
+        super(message, cause);
+        this.status = 0;
+        this.retryable = true;
+    }
+
+    /**
+     * @return the HTTP status of the response or 0 if there was no response
+     */
+    int getStatus() {
+        return status;
+    }
+
+    boolean isRetryable() {
+        return retryable;
+    }
+
+    /**
+     * Server errors, timeouts, throttling and authorization errors do not depend on the content of the request.
+     */
+    static boolean isRetryableStatus(int status) {
+        return status >= 500 || status == 401 || status == 403 || status == 407 || status == 408 || status == 429;
+    }
+}
@@ -0,0 +1,366 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.janelia.model.domain.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only log of the indexing work items so that the items that were received but not yet sent to the indexing
+ * server survive a broker restart. The records are written as the items are queued and they are synced to disk
+ * in groups, either when enough records are waiting or by the periodic sync. The log is replayed on startup
+ * and every flush that processed items truncates it to the items that are still pending, so a replay does not send
+ * the processed items again.
+ * <p>
+ * A record is its length, the record type, the payload and the CRC32 of the type and payload. Replay stops at the
+ * first incomplete or corrupted record, which can only be at the end of the log after a crash.
+ */
+class IndexingWorkLog {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexingWorkLog.class);
+
+    private static final byte INDEX_DOC = 1;
+    private static final byte REMOVE_DOC = 2;
+    private static final byte ADD_ANCESTOR = 3;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    /**
+     * Receives the work items read from the log or the pending items written to the compacted log.
+     */
+    interface WorkItemConsumer {
+        void indexDoc(Reference docReference);
+
+        void removeDoc(long docId);
+
+        void addAncestorToDoc(long ancestorId, long docId);
+    }
+
+    private final Path logPath;
+    private final long compactionSize;
+    private final int syncBatchSize;
+    // appending work items shares the lock, compaction takes it exclusively so no item is queued while the
+    // pending items are written to the compacted log
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+    private final CRC32 crc = new CRC32();
+    private FileOutputStream logFileStream;
+    private DataOutputStream logStream;
+    private long logSize;
+    private int unsyncedRecords;
+
+    IndexingWorkLog(Path logPath, long compactionSize, int syncBatchSize) {
+        this.logPath = logPath;
+        this.compactionSize = compactionSize;
+        this.syncBatchSize = syncBatchSize > 0 ? syncBatchSize : 1;
+    }
+
+    /**
+     * Replay the log and open it for appending. The valid records are copied to a new log so that appending
+     * does not continue after a corrupted tail.
+     * @return the number of work items replayed
+     */
+    synchronized long open(WorkItemConsumer workItemConsumer) throws IOException {
+        long[] replayedItems = {0};
+        Path compactedPath = writeCompactedLog(logWriter -> {
+            if (!Files.exists(logPath)) {
+                return;
+            }
+            WorkItemConsumer replayConsumer = new WorkItemConsumer() {
+                @Override
+                public void indexDoc(Reference docReference) {
+                    logWriter.indexDoc(docReference);
+                    workItemConsumer.indexDoc(docReference);
+                }
+
+                @Override
+                public void removeDoc(long docId) {
+                    logWriter.removeDoc(docId);
+                    workItemConsumer.removeDoc(docId);
+                }
+
+                @Override
+                public void addAncestorToDoc(long ancestorId, long docId) {
+                    logWriter.addAncestorToDoc(ancestorId, docId);
+                    workItemConsumer.addAncestorToDoc(ancestorId, docId);
+                }
+            };
+            try (DataInputStream logInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+                while (readRecord(logInput, replayConsumer)) {
+                    replayedItems[0]++;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        Files.move(compactedPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openLogStream();
+        LOG.info("Replayed {} indexing work items from {}", replayedItems[0], logPath);
+        return replayedItems[0];
+    }
+
+    <R> R logIndexDoc(Reference docReference, Supplier<R> enqueue) {
+        return logWorkItem(enqueue, () -> writeIndexDoc(docReference));
+    }
+
+    <R> R logRemoveDoc(long docId, Supplier<R> enqueue) {
+        return logWorkItem(enqueue, () -> writeRemoveDoc(docId));
+    }
+
+    <R> R logAddAncestorToDoc(long ancestorId, long docId, Supplier<R> enqueue) {
+        return logWorkItem(enqueue, () -> writeAddAncestor(ancestorId, docId));
+    }
+
+    /**
+     * Append the work item to the log and queue it. The record is written first so that the item cannot be processed
+     * and truncated from the log before its record is written, which would leave a record of finished work behind.
+     * @return the result of queueing the work item
+     */
+    private <R> R logWorkItem(Supplier<R> enqueue, IOAction writePayload) {
+        compactionLock.readLock().lock();
+        try {
+            synchronized (this) {
+                try {
+                    writePayload.run();
+                    logSize += writeRecord(logStream);
+                    unsyncedRecords++;
+                    if (unsyncedRecords >= syncBatchSize) {
+                        syncLog();
+                    }
+                } catch (IOException e) {
+                    // the item is queued anyway, it is only at risk if the broker stops before it is processed
+                    LOG.error("Error writing indexing work item to {}", logPath, e);
+                }
+            }
+            return enqueue.get();
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sync all records appended so far to disk.
+     */
+    synchronized void sync() {
+        try {
+            syncLog();
+        } catch (IOException e) {
+            LOG.error("Error syncing {}", logPath, e);
+        }
+    }
+
+    /**
+     * Truncate the log to the items that are still pending after a flush that processed items, or compact it if it
+     * grew larger than the compaction size, e.g. with duplicates while the indexing server is down. This must not run
+     * while items taken from the queues are being processed because these are not pending any more.
+     *
+     * @param processedItems number of items the flush processed or parked
+     * @param pendingItems writes all items still waiting in the queues to the given consumer
+     */
+    void flushCompleted(int processedItems, Consumer<WorkItemConsumer> pendingItems) {
+        synchronized (this) {
+            if (logSize == 0 || processedItems == 0 && logSize < compactionSize) {
+                return;
+            }
+        }
+        compactionLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                long previousLogSize = logSize;
+                closeLogStream();
+                Path compactedPath = writeCompactedLog(pendingItems);
+                Files.move(compactedPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                openLogStream();
+                LOG.debug("Truncated {} from {} to {} bytes", logPath, previousLogSize, logSize);
+            }
+        } catch (Exception e) {
+            LOG.error("Error truncating {}", logPath, e);
+            synchronized (this) {
+                if (logStream == null) {
+                    try {
+                        openLogStream();
+                    } catch (IOException re) {
+                        LOG.error("Error reopening {}", logPath, re);
+                    }
+                }
+            }
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    synchronized void close() {
+        try {
+            closeLogStream();
+        } catch (IOException e) {
+            LOG.error("Error closing {}", logPath, e);
+        }
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * Write the work items to a new log next to the current one, which is left untouched.
+     * @return the path of the new log
+     */
+    private Path writeCompactedLog(Consumer<WorkItemConsumer> workItems) throws IOException {
+        Path compactedPath = logPath.resolveSibling(logPath.getFileName() + ".compacted");
+        try (FileOutputStream compactedFileStream = new FileOutputStream(compactedPath.toFile());
+             DataOutputStream compactedStream = new DataOutputStream(new BufferedOutputStream(compactedFileStream))) {
+            workItems.accept(new WorkItemConsumer() {
+                @Override
+                public void indexDoc(Reference docReference) {
+                    writeUnchecked(compactedStream, () -> writeIndexDoc(docReference));
+                }
+
+                @Override
+                public void removeDoc(long docId) {
+                    writeUnchecked(compactedStream, () -> writeRemoveDoc(docId));
+                }
+
+                @Override
+                public void addAncestorToDoc(long ancestorId, long docId) {
+                    writeUnchecked(compactedStream, () -> writeAddAncestor(ancestorId, docId));
+                }
+            });
+            compactedStream.flush();
+            compactedFileStream.getFD().sync();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return compactedPath;
+    }
+
+    private void writeUnchecked(DataOutputStream outputStream, IOAction writePayload) {
+        try {
+            writePayload.run();
+            writeRecord(outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeIndexDoc(Reference docReference) throws IOException {
+        recordOutput.writeByte(INDEX_DOC);
+        recordOutput.writeLong(docReference.getTargetId());
+        recordOutput.writeUTF(docReference.getTargetClassName());
+    }
+
+    private void writeRemoveDoc(long docId) throws IOException {
+        recordOutput.writeByte(REMOVE_DOC);
+        recordOutput.writeLong(docId);
+    }
+
+    private void writeAddAncestor(long ancestorId, long docId) throws IOException {
+        recordOutput.writeByte(ADD_ANCESTOR);
+        recordOutput.writeLong(ancestorId);
+        recordOutput.writeLong(docId);
+    }
+
+    /**
+     * Frame the record from the record buffer and write it to the given stream.
+     * @return the number of bytes written
+     */
+    private int writeRecord(DataOutputStream outputStream) throws IOException {
+        try {
+            if (outputStream == null) {
+                throw new IOException(logPath + " is not open");
+            }
+            crc.reset();
+            crc.update(recordBuffer.toByteArray(), 0, recordBuffer.size());
+            outputStream.writeInt(recordBuffer.size());
+            recordBuffer.writeTo(outputStream);
+            outputStream.writeInt((int) crc.getValue());
+            return recordBuffer.size() + 8;
+        } finally {
+            recordBuffer.reset();
+        }
+    }
+
+    private boolean readRecord(DataInputStream logInput, WorkItemConsumer workItemConsumer) throws IOException {
+        byte[] record;
+        try {
+            int recordLength = logInput.readInt();
+            if (recordLength <= 0 || recordLength > MAX_RECORD_LENGTH) {
+                LOG.warn("Invalid record length {} in {} - ignore the rest of the log", recordLength, logPath);
+                return false;
+            }
+            record = new byte[recordLength];
+            logInput.readFully(record);
+            int recordCrc = logInput.readInt();
+            crc.reset();
+            crc.update(record, 0, record.length);
+            if ((int) crc.getValue() != recordCrc) {
+                LOG.warn("Corrupted record in {} - ignore the rest of the log", logPath);
+                return false;
+            }
+        } catch (EOFException e) {
+            // end of the log or a record that was only partially written
+            return false;
+        }
+        try (DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte recordType = recordInput.readByte();
+            switch (recordType) {
+                case INDEX_DOC:
+                    long docId = recordInput.readLong();
+                    workItemConsumer.indexDoc(Reference.createFor(recordInput.readUTF(), docId));
+                    break;
+                case REMOVE_DOC:
+                    workItemConsumer.removeDoc(recordInput.readLong());
+                    break;
+                case ADD_ANCESTOR:
+                    workItemConsumer.addAncestorToDoc(recordInput.readLong(), recordInput.readLong());
+                    break;
+                default:
+                    LOG.warn("Unknown record type {} in {}", recordType, logPath);
+            }
+        }
+        return true;
+    }
+
+    private void openLogStream() throws IOException {
+        logFileStream = new FileOutputStream(logPath.toFile(), true);
+        logStream = new DataOutputStream(new BufferedOutputStream(logFileStream));
+        logSize = Files.size(logPath);
+        unsyncedRecords = 0;
+    }
+
+    private void syncLog() throws IOException {
+        if (logStream != null && unsyncedRecords > 0) {
+            logStream.flush();
+            logFileStream.getFD().sync();
+            unsyncedRecords = 0;
+        }
+    }
+
+    private void closeLogStream() throws IOException {
+        if (logStream != null) {
+            try {
+                syncLog();
+                logStream.close();
+            } finally {
+                logStream = null;
+                logFileStream = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+
+/**
+ * {@link DeadlineBucketIndex} specialized for primitive longs. The waiting values are deduplicated with an
+ * open addressing long set and each deadline bucket keeps its values in a plain long array, so a waiting value
+ * costs a few array slots instead of a boxed Long and its map and queue entries. Only the tracked values
+ * have a map entry for their future.
+ */
+class LongDeadlineBucketIndex {
+    private static final int INITIAL_BUCKET_CAPACITY = 64;
+
+    private final LongOpenHashSet index = new LongOpenHashSet();
+    private final DeadlineBuckets<LongBucket> buckets;
+    private final Map<Long, CompletableFuture<Void>> trackers = new HashMap<>();
+
+    private static class LongBucket {
+        long[] values = new long[INITIAL_BUCKET_CAPACITY];
+        int head;
+        int tail;
+
+        void add(long value) {
+            if (tail == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[tail++] = value;
+        }
+
+        boolean isEmpty() {
+            return head == tail;
+        }
+
+        int size() {
+            return tail - head;
+        }
+    }
+
+    LongDeadlineBucketIndex(long bucketWidthInMillis) {
+        this.buckets = new DeadlineBuckets<>(bucketWidthInMillis, LongBucket::new);
+    }
+
+    /**
+     * Add the value unless it is already waiting.
+     *
+     * @param deadline time in milliseconds after which the value can be drained
+     * @return true if the value was added
+     */
+    synchronized boolean add(long value, long deadline) {
+        if (!index.add(value)) {
+            return false;
+        }
+        buckets.bucketOf(deadline).add(value);
+        return true;
+    }
+
+    /**
+     * Add the value unless it is already waiting and track it.
+     *
+     * @param deadline time in milliseconds after which the value can be drained
+     * @return the future shared by all the additions of the value while it waits
+     */
+    synchronized CompletableFuture<Void> addTracked(long value, long deadline) {
+        add(value, deadline);
+        return trackers.computeIfAbsent(value, k -> new CompletableFuture<>());
+    }
+
+    /**
+     * Remove up to maxValues expired values, oldest first. The empty expiredTrackers list receives the future
+     * of each expired value, or null for a value that is not tracked, and it stays empty if none of the expired
+     * values is tracked.
+     *
+     * @return the expired values, possibly an empty array
+     */
+    synchronized long[] drainExpired(long now, int maxValues, List<CompletableFuture<Void>> expiredTrackers) {
+        long[] expired = new long[Math.min(maxValues, index.size())];
+        int drained = 0;
+        while (drained < expired.length) {
+            LongBucket bucket = buckets.firstExpired(now);
+            if (bucket == null) {
+                break;
+            }
+            int n = Math.min(expired.length - drained, bucket.tail - bucket.head);
+            System.arraycopy(bucket.values, bucket.head, expired, drained, n);
+            for (int i = 0; i < n; i++) {
+                long value = bucket.values[bucket.head + i];
+                index.remove(value);
+                if (!trackers.isEmpty()) {
+                    CompletableFuture<Void> tracker = trackers.remove(value);
+                    if (tracker != null) {
+                        while (expiredTrackers.size() < drained + i) {
+                            expiredTrackers.add(null);
+                        }
+                        expiredTrackers.add(tracker);
+                    }
+                }
+            }
+            bucket.head += n;
+            drained += n;
+            if (bucket.isEmpty()) {
+                buckets.removeFirst();
+            }
+        }
+        while (!expiredTrackers.isEmpty() && expiredTrackers.size() < drained) {
+            expiredTrackers.add(null);
+        }
+        return drained == expired.length ? expired : Arrays.copyOf(expired, drained);
+    }
+
+    synchronized boolean contains(long value) {
+        return index.contains(value);
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * @return the number of values that can be drained at the given time
+     */
+    synchronized int expiredSize(long now) {
+        return buckets.countExpired(now, LongBucket::size);
+    }
+
+    synchronized void forEach(LongConsumer action) {
+        index.forEach(action);
+    }
+}
@@ -0,0 +1,88 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+
+/**
+ * {@link DedupedDelayQueue} for primitive long IDs. The IDs are kept unboxed while they wait and they are
+ * handed out for processing as long arrays.
+ */
+abstract class LongDedupedDelayQueue extends AbstractDedupedDelayQueue<long[]> {
+
+    private final LongDeadlineBucketIndex delayed = new LongDeadlineBucketIndex(DEADLINE_BUCKET_WIDTH);
+
+    /**
+     * Add a work item to the queue for processing at some later time.
+     * @param workItem
+     */
+    void addWorkItem(long workItem) {
+        delayed.add(workItem, nextDeadline());
+    }
+
+    /**
+     * Add a work item to the queue and track its processing.
+     * @param workItem
+     * @return a future that completes when the batch containing the item was processed or that fails if
+     * processing the batch failed
+     */
+    CompletableFuture<Void> addTrackedWorkItem(long workItem) {
+        return delayed.addTracked(workItem, nextDeadline());
+    }
+
+    boolean containsWorkItem(long workItem) {
+        return delayed.contains(workItem);
+    }
+
+    @Override
+    void retryWorkItems(long[] workItems, long deadline) {
+        // an item that was added again in the meantime is already waiting
+        for (long workItem : workItems) {
+            delayed.add(workItem, deadline);
+        }
+    }
+
+    @Override
+    int getQueueSize() {
+        return delayed.size();
+    }
+
+    @Override
+    int getExpiredQueueSize() {
+        return delayed.expiredSize(System.currentTimeMillis());
+    }
+
+    /**
+     * Visit the work items waiting in the queue.
+     * @param action
+     */
+    void forEachWorkItem(LongConsumer action) {
+        delayed.forEach(action);
+    }
+
+    @Override
+    long[] drainExpired(long now, int maxItems, List<CompletableFuture<Void>> trackers) {
+        return delayed.drainExpired(now, maxItems, trackers);
+    }
+
+    @Override
+    int batchSize(long[] workItems) {
+        return workItems.length;
+    }
+
+    @Override
+    long[] sliceBatch(long[] workItems, int from, int to) {
+        return Arrays.copyOfRange(workItems, from, to);
+    }
+
+    @Override
+    Object batchItemAt(long[] workItems, int index) {
+        return workItems[index];
+    }
+
+    @Override
+    String formatBatch(long[] workItems) {
+        return Arrays.toString(workItems);
+    }
+}
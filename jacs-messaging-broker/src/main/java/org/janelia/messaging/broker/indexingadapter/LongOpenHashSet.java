@@ -0,0 +1,151 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Set of primitive longs using open addressing with linear probing so that the values are stored without boxing
+ * in a single array. Removal shifts the following entries back so no tombstones are left behind. Not thread safe.
+ */
+class LongOpenHashSet {
+    private static final long FREE = 0L;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] slots;
+    private int size;
+    // the free marker cannot be stored in the slots so its presence is tracked separately
+    private boolean containsFree;
+
+    LongOpenHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    LongOpenHashSet(int expectedSize) {
+        slots = new long[capacityFor(expectedSize)];
+    }
+
+    boolean add(long value) {
+        if (value == FREE) {
+            if (containsFree) {
+                return false;
+            }
+            containsFree = true;
+            size++;
+            return true;
+        }
+        int mask = slots.length - 1;
+        int slot = hash(value) & mask;
+        while (slots[slot] != FREE) {
+            if (slots[slot] == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = value;
+        size++;
+        // keep the load factor under 1/2
+        if (2 * size > slots.length) {
+            resize(slots.length * 2);
+        }
+        return true;
+    }
+
+    boolean contains(long value) {
+        if (value == FREE) {
+            return containsFree;
+        }
+        int mask = slots.length - 1;
+        int slot = hash(value) & mask;
+        while (slots[slot] != FREE) {
+            if (slots[slot] == value) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    boolean remove(long value) {
+        if (value == FREE) {
+            if (!containsFree) {
+                return false;
+            }
+            containsFree = false;
+            size--;
+            return true;
+        }
+        int mask = slots.length - 1;
+        int slot = hash(value) & mask;
+        while (slots[slot] != value) {
+            if (slots[slot] == FREE) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // shift back the entries of the probe sequence that follows the removed slot
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (slots[next] != FREE) {
+            int home = hash(slots[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                slots[gap] = slots[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[gap] = FREE;
+        size--;
+        // shrink the table once it gets mostly empty so a burst does not hold on to the memory
+        if (slots.length > MIN_CAPACITY && 8 * size < slots.length) {
+            resize(slots.length / 2);
+        }
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void forEach(LongConsumer action) {
+        if (containsFree) {
+            action.accept(FREE);
+        }
+        for (long value : slots) {
+            if (value != FREE) {
+                action.accept(value);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldSlots = slots;
+        slots = new long[capacity];
+        int mask = capacity - 1;
+        for (long value : oldSlots) {
+            if (value != FREE) {
+                int slot = hash(value) & mask;
+                while (slots[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = value;
+            }
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(long value) {
+        // mix the bits because the IDs often share the low order bits
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
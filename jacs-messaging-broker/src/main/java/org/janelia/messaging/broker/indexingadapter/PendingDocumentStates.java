@@ -0,0 +1,152 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.janelia.model.domain.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latest pending operation of the documents waiting to be indexed and removed. A document may wait in both
+ * the index and the remove queues and the queues are flushed independently, so before a batch is sent the items
+ * superseded by a later operation on the same document are dropped: a removal cancels a pending index and an index
+ * after a removal revives the document. A state is only recorded once a document is requested while it waits
+ * in the other queue, so the documents that wait in a single queue cost nothing, and it is cleared once
+ * the document does not wait in any of the queues.
+ */
+class PendingDocumentStates {
+    private static final Logger LOG = LoggerFactory.getLogger(PendingDocumentStates.class);
+
+    private static class PendingState {
+        // sequence of the latest index and remove requests, 0 if there was none
+        final long indexSequence;
+        final long removeSequence;
+        // whether the document still waits in the index and remove queues
+        final boolean indexQueued;
+        final boolean removeQueued;
+
+        PendingState(long indexSequence, long removeSequence, boolean indexQueued, boolean removeQueued) {
+            this.indexSequence = indexSequence;
+            this.removeSequence = removeSequence;
+            this.indexQueued = indexQueued;
+            this.removeQueued = removeQueued;
+        }
+    }
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentMap<Long, PendingState> states = new ConcurrentHashMap<>();
+
+    /**
+     * Record an index request that must be called before the document is added to the index queue.
+     *
+     * @param removeQueued whether the document waits in the remove queue
+     */
+    void indexRequested(long docId, boolean removeQueued) {
+        if (!removeQueued && !hasState(docId)) {
+            return;
+        }
+        states.compute(docId, (k, state) -> state == null
+                ? new PendingState(sequence.incrementAndGet(), 0, true, removeQueued)
+                : new PendingState(sequence.incrementAndGet(), state.removeSequence, true, state.removeQueued || removeQueued));
+    }
+
+    /**
+     * Record a remove request that must be called before the document is added to the remove queue.
+     *
+     * @param indexQueued whether the document waits in the index queue
+     */
+    void removeRequested(long docId, boolean indexQueued) {
+        if (!indexQueued && !hasState(docId)) {
+            return;
+        }
+        states.compute(docId, (k, state) -> state == null
+                ? new PendingState(0, sequence.incrementAndGet(), indexQueued, true)
+                : new PendingState(state.indexSequence, sequence.incrementAndGet(), state.indexQueued || indexQueued, true));
+    }
+
+    boolean isIndexSuperseded(long docId) {
+        PendingState state = states.isEmpty() ? null : states.get(docId);
+        return state != null && state.removeSequence > state.indexSequence;
+    }
+
+    boolean isRemoveSuperseded(long docId) {
+        PendingState state = states.isEmpty() ? null : states.get(docId);
+        return state != null && state.indexSequence > state.removeSequence;
+    }
+
+    /**
+     * @return the sequence of the latest operation requested so far, to be passed to the completion of the batch
+     */
+    long currentSequence() {
+        return sequence.get();
+    }
+
+    List<Reference> withoutSupersededIndexing(List<Reference> docReferences) {
+        List<Reference> indexedDocReferences = docReferences.stream()
+                .filter(docReference -> !isIndexSuperseded(docReference.getTargetId()))
+                .collect(Collectors.toList());
+        if (indexedDocReferences.size() < docReferences.size()) {
+            LOG.info("Skip indexing {} documents that were removed afterwards", docReferences.size() - indexedDocReferences.size());
+        }
+        return indexedDocReferences;
+    }
+
+    long[] withoutSupersededRemovals(long[] docIds) {
+        long[] removedDocIds = Arrays.stream(docIds)
+                .filter(docId -> !isRemoveSuperseded(docId))
+                .toArray();
+        if (removedDocIds.length < docIds.length) {
+            LOG.info("Skip removing {} documents that were updated afterwards", docIds.length - removedDocIds.length);
+        }
+        return removedDocIds;
+    }
+
+    /**
+     * Mark the documents as no longer waiting to be indexed unless they were requested again after the given sequence.
+     */
+    void indexingCompleted(List<Reference> docReferences, long batchSequence) {
+        if (states.isEmpty()) {
+            return;
+        }
+        docReferences.forEach(docReference -> states.computeIfPresent(docReference.getTargetId(), (k, state) ->
+                state.indexSequence > batchSequence
+                        ? state
+                        : pendingOrNull(new PendingState(state.indexSequence, state.removeSequence, false, state.removeQueued))));
+    }
+
+    /**
+     * Mark the documents as no longer waiting to be removed unless they were requested again after the given sequence.
+     */
+    void removalsCompleted(long[] docIds, long batchSequence) {
+        if (states.isEmpty()) {
+            return;
+        }
+        for (long docId : docIds) {
+            states.computeIfPresent(docId, (k, state) ->
+                    state.removeSequence > batchSequence
+                            ? state
+                            : pendingOrNull(new PendingState(state.indexSequence, state.removeSequence, state.indexQueued, false)));
+        }
+    }
+
+    int size() {
+        return states.size();
+    }
+
+    private boolean hasState(long docId) {
+        return !states.isEmpty() && states.containsKey(docId);
+    }
+
+    /**
+     * The state is only kept while the document waits in one of the queues, until then it is still needed
+     * to tell whether the waiting item was superseded.
+     */
+    private static PendingState pendingOrNull(PendingState state) {
+        return state.indexQueued || state.removeQueued ? state : null;
+    }
+}
@@ -1,17 +1,26 @@
 package org.janelia.messaging.broker.indexingadapter;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.janelia.messaging.broker.AbstractRestClient;
+import org.janelia.messaging.broker.RestClientConfig;
 import org.janelia.model.domain.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Indexing service backed by the indexing REST API. A request that fails throws an {@link IndexingServiceException}
+ * so that the batch is retried.
+ */
 class RestIndexingService extends AbstractRestClient implements IndexingService {
 
     private static final Logger LOG = LoggerFactory.getLogger(RestIndexingService.class);
@@ -19,47 +28,66 @@ class RestIndexingService extends AbstractRestClient implements IndexingService
 
     private final WebTarget endpointTarget;
 
-    RestIndexingService(String serverURL, String apiKey) {
-        super(serverURL, apiKey);
+    RestIndexingService(String serverURL, String apiKey, RestClientConfig restClientConfig) {
+        super(serverURL, apiKey, restClientConfig);
         endpointTarget = serverTarget.path(INDEXING_ENDPOINT_PATH);
     }
 
     @Override
     public void indexDocReferences(List<Reference> docReferences) {
-        Response response = createRequestWithCredentials(endpointTarget)
-                .post(Entity.entity(docReferences, MediaType.APPLICATION_JSON_TYPE));
-        if (isErrorResponse(endpointTarget.getUri(), response)) {
-            LOG.error("Errors occurred while indexing {} documents", docReferences.size());
-        } else {
-            LOG.info("Successfully indexed {} documents", docReferences.size());
-        }
-        response.close();
+        invoke(endpointTarget,
+                () -> createRequestWithCredentials(endpointTarget)
+                        .post(Entity.entity(docReferences, MediaType.APPLICATION_JSON_TYPE)),
+                "indexing " + docReferences.size() + " documents");
+        LOG.info("Successfully indexed {} documents", docReferences.size());
     }
 
     @Override
-    public void remmoveDocIds(List<Long> docIds) {
+    public void remmoveDocIds(long[] docIds) {
         WebTarget target = endpointTarget.path("docsToRemove");
-        Response response = createRequestWithCredentials(target)
-                .post(Entity.entity(docIds, MediaType.APPLICATION_JSON_TYPE));
-        if (isErrorResponse(target.getUri(), response)) {
-            LOG.error("Errors occurred while removing {} documents", docIds.size());
-        } else {
-            LOG.info("Successfully removed {}", docIds);
-        }
-        response.close();
+        invoke(target,
+                () -> createRequestWithCredentials(target)
+                        .post(Entity.entity(docIds, MediaType.APPLICATION_JSON_TYPE)),
+                "removing " + docIds.length + " documents");
+        LOG.info("Successfully removed {}", Arrays.toString(docIds));
     }
 
     @Override
-    public void addAncestorToDocs(Long ancestorId, List<Long> docIds) {
+    public void addAncestorToDocs(Long ancestorId, long[] docIds) {
         WebTarget target = endpointTarget.path(ancestorId.toString()).path("descendants");
-        Response response = createRequestWithCredentials(target)
-                .put(Entity.entity(docIds, MediaType.APPLICATION_JSON_TYPE));
-        if (isErrorResponse(target.getUri(), response)) {
-            LOG.error("Errors occurred while adding ancestor {} to {}", ancestorId, docIds);
-        } else {
-            LOG.info("Successfully added ancestor {} to {}", ancestorId, docIds);
+        invoke(target,
+                () -> createRequestWithCredentials(target)
+                        .put(Entity.entity(docIds, MediaType.APPLICATION_JSON_TYPE)),
+                "adding ancestor " + ancestorId + " to " + docIds.length + " documents");
+        LOG.info("Successfully added ancestor {} to {}", ancestorId, Arrays.toString(docIds));
+    }
+
+    @Override
+    public void addAncestorsToDocs(Map<Long, long[]> ancestorDocs) {
+        WebTarget target = endpointTarget.path("descendants");
+        invoke(target,
+                () -> createRequestWithCredentials(target)
+                        .put(Entity.entity(ancestorDocs, MediaType.APPLICATION_JSON_TYPE)),
+                "adding ancestors " + ancestorDocs.keySet() + " to their descendants");
+        LOG.info("Successfully added ancestors {} to their descendants", ancestorDocs.keySet());
+    }
+
+    private void invoke(WebTarget target, Supplier<Response> request, String operation) {
+        Response response;
+        try {
+            response = request.get();
+        } catch (ProcessingException e) {
+            LOG.error("Error {}", operation, e);
+            throw new IndexingServiceException("Error " + operation + ": " + e.getMessage(), e);
+        }
+        try {
+            if (isErrorResponse(target.getUri(), response)) {
+                LOG.error("Errors occurred while {}", operation);
+                throw new IndexingServiceException("Error " + operation + ": status " + response.getStatus(), response.getStatus());
+            }
+        } finally {
+            response.close();
         }
-        response.close();
     }
 
 }
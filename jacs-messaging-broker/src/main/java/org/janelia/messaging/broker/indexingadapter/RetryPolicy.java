@@ -0,0 +1,111 @@
+package org.janelia.messaging.broker.indexingadapter;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how failed indexing batches are retried. A batch that failed because of the server or the connection is
+ * put back and all queues sharing the policy back off exponentially, with jitter, until a batch succeeds again,
+ * so an outage of the indexing server does not turn into a retry loop. A batch that the server rejected is split
+ * to isolate the documents that cause the rejection, and a document that is still rejected on its own after the
+ * max attempts is parked as a dead letter. The extra requests for splitting are limited by a retry budget that
+ * grows with the batches sent, so retries cannot crowd out the live traffic.
+ */
+class RetryPolicy {
+    // the budget can hold enough retries to isolate a few documents in a large batch
+    private static final double MAX_RETRY_TOKENS = 100;
+
+    private final int maxAttempts;
+    private final long initialBackoffInMillis;
+    private final long maxBackoffInMillis;
+    private final double retryBudgetRatio;
+
+    private double retryTokens = MAX_RETRY_TOKENS;
+    private int consecutiveFailures;
+    private long retryNotBefore;
+    // metrics
+    private long retries;
+    private long deniedRetries;
+
+    /**
+     * @param maxAttempts attempts of a rejected document before it is parked
+     * @param initialBackoffInMillis backoff after the first failure
+     * @param maxBackoffInMillis upper limit of the backoff
+     * @param retryBudgetRatio retries allowed per batch sent
+     */
+    RetryPolicy(int maxAttempts, long initialBackoffInMillis, long maxBackoffInMillis, double retryBudgetRatio) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffInMillis = Math.max(1, initialBackoffInMillis);
+        this.maxBackoffInMillis = Math.max(this.initialBackoffInMillis, maxBackoffInMillis);
+        this.retryBudgetRatio = Math.max(0, retryBudgetRatio);
+    }
+
+    /**
+     * A failure is retryable unless the indexing server rejected the request.
+     */
+    boolean isRetryable(Throwable error) {
+        return !(error instanceof IndexingServiceException) || ((IndexingServiceException) error).isRetryable();
+    }
+
+    boolean isExhausted(int attempts) {
+        return attempts >= maxAttempts;
+    }
+
+    /**
+     * @param failures number of consecutive failures, starting at 1
+     * @return a random backoff between half and all of the exponential backoff for the given failures
+     */
+    long getBackoffInMillis(int failures) {
+        int exponent = Math.min(Math.max(failures, 1) - 1, 30);
+        long backoff = Math.min(maxBackoffInMillis, initialBackoffInMillis << exponent);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * @return the time left until the indexing server should be tried again, 0 if it can be tried now
+     */
+    synchronized long getRemainingBackoffInMillis() {
+        return Math.max(0, retryNotBefore - System.currentTimeMillis());
+    }
+
+    /**
+     * Record a retryable failure and start backing off.
+     * @return the backoff in milliseconds
+     */
+    synchronized long requestFailed() {
+        consecutiveFailures++;
+        long backoff = getBackoffInMillis(consecutiveFailures);
+        retryNotBefore = System.currentTimeMillis() + backoff;
+        return backoff;
+    }
+
+    synchronized void requestSucceeded() {
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Record a batch sent for the first time, which adds to the retry budget.
+     */
+    synchronized void batchSent() {
+        retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + retryBudgetRatio);
+    }
+
+    /**
+     * @return true if the retry budget allows another request for a failed batch
+     */
+    synchronized boolean tryAcquireRetry() {
+        if (retryTokens >= 1) {
+            retryTokens--;
+            retries++;
+            return true;
+        } else {
+            deniedRetries++;
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d consecutive failures, %d retries, %d denied by the retry budget",
+                consecutiveFailures, retries, deniedRetries);
+    }
+}
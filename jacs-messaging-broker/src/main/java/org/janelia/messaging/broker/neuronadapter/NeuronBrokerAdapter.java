@@ -1,13 +1,24 @@
 package org.janelia.messaging.broker.neuronadapter;
 
+import java.util.concurrent.TimeUnit;
+
 import org.janelia.messaging.broker.BrokerAdapter;
 import org.janelia.messaging.broker.BrokerAdapterArgs;
+import org.janelia.messaging.broker.OrderedDispatchMessageHandler;
+import org.janelia.messaging.broker.RestClientConfig;
 import org.janelia.messaging.core.MessageConnection;
 import org.janelia.messaging.core.MessageHandler;
 import org.janelia.messaging.core.MessageSender;
 import org.janelia.messaging.core.impl.MessageSenderImpl;
+import org.janelia.messaging.utils.MessagingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class NeuronBrokerAdapter extends BrokerAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(NeuronBrokerAdapter.class);
+    private static final int DEFAULT_PERSISTENCE_THREADS = 1;
+    private static final int DEFAULT_PERSISTENCE_LANE_CAPACITY = 1000;
+    private static final long LANE_DRAIN_TIMEOUT_IN_SECONDS = 60;
 
     final String persistenceServer;
     final String sharedSpaceOwner;
@@ -30,15 +41,71 @@ public class NeuronBrokerAdapter extends BrokerAdapter {
                 adapterArgs.getErrorResponseExchange(),
                 adapterArgs.getErrorResponseRouting());
 
-        MessageHandler.HandlerCallback successCallback = ((messageHeaders, messageBody) -> replySuccessSender.sendMessage(messageHeaders, messageBody));
+        MessageHandler.HandlerCallback successCallback = ((messageHeaders, messageBody) -> replySuccessSender.sendMessageWithConfirmation(messageHeaders, messageBody)
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        LOG.error("Broadcast refresh {} was not confirmed by the messaging server", messageHeaders, error);
+                    }
+                }));
         MessageHandler.HandlerCallback errorCallback = successCallback.andThen(((messageHeaders, messageBody) -> replyErrorSender.sendMessage(messageHeaders, messageBody)));
 
-        return new PersistNeuronHandler(
-                new TiledMicroscopeDomainMgr(persistenceServer, adapterArgs.getAdapterConfig("persistenceApiKey")),
+        TiledMicroscopeDomainMgr domainMgr = new TiledMicroscopeDomainMgr(persistenceServer, adapterArgs.getAdapterConfig("persistenceApiKey"),
+                RestClientConfig.fromAdapterArgs(adapterArgs));
+        int persistenceThreads = Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("persistenceThreads",
+                String.valueOf(DEFAULT_PERSISTENCE_THREADS)).trim());
+        long saveCoalescingWindowInMillis = Long.parseLong(adapterArgs.getAdapterConfigOrDefault("saveCoalescingWindowInMillis", "0").trim());
+        NeuronSaveCoalescer saveCoalescer;
+        if (saveCoalescingWindowInMillis > 0) {
+            LOG.info("Coalesce neuron saves within {}ms", saveCoalescingWindowInMillis);
+            saveCoalescer = new NeuronSaveCoalescer(domainMgr, saveCoalescingWindowInMillis, persistenceThreads);
+        } else {
+            saveCoalescer = null;
+        }
+        PersistNeuronHandler persistNeuronHandler = new PersistNeuronHandler(
+                domainMgr,
                 sharedSpaceOwner,
                 successCallback,
-                errorCallback
+                errorCallback,
+                saveCoalescer
         );
+        OrderedDispatchMessageHandler orderedDispatchHandler;
+        if (persistenceThreads > 1) {
+            // a message may refer to several neurons of a workspace so all messages for the same workspace
+            // are persisted in order by the same lane
+            orderedDispatchHandler = new OrderedDispatchMessageHandler(
+                    adapterArgs.getAdapterName(),
+                    persistNeuronHandler,
+                    messageHeaders -> MessagingUtils.getHeaderAsString(messageHeaders, NeuronMessageHeaders.WORKSPACE),
+                    persistenceThreads,
+                    Integer.parseInt(adapterArgs.getAdapterConfigOrDefault("persistenceLaneCapacity",
+                            String.valueOf(DEFAULT_PERSISTENCE_LANE_CAPACITY)).trim()));
+        } else {
+            orderedDispatchHandler = null;
+        }
+        if (orderedDispatchHandler != null || saveCoalescer != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(orderedDispatchHandler, saveCoalescer)));
+        }
+        return orderedDispatchHandler != null ? orderedDispatchHandler : persistNeuronHandler;
+    }
+
+    /**
+     * Handle the messages still queued in the lanes before persisting the saves that are still pending,
+     * since the queued messages may submit more saves to the coalescer.
+     */
+    private void shutdown(OrderedDispatchMessageHandler orderedDispatchHandler, NeuronSaveCoalescer saveCoalescer) {
+        if (orderedDispatchHandler != null) {
+            try {
+                if (!orderedDispatchHandler.shutdownAndDrain(LANE_DRAIN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS)) {
+                    LOG.warn("Not all queued messages were handled within {}s", LANE_DRAIN_TIMEOUT_IN_SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while waiting for the queued messages to be handled", e);
+            }
+        }
+        if (saveCoalescer != null) {
+            saveCoalescer.shutdown();
+        }
     }
 
 }
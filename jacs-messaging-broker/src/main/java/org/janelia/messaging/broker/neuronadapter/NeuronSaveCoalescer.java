@@ -0,0 +1,169 @@
+package org.janelia.messaging.broker.neuronadapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces the saves of an existing neuron that arrive within a short window so that only the newest
+ * version of the neuron is persisted (last writer wins). The saves are persisted asynchronously but saves
+ * for the same neuron are chained so that a version is only sent after the previous one completed.
+ */
+class NeuronSaveCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(NeuronSaveCoalescer.class);
+
+    private static class PendingSave {
+        private final TmNeuronMetadata neuron;
+        private final String user;
+        private final Consumer<TmNeuronMetadata> onPersisted;
+        private final Consumer<Exception> onError;
+
+        private PendingSave(TmNeuronMetadata neuron, String user, Consumer<TmNeuronMetadata> onPersisted, Consumer<Exception> onError) {
+            this.neuron = neuron;
+            this.user = user;
+            this.onPersisted = onPersisted;
+            this.onError = onError;
+        }
+    }
+
+    private static class NeuronSlot {
+        // all fields are guarded by the map's compute methods
+        private PendingSave latest;
+        private boolean scheduled;
+        // completes when the last version sent for this neuron has been persisted
+        private CompletableFuture<Void> lastPersisted = CompletableFuture.completedFuture(null);
+    }
+
+    private final TiledMicroscopeDomainMgr domainMgr;
+    private final long windowInMillis;
+    private final ConcurrentMap<Long, NeuronSlot> neuronSlots;
+    private final ScheduledExecutorService flushScheduler;
+    private final AtomicLong submittedSaves = new AtomicLong();
+    private final AtomicLong persistedSaves = new AtomicLong();
+
+    NeuronSaveCoalescer(TiledMicroscopeDomainMgr domainMgr, long windowInMillis, int flushThreads) {
+        this.domainMgr = domainMgr;
+        this.windowInMillis = windowInMillis;
+        this.neuronSlots = new ConcurrentHashMap<>();
+        this.flushScheduler = Executors.newScheduledThreadPool(flushThreads > 0 ? flushThreads : 1,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("neuron-save-coalescer-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Submit the neuron for saving. If a save for the same neuron is already pending it is replaced by this one
+     * and neither of the replaced save's callbacks is ever invoked.
+     *
+     * @param neuron neuron to be saved - it must have an id
+     * @param user subject key used for saving the neuron
+     * @param onPersisted invoked with the persisted neuron once this version of the neuron was saved
+     * @param onError invoked if this version of the neuron fails to persist
+     */
+    void submit(TmNeuronMetadata neuron, String user, Consumer<TmNeuronMetadata> onPersisted, Consumer<Exception> onError) {
+        Long neuronId = neuron.getId();
+        PendingSave save = new PendingSave(neuron, user, onPersisted, onError);
+        boolean[] scheduleFlush = new boolean[] {false};
+        neuronSlots.compute(neuronId, (k, slot) -> {
+            NeuronSlot neuronSlot = slot == null ? new NeuronSlot() : slot;
+            neuronSlot.latest = save;
+            if (!neuronSlot.scheduled) {
+                neuronSlot.scheduled = true;
+                scheduleFlush[0] = true;
+            }
+            return neuronSlot;
+        });
+        submittedSaves.incrementAndGet();
+        if (scheduleFlush[0]) {
+            flushScheduler.schedule(() -> flush(neuronId), windowInMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send the pending save for the given neuron, if there is one, right away.
+     *
+     * @return a future that completes once all the versions of the neuron sent so far have been persisted -
+     * a caller about to make any other change to the neuron, such as a delete or an ownership change, must wait for it
+     */
+    CompletableFuture<Void> flush(Long neuronId) {
+        if (neuronId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Void>[] persistedHolder = new CompletableFuture[] {CompletableFuture.completedFuture(null)};
+        neuronSlots.computeIfPresent(neuronId, (k, slot) -> {
+            PendingSave save = slot.latest;
+            slot.latest = null;
+            slot.scheduled = false;
+            if (save != null) {
+                // never persist from within compute since the request may block on the in-flight limit
+                slot.lastPersisted = slot.lastPersisted.thenComposeAsync(ignored -> persist(save), flushScheduler);
+            }
+            persistedHolder[0] = slot.lastPersisted;
+            return slot;
+        });
+        CompletableFuture<Void> persisted = persistedHolder[0];
+        // release the slot once everything was persisted unless another save arrived in the meantime
+        persisted.whenComplete((result, error) -> neuronSlots.computeIfPresent(neuronId,
+                (k, slot) -> slot.latest == null && !slot.scheduled && slot.lastPersisted.isDone() ? null : slot));
+        return persisted;
+    }
+
+    /**
+     * Persist all pending saves and wait until they complete.
+     */
+    void flushAll() {
+        List<Long> neuronIds = new ArrayList<>(neuronSlots.keySet());
+        CompletableFuture.allOf(neuronIds.stream().map(this::flush).toArray(CompletableFuture[]::new)).join();
+    }
+
+    void shutdown() {
+        flushAll();
+        flushScheduler.shutdown();
+        LOG.info("Neuron save coalescer persisted {} out of {} submitted saves", persistedSaves.get(), submittedSaves.get());
+    }
+
+    /**
+     * @return a future that always completes normally so that the following versions of the neuron can be persisted
+     */
+    private CompletableFuture<Void> persist(PendingSave save) {
+        CompletableFuture<TmNeuronMetadata> persistedNeuron;
+        try {
+            persistedNeuron = domainMgr.saveMetadataAsync(save.neuron, save.user);
+        } catch (Exception e) {
+            persistedNeuron = new CompletableFuture<>();
+            persistedNeuron.completeExceptionally(e);
+        }
+        return persistedNeuron.handle((neuron, error) -> {
+            if (error == null) {
+                persistedSaves.incrementAndGet();
+                LOG.info("Persisted neuron {}", neuron);
+                try {
+                    save.onPersisted.accept(neuron);
+                } catch (Exception e) {
+                    LOG.error("Error notifying that neuron {} was persisted", neuron, e);
+                }
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                LOG.error("Error persisting neuron {} by {}", save.neuron, save.user, cause);
+                save.onError.accept(cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause));
+            }
+            return null;
+        });
+    }
+}
@@ -1,9 +1,12 @@
 package org.janelia.messaging.broker.neuronadapter;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -16,6 +19,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import org.apache.commons.lang3.StringUtils;
+import org.janelia.messaging.broker.AbstractRestClient.BulkItemResult;
 import org.janelia.messaging.core.MessageHandler;
 import org.janelia.messaging.utils.MessagingUtils;
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
@@ -29,16 +33,30 @@ class PersistNeuronHandler implements MessageHandler {
     private final String sharedWorkspaceSystemOwner;
     private final HandlerCallback successCallback;
     private final HandlerCallback errorCallback;
+    private final NeuronSaveCoalescer saveCoalescer;
     private final ObjectMapper objectMapper;
 
     PersistNeuronHandler(TiledMicroscopeDomainMgr domainMgr,
                          @Nonnull String sharedWorkspaceSystemOwner,
                          HandlerCallback successCallback,
                          HandlerCallback errorCallback) {
+        this(domainMgr, sharedWorkspaceSystemOwner, successCallback, errorCallback, null);
+    }
+
+    /**
+     * @param saveCoalescer if not null the saves of existing neurons are coalesced and persisted asynchronously
+     *                      and only the versions that were persisted are broadcast
+     */
+    PersistNeuronHandler(TiledMicroscopeDomainMgr domainMgr,
+                         @Nonnull String sharedWorkspaceSystemOwner,
+                         HandlerCallback successCallback,
+                         HandlerCallback errorCallback,
+                         NeuronSaveCoalescer saveCoalescer) {
         this.domainMgr = domainMgr;
         this.sharedWorkspaceSystemOwner = sharedWorkspaceSystemOwner;
         this.successCallback = successCallback;
         this.errorCallback = errorCallback;
+        this.saveCoalescer = saveCoalescer;
         this.objectMapper = new ObjectMapper();
     }
 
@@ -63,6 +81,10 @@ class PersistNeuronHandler implements MessageHandler {
                 // log error but don't abort.. it's not the end of the world if logging is down for some reason.
                 LOG.error ("Problem with logging tracing operations.",e);
             }
+            if (saveCoalescer != null && action != NeuronMessageType.NEURON_SAVE_NEURONDATA) {
+                // any other change to the neuron must see the latest saved version
+                flushPendingSaves(messageHeaders, neuronMetadata);
+            }
             switch (action) {
                 case NEURON_DELETE:
                     handleDeleteNeuron(messageHeaders, neuronMetadata, user, neuron -> successCallback.callback(messageHeaders, messageBody));
@@ -74,14 +96,19 @@ class PersistNeuronHandler implements MessageHandler {
                         LOG.warn("User {} attempt to save neuron {} owned by {}", user, neuronMetadata, neuronMetadata.getOwnerKey());
                         return;
                     }
-                    handleSaveNeuron(messageHeaders, neuronMetadata, user, neuron -> {
+                    Consumer<TmNeuronMetadata> broadcastRefresh = neuron -> {
                         try {
                             LOG.info("Sending out broadcast refresh for persisted neuron with body {}", neuron);
                             successCallback.callback(messageHeaders, objectMapper.writeValueAsBytes(neuron));
                         } catch (Exception e) {
                             throw new IllegalStateException(e);
                         }
-                    });
+                    };
+                    if (saveCoalescer != null && action == NeuronMessageType.NEURON_SAVE_NEURONDATA && neuronMetadata.getId() != null) {
+                        handleCoalescedSaveNeuron(messageHeaders, neuronMetadata, user, broadcastRefresh);
+                    } else {
+                        handleSaveNeuron(messageHeaders, neuronMetadata, user, broadcastRefresh);
+                    }
                     break;
                 case REQUEST_NEURON_ASSIGNMENT:
                     handleReassignNeuron(messageHeaders, neuronMetadata, user, (neuron) -> {
@@ -205,6 +232,28 @@ class PersistNeuronHandler implements MessageHandler {
         }
     }
 
+    private void handleCoalescedSaveNeuron(Map<String, Object> msgHeaders,
+                                           TmNeuronMetadata neuronMetadata,
+                                           String user,
+                                           Consumer<TmNeuronMetadata> onPersisted) {
+        saveCoalescer.submit(neuronMetadata, user, onPersisted,
+                e -> fireErrorMessage(msgHeaders, "Problems persisting neuron data: " + e.getMessage()));
+    }
+
+    private void flushPendingSaves(Map<String, Object> msgHeaders, TmNeuronMetadata neuronMetadata) {
+        saveCoalescer.flush(neuronMetadata.getId()).join();
+        String neuronIds = MessagingUtils.getHeaderAsString(msgHeaders, NeuronMessageHeaders.NEURONIDS);
+        if (StringUtils.isNotBlank(neuronIds)) {
+            Splitter.on(',').trimResults()
+                    .omitEmptyStrings()
+                    .splitToList(neuronIds.replaceAll("\\[", "").replaceAll("]", ""))
+                    .stream()
+                    .filter(StringUtils::isNumeric)
+                    .map(Long::valueOf)
+                    .forEach(neuronId -> saveCoalescer.flush(neuronId).join());
+        }
+    }
+
     private void handleReassignNeuron(Map<String, Object> msgHeaders,
                                       TmNeuronMetadata neuronMetadata,
                                       String user,
@@ -234,6 +283,34 @@ class PersistNeuronHandler implements MessageHandler {
         }
     }
 
+    /**
+     * Update the owner of all neurons. Multiple neurons are saved with a single bulk request. The persisted neurons
+     * are returned in the order of the given neurons; an error is sent for each neuron that could not be saved
+     * and its place in the returned list is null.
+     */
+    private List<TmNeuronMetadata> updateOwnership(Map<String, Object> msgHeaders, List<TmNeuronMetadata> neurons, String user) {
+        if (neurons.isEmpty()) {
+            return Collections.emptyList();
+        } else if (neurons.size() == 1) {
+            return Collections.singletonList(updateOwnership(neurons.get(0), user));
+        }
+        neurons.forEach(neuron -> neuron.setOwnerKey(user));
+        LOG.info("Saving ownership change for {} neurons", neurons.size());
+        List<BulkItemResult<TmNeuronMetadata>> results = domainMgr.saveMetadata(neurons, user);
+        List<TmNeuronMetadata> persistedNeurons = new ArrayList<>(neurons.size());
+        for (int i = 0; i < neurons.size(); i++) {
+            BulkItemResult<TmNeuronMetadata> result = results.get(i);
+            if (result.isSuccess()) {
+                persistedNeurons.add(result.getResult());
+            } else {
+                LOG.error("Error saving ownership change of neuron {} for {}", neurons.get(i).getId(), user, result.getError());
+                fireErrorMessage(msgHeaders, "Problems saving ownership change of neuron " + neurons.get(i).getId() + ": " + result.getError().getMessage());
+                persistedNeurons.add(null);
+            }
+        }
+        return persistedNeurons;
+    }
+
     private void handleOwnershipDecision(Map<String, Object> msgHeaders, String user, BiConsumer<TmNeuronMetadata, Boolean> onSuccess) {
         try {
             List<String> neuronIdList;
@@ -247,14 +324,14 @@ class PersistNeuronHandler implements MessageHandler {
             if (!neuronIdList.isEmpty()) {
                 boolean decision = Boolean.parseBoolean(
                         MessagingUtils.getHeaderAsString(msgHeaders, NeuronMessageHeaders.DECISION));
-                domainMgr.retrieve(workspaceId, neuronIdList, user)
-                        .forEach(neuron -> {
-                            if (decision) {
-                                onSuccess.accept(updateOwnership(neuron, user), true);
-                            } else {
-                                onSuccess.accept(neuron, false);
-                            }
-                        });
+                List<TmNeuronMetadata> neurons = domainMgr.retrieve(workspaceId, neuronIdList, user);
+                if (decision) {
+                    updateOwnership(msgHeaders, neurons, user).stream()
+                            .filter(Objects::nonNull)
+                            .forEach(neuron -> onSuccess.accept(neuron, true));
+                } else {
+                    neurons.forEach(neuron -> onSuccess.accept(neuron, false));
+                }
             }
         } catch (Exception e) {
             LOG.error("Error processing ownership decision {}", msgHeaders, e);
@@ -276,14 +353,26 @@ class PersistNeuronHandler implements MessageHandler {
             }
             if (!neuronIdList.isEmpty()) {
                 LOG.info("Retrieving neuron for ownership change {}",neuronIds);
-                domainMgr.retrieve(workspaceId,neuronIdList, user)
-                        .forEach(neuron -> {
+                List<TmNeuronMetadata> neurons = domainMgr.retrieve(workspaceId,neuronIdList, user);
+                // neurons owned by the system user are all transferred to the requester in one go
+                List<TmNeuronMetadata> systemNeurons = neurons.stream()
+                        .filter(neuron -> sharedWorkspaceSystemOwner.equals(neuron.getOwnerKey()))
+                        .collect(Collectors.toList());
+                List<TmNeuronMetadata> updatedSystemNeurons = updateOwnership(msgHeaders, systemNeurons, user);
+                // a system neuron that could not be saved is mapped to null and the error was already sent
+                Map<TmNeuronMetadata, TmNeuronMetadata> persistedSystemNeurons = new IdentityHashMap<>();
+                for (int i = 0; i < systemNeurons.size(); i++) {
+                    persistedSystemNeurons.put(systemNeurons.get(i), updatedSystemNeurons.get(i));
+                }
+                neurons.forEach(neuron -> {
                             LOG.info("Starting loop for ownership change {}",neuron.getId());
-                            if (neuron.getOwnerKey() != null) {
-                                if (neuron.getOwnerKey().equals(sharedWorkspaceSystemOwner)) {
-                                    LOG.info("Mouselight neuron {}",neuron.getId());
-                                    onSuccess.accept(updateOwnership(neuron, user), true); // this neuron is owned by the system user so update the owner
-                                } else if (neuron.getOwnerKey().equals(user)) {
+                            if (persistedSystemNeurons.containsKey(neuron)) {
+                                LOG.info("Mouselight neuron {}",neuron.getId());
+                                if (persistedSystemNeurons.get(neuron) != null) {
+                                    onSuccess.accept(persistedSystemNeurons.get(neuron), true); // this neuron was owned by the system user so the owner was updated
+                                }
+                            } else if (neuron.getOwnerKey() != null) {
+                                if (neuron.getOwnerKey().equals(user)) {
                                     LOG.info("Already own this neuron {}",neuron.getId());
                                     onSuccess.accept(neuron, true); // this neuron is already owned by this user
                                 } else {
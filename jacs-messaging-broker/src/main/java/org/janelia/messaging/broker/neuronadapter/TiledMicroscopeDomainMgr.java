@@ -1,8 +1,14 @@
 package org.janelia.messaging.broker.neuronadapter;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
+import org.janelia.messaging.broker.AbstractRestClient.BulkItemResult;
+import org.janelia.messaging.broker.RestClientConfig;
 import org.janelia.messaging.tools.persistence.DomainMgr;
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
 import org.janelia.model.domain.tiledMicroscope.TmSample;
@@ -19,7 +25,11 @@ public class TiledMicroscopeDomainMgr implements DomainMgr {
     private final TiledMicroscopeRestClient client;
 
     public TiledMicroscopeDomainMgr(String remoteUrl, String apiKey) {
-        client = new TiledMicroscopeRestClient(remoteUrl, apiKey);
+        this(remoteUrl, apiKey, new RestClientConfig());
+    }
+
+    public TiledMicroscopeDomainMgr(String remoteUrl, String apiKey, RestClientConfig restClientConfig) {
+        client = new TiledMicroscopeRestClient(remoteUrl, apiKey, restClientConfig);
     }
 
     @Override
@@ -45,6 +55,37 @@ public class TiledMicroscopeDomainMgr implements DomainMgr {
         return savedMetadata;
     }
 
+    /**
+     * Save the neuron without blocking the caller.
+     */
+    CompletableFuture<TmNeuronMetadata> saveMetadataAsync(TmNeuronMetadata neuronMetadata, String subjectKey) {
+        log.debug("saveAsync({})", neuronMetadata);
+        if (neuronMetadata.getId() == null) {
+            return client.createAsync(neuronMetadata, subjectKey);
+        } else {
+            return client.updateAsync(neuronMetadata, subjectKey);
+        }
+    }
+
+    /**
+     * Save all neurons using as few requests as possible. The returned list contains the outcome of each neuron
+     * in the same order as the given list.
+     */
+    List<BulkItemResult<TmNeuronMetadata>> saveMetadata(List<TmNeuronMetadata> neuronsMetadata, String subjectKey) {
+        log.debug("save({} neurons)", neuronsMetadata.size());
+        List<TmNeuronMetadata> newNeurons = neuronsMetadata.stream().filter(n -> n.getId() == null).collect(Collectors.toList());
+        List<TmNeuronMetadata> existingNeurons = neuronsMetadata.stream().filter(n -> n.getId() != null).collect(Collectors.toList());
+        Iterator<BulkItemResult<TmNeuronMetadata>> createdNeurons = newNeurons.isEmpty()
+                ? Collections.emptyIterator()
+                : client.createAll(newNeurons, subjectKey).iterator();
+        Iterator<BulkItemResult<TmNeuronMetadata>> updatedNeurons = existingNeurons.isEmpty()
+                ? Collections.emptyIterator()
+                : client.updateAll(existingNeurons, subjectKey).iterator();
+        return neuronsMetadata.stream()
+                .map(n -> n.getId() == null ? createdNeurons.next() : updatedNeurons.next())
+                .collect(Collectors.toList());
+    }
+
     public List<TmNeuronMetadata> retrieve(String workspaceId, List<String> neuronIds, String subjectKey) {
         log.info("retrieve({})", neuronIds);
         List<TmNeuronMetadata> neuronMetadataList = client.getNeuronMetadata(workspaceId, neuronIds, subjectKey);
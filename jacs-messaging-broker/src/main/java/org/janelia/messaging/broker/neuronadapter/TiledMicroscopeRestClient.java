@@ -1,7 +1,9 @@
 package org.janelia.messaging.broker.neuronadapter;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
@@ -10,6 +12,7 @@ import javax.ws.rs.core.Response;
 
 import org.apache.commons.lang3.StringUtils;
 import org.janelia.messaging.broker.AbstractRestClient;
+import org.janelia.messaging.broker.RestClientConfig;
 import org.janelia.model.domain.dto.DomainQuery;
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
 import org.janelia.model.domain.tiledMicroscope.TmSample;
@@ -28,8 +31,8 @@ class TiledMicroscopeRestClient extends AbstractRestClient {
 
     private static final String REMOTE_MOUSELIGHT_DATA_PREFIX = "mouselight/data";
 
-    TiledMicroscopeRestClient(String remoteApiURL, String apiKey) {
-        super(remoteApiURL, apiKey);
+    TiledMicroscopeRestClient(String remoteApiURL, String apiKey, RestClientConfig restClientConfig) {
+        super(remoteApiURL, apiKey, restClientConfig);
     }
 
     private WebTarget getMouselightEndpoint(String suffix, String subjectKey) {
@@ -139,6 +142,32 @@ class TiledMicroscopeRestClient extends AbstractRestClient {
         return response.readEntity(TmNeuronMetadata.class);
     }
 
+    CompletableFuture<TmNeuronMetadata> createAsync(TmNeuronMetadata neuronMetadata, String subjectKey) {
+        DomainQuery query = new DomainQuery();
+        query.setDomainObject(neuronMetadata);
+        query.setSubjectKey(subjectKey);
+        WebTarget target =  getMouselightEndpoint("/workspace/neuron", subjectKey);
+        return invokeAsync(target.getUri(),
+                () -> target.request()
+                        .header("username", subjectKey)
+                        .rx()
+                        .put(Entity.json(query)),
+                response -> response.readEntity(TmNeuronMetadata.class));
+    }
+
+    CompletableFuture<TmNeuronMetadata> updateAsync(TmNeuronMetadata neuronMetadata, String subjectKey) {
+        DomainQuery query = new DomainQuery();
+        query.setDomainObject(neuronMetadata);
+        query.setSubjectKey(subjectKey);
+        WebTarget target = getMouselightEndpoint("/workspace/neuron", subjectKey);
+        return invokeAsync(target.getUri(),
+                () -> target.request()
+                        .header("username", subjectKey)
+                        .rx()
+                        .post(Entity.json(query)),
+                response -> response.readEntity(TmNeuronMetadata.class));
+    }
+
     void remove(TmNeuronMetadata neuronMetadata, String subjectKey) {
         WebTarget target = getMouselightEndpoint("/workspace/neuron", subjectKey)
                 .queryParam("workspaceId", neuronMetadata.getWorkspaceId())
@@ -154,4 +183,30 @@ class TiledMicroscopeRestClient extends AbstractRestClient {
         }
     }
 
+    /**
+     * Create all neurons with a single request to the bulk endpoint, if the server has one, otherwise one at a time.
+     * The results are in the order of the given neurons.
+     */
+    List<BulkItemResult<TmNeuronMetadata>> createAll(List<TmNeuronMetadata> neuronsMetadata, String subjectKey) {
+        return invokeBulk(getMouselightEndpoint("/workspace/neurons", subjectKey),
+                HttpMethod.PUT,
+                target -> target.request().header("username", subjectKey),
+                neuronsMetadata,
+                new GenericType<List<TmNeuronMetadata>>() {},
+                n -> create(n, subjectKey));
+    }
+
+    /**
+     * Update all neurons with a single request to the bulk endpoint, if the server has one, otherwise one at a time.
+     * The results are in the order of the given neurons.
+     */
+    List<BulkItemResult<TmNeuronMetadata>> updateAll(List<TmNeuronMetadata> neuronsMetadata, String subjectKey) {
+        return invokeBulk(getMouselightEndpoint("/workspace/neurons", subjectKey),
+                HttpMethod.POST,
+                target -> target.request().header("username", subjectKey),
+                neuronsMetadata,
+                new GenericType<List<TmNeuronMetadata>>() {},
+                n -> update(n, subjectKey));
+    }
+
 }
@@ -0,0 +1,110 @@
+package org.janelia.messaging.tools;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.janelia.messaging.core.GenericMessage;
+import org.janelia.messaging.core.impl.MessageConnectionImpl;
+import org.janelia.messaging.core.impl.MessageSenderImpl;
+import org.janelia.messaging.tools.backup.MessageBackupReader;
+import org.janelia.messaging.tools.replay.MessageReplayer;
+import org.janelia.messaging.tools.replay.ReplayMetrics;
+import org.janelia.messaging.tools.replay.ReplayMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class ArchiveReplayTool {
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveReplayTool.class);
+    private static final long REPORT_INTERVAL_IN_SECONDS = 10;
+
+    @Parameter(names = {"-ms"}, description = "Messaging server", required = true)
+    String messagingServer;
+    @Parameter(names = {"-u"}, description = "Messaging user")
+    String messagingUser;
+    @Parameter(names = {"-p"}, description = "Messaging password")
+    String messagingPassword;
+    @Parameter(names = {"-backupFile"}, description = "Backup files or archives replayed in the given order", required = true, variableArity = true)
+    List<String> backupFiles;
+    @Parameter(names = {"-exchange"}, description = "Exchange the messages are published to", required = true)
+    String exchange;
+    @Parameter(names = {"-routingKey"}, description = "Routing key used for publishing")
+    String routingKey = "";
+    @Parameter(names = {"-mode"}, description = "Replay mode: ORIGINAL timing, SPEED times faster or at a fixed RATE")
+    ReplayMode mode = ReplayMode.ORIGINAL;
+    @Parameter(names = {"-speed"}, description = "Speed factor for the SPEED mode")
+    double speed = 1;
+    @Parameter(names = {"-rate"}, description = "Messages per second for the RATE mode - 0 publishes as fast as possible")
+    double rate = 0;
+    @Parameter(names = {"-workspace"}, description = "Only replay the messages of this workspace")
+    Long workspaceId;
+    @Parameter(names = {"-maxInFlight"}, description = "Max number of messages waiting to be confirmed")
+    int maxInFlight = 1000;
+    @Parameter(names = {"-confirm"}, description = "If set the latency is measured until the messaging server confirms the message")
+    boolean publisherConfirms = false;
+    @Parameter(names = "-h", description = "Display help")
+    boolean usageRequested = false;
+
+    private ArchiveReplayTool() {
+    }
+
+    private boolean parseArgs(String[] args) {
+        JCommander cmdlineParser = new JCommander(this);
+        cmdlineParser.parse(args);
+        if (usageRequested) {
+            cmdlineParser.usage();
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    private void replay() {
+        MessageConnectionImpl messageConnection = new MessageConnectionImpl(Runtime.getRuntime().availableProcessors(), publisherConfirms);
+        ReplayMetrics metrics = new ReplayMetrics();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread reporterThread = new Thread(runnable, "replay-metrics");
+            reporterThread.setDaemon(true);
+            return reporterThread;
+        });
+        try {
+            messageConnection.openConnection(messagingServer, messagingUser, messagingPassword, 0);
+            MessageSenderImpl messageSender = new MessageSenderImpl(messageConnection);
+            messageSender.connectTo(exchange, routingKey);
+            MessageReplayer replayer = new MessageReplayer(messageSender, metrics)
+                    .setMode(mode)
+                    .setSpeed(speed)
+                    .setRate(rate)
+                    .setWorkspaceId(workspaceId)
+                    .setMaxInFlight(maxInFlight);
+            reporter.scheduleAtFixedRate(() -> LOG.info("Replay progress: {}", metrics),
+                    REPORT_INTERVAL_IN_SECONDS, REPORT_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+            for (String backupFile : backupFiles) {
+                LOG.info("Replay {} to {} with routing key '{}' in {} mode", backupFile, exchange, routingKey, mode);
+                try (Stream<GenericMessage> messages = MessageBackupReader.readBackup(Paths.get(backupFile))) {
+                    replayer.replay(messages);
+                }
+            }
+            System.out.println(metrics);
+        } catch (Exception e) {
+            LOG.error("Error replaying {} to {}", backupFiles, exchange, e);
+        } finally {
+            reporter.shutdownNow();
+            messageConnection.closeConnection();
+        }
+    }
+
+    public static void main(String[] args) {
+        ArchiveReplayTool archiveReplayTool = new ArchiveReplayTool();
+        if (archiveReplayTool.parseArgs(args)) {
+            archiveReplayTool.replay();
+        }
+        System.exit(0);
+    }
+
+}
@@ -2,14 +2,16 @@ package org.janelia.messaging.tools;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.StringUtils;
 import org.janelia.messaging.broker.neuronadapter.NeuronMessageHeaders;
+import org.janelia.messaging.core.GenericMessage;
+import org.janelia.messaging.tools.recovery.NeuronRecoveryEngine;
+import org.janelia.messaging.tools.recovery.NeuronVersion;
 import org.janelia.messaging.tools.swc.MatrixDrivenSWCExchanger;
 import org.janelia.messaging.tools.swc.SWCData;
 import org.janelia.messaging.tools.swc.SWCDataConverter;
+import org.janelia.messaging.utils.MessagingUtils;
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata;
 import org.janelia.model.domain.tiledMicroscope.TmProtobufExchanger;
 import org.slf4j.Logger;
@@ -17,10 +19,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Base64;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 public class NeuronRecoveryTool {
     private static final Logger LOG = LoggerFactory.getLogger(NeuronRecoveryTool.class);
@@ -29,8 +35,8 @@ public class NeuronRecoveryTool {
         LIST, LATEST, TIMESTAMP
     }
 
-    @Parameter(names = {"-backupFile"}, description = "Backup file", required = true)
-    String backupFile;
+    @Parameter(names = {"-backupFile"}, description = "Backup files or archives, from the oldest to the newest", required = true, variableArity = true)
+    List<String> backupFiles;
     @Parameter(names = {"-swcLocation"}, description = "SWC file location")
     String swcLocation;
     @Parameter(names = {"-ps", "-persistenceServer"}, description = "Persistence server")
@@ -39,8 +45,12 @@ public class NeuronRecoveryTool {
     Long workspaceId;
     @Parameter(names = {"-neuron"}, description = "Neuron name", required = true)
     String neuronName;
-    @Parameter(names = {"-action"}, description = "Action", required = true)
+    @Parameter(names = {"-action"}, description = "Action - LIST the versions by time, recover the LATEST version received or the version current at the TIMESTAMP", required = true)
     Action action;
+    @Parameter(names = {"-timestamp"}, description = "Recover the version current at this time for the TIMESTAMP action - milliseconds or yyyy-MM-ddTHH:mm:ss")
+    String timestamp;
+    @Parameter(names = {"-threads"}, description = "Number of backups scanned in parallel")
+    int threads = Runtime.getRuntime().availableProcessors();
     @Parameter(names = "-h", description = "Display help")
     boolean usageRequested = false;
 
@@ -60,51 +70,66 @@ public class NeuronRecoveryTool {
 
     private void recoverNeuron() {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonFactory factory = new JsonFactory();
-            JsonParser parser = factory.createParser(new File(backupFile));
-
-            JsonToken token = parser.nextToken();
-            if (token == null) {
-                throw new IllegalArgumentException("Invalid backup file");
-            }
-
-            List<TmNeuronMetadata> neuronList = new ArrayList<>();
-            List<byte[]> protoList = new ArrayList<>();
-            TmProtobufExchanger exchanger = new TmProtobufExchanger();
-            while (parser.nextToken() == JsonToken.START_OBJECT) {
-                Map message = mapper.readValue(parser, Map.class);
-                Map headers = (Map) message.get("headers");
-                if (headers != null && headers.get("workspace") != null &&
-                        ((Long) headers.get("workspace")).longValue() == workspaceId) {
-                    String metadata = (String) headers.get(NeuronMessageHeaders.METADATA);
-                    TmNeuronMetadata neuron = mapper.readValue(metadata, TmNeuronMetadata.class);
-                    if (neuron.getName().equals(neuronName)) {
-                        byte[] msgBody = Base64.getDecoder().decode((String) message.get("body"));
-                        protoList.add(msgBody);
-                        neuronList.add(neuron);
+            List<Path> backups = backupFiles.stream().map(Paths::get).collect(Collectors.toList());
+            NeuronRecoveryEngine recoveryEngine = new NeuronRecoveryEngine(backups, threads);
+            switch (action) {
+                case LIST:
+                    List<NeuronVersion> versions = recoveryEngine.listVersions(workspaceId, neuronName);
+                    versions.forEach(version -> System.out.println(
+                            (version.hasTimestamp() ? version.getTimestamp() + "\t" + new Date(version.getTimestamp()) : "-\t-") + "\t" +
+                            version.getNeuronIds() + "\t" +
+                            version.getSource()));
+                    LOG.info("Found {} versions of neuron {} from workspace {}", versions.size(), neuronName, workspaceId);
+                    break;
+                case LATEST:
+                    writeSWC(recoveryEngine, recoveryEngine.findLatest(workspaceId, neuronName));
+                    break;
+                case TIMESTAMP:
+                    if (StringUtils.isBlank(timestamp)) {
+                        LOG.error("The TIMESTAMP action requires a timestamp");
+                        return;
                     }
-                }
+                    writeSWC(recoveryEngine, recoveryEngine.findVersionAt(workspaceId, neuronName, parseTimestamp(timestamp)));
+                    break;
             }
-
-            if (action == Action.LATEST) {
-                TmNeuronMetadata neuron = neuronList.get(neuronList.size() - 1);
-                System.out.println(neuron.getName());
-                byte[] protoData = protoList.get(neuronList.size() - 1);
-                exchanger.deserializeNeuron(new ByteArrayInputStream(protoData), neuron);
-                SWCDataConverter converter = new SWCDataConverter();
-                MatrixDrivenSWCExchanger matrixCalcs = new MatrixDrivenSWCExchanger(workspaceId);
-                matrixCalcs.init(persistenceServer, neuron.getOwnerKey());
-                converter.setSWCExchanger(matrixCalcs);
-                SWCData swcData = converter.fromTmNeuron(neuron);
-                swcData.write(new File(swcLocation));
-            }
-
         } catch (Exception e) {
             LOG.error("Error running neuron recovery", e);
         }
     }
 
+    private void writeSWC(NeuronRecoveryEngine recoveryEngine, Optional<NeuronVersion> neuronVersion) throws Exception {
+        if (!neuronVersion.isPresent()) {
+            LOG.warn("No matching version of neuron {} from workspace {} found in {}", neuronName, workspaceId, backupFiles);
+            return;
+        }
+        LOG.info("Recover {}", neuronVersion.get());
+        GenericMessage message = recoveryEngine.readVersion(neuronVersion.get());
+        ObjectMapper mapper = new ObjectMapper();
+        TmProtobufExchanger exchanger = new TmProtobufExchanger();
+        TmNeuronMetadata neuron = mapper.readValue(
+                MessagingUtils.getHeaderAsString(message.getHeaders(), NeuronMessageHeaders.METADATA),
+                TmNeuronMetadata.class);
+        System.out.println(neuron.getName());
+        exchanger.deserializeNeuron(new ByteArrayInputStream(message.getBody()), neuron);
+        SWCDataConverter converter = new SWCDataConverter();
+        MatrixDrivenSWCExchanger matrixCalcs = new MatrixDrivenSWCExchanger(workspaceId);
+        matrixCalcs.init(persistenceServer, neuron.getOwnerKey());
+        converter.setSWCExchanger(matrixCalcs);
+        SWCData swcData = converter.fromTmNeuron(neuron);
+        swcData.write(new File(swcLocation));
+    }
+
+    /**
+     * @param timestamp milliseconds since the epoch or a local date and time such as 2019-05-21T14:30:00
+     */
+    private long parseTimestamp(String timestamp) {
+        if (StringUtils.isNumeric(timestamp)) {
+            return Long.parseLong(timestamp);
+        } else {
+            return LocalDateTime.parse(timestamp).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
     public static void main(String[] args) {
         NeuronRecoveryTool queueBackupToolTool = new NeuronRecoveryTool();
         if (queueBackupToolTool.parseArgs(args)) {
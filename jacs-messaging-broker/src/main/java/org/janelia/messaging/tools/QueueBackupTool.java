@@ -2,11 +2,13 @@ package org.janelia.messaging.tools;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
 import org.janelia.messaging.core.GenericMessage;
 import org.janelia.messaging.core.impl.BulkMessageConsumerImpl;
 import org.janelia.messaging.core.impl.MessageConnectionImpl;
+import org.janelia.messaging.tools.backup.BackupFormat;
+import org.janelia.messaging.tools.backup.MessageArchiveWriter;
+import org.janelia.messaging.tools.backup.MessageBackupWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,12 +17,12 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class QueueBackupTool {
     private static final Logger LOG = LoggerFactory.getLogger(QueueBackupTool.class);
     private static final int DEFAULT_CONNECT_RETRIES = 1;
+    private static final int DEFAULT_PREFETCH_COUNT = 1000;
 
     @Parameter(names = {"-ms"}, description = "Messaging server", required = true)
     String messagingServer;
@@ -32,6 +34,12 @@ public class QueueBackupTool {
     String queueName;
     @Parameter(names = {"-backupLocation"}, description = "Backup location")
     String backupLocation;
+    @Parameter(names = {"-drain"}, description = "If set the backed up messages are removed from the queue")
+    boolean drainQueue = false;
+    @Parameter(names = {"-prefetchCount"}, description = "Number of messages prefetched when draining the queue")
+    int prefetchCount = DEFAULT_PREFETCH_COUNT;
+    @Parameter(names = {"-format"}, description = "Backup format - an ARCHIVE backup requires a backup location")
+    BackupFormat backupFormat = BackupFormat.JSON;
     @Parameter(names = "-h", description = "Display help")
     boolean usageRequested = false;
 
@@ -50,6 +58,10 @@ public class QueueBackupTool {
     }
 
     private void backupQueue() {
+        if (backupFormat == BackupFormat.ARCHIVE && StringUtils.isBlank(backupLocation)) {
+            LOG.error("An archive backup requires a backup location");
+            return;
+        }
         try {
             if (StringUtils.isNotBlank(backupLocation)) {
                 Path backupLocationPath = Paths.get(backupLocation);
@@ -61,25 +73,32 @@ public class QueueBackupTool {
             messageConnection.openConnection(messagingServer, messagingUser, messagingPassword, 0);
 
             BulkMessageConsumerImpl messageConsumer = new BulkMessageConsumerImpl(messageConnection);
-            messageConsumer.setAutoAck(false);
+            // only a drain can stream the messages with a prefetch window, otherwise they are peeked one at a time
+            messageConsumer.setAutoAck(drainQueue);
+            messageConsumer.setPrefetchCount(prefetchCount);
             messageConsumer.connectTo(queueName);
 
-            List<GenericMessage> messageList = messageConsumer.retrieveMessages().collect(Collectors.toList());
-            LOG.info("Retrieved {} messages to backup at {}", messageList.size(), backupLocation);
-
-            ObjectMapper mapper = new ObjectMapper();
-            OutputStream backupStream;
-            if (StringUtils.isNotBlank(backupLocation)) {
-                backupStream = new FileOutputStream(backupLocation);
+            if (backupFormat == BackupFormat.ARCHIVE) {
+                try (MessageArchiveWriter archiveWriter = new MessageArchiveWriter(Paths.get(backupLocation));
+                     Stream<GenericMessage> messages = messageConsumer.retrieveMessages()) {
+                    long messageCount = archiveWriter.writeAll(messages);
+                    LOG.info("Finished archiving {} from queue {} ", messageCount, queueName);
+                }
             } else {
-                backupStream = System.out;
-            }
-            try {
-                mapper.writeValue(backupStream, messageList);
-                LOG.info("Finished retrieving {} from queue {} ", messageList.size(), queueName);
-            } finally {
+                OutputStream backupStream;
                 if (StringUtils.isNotBlank(backupLocation)) {
-                    backupStream.close();
+                    backupStream = new FileOutputStream(backupLocation);
+                } else {
+                    backupStream = System.out;
+                }
+                try (MessageBackupWriter backupWriter = new MessageBackupWriter(backupStream);
+                     Stream<GenericMessage> messages = messageConsumer.retrieveMessages()) {
+                    long messageCount = backupWriter.writeAll(messages);
+                    LOG.info("Finished retrieving {} from queue {} ", messageCount, queueName);
+                } finally {
+                    if (StringUtils.isNotBlank(backupLocation)) {
+                        backupStream.close();
+                    }
                 }
             }
             messageConnection.closeConnection();
@@ -0,0 +1,79 @@
+package org.janelia.messaging.tools.backup;
+
+import java.nio.file.Path;
+
+/**
+ * Location of an archived message together with the header fields needed to select it
+ * without reading the message itself.
+ */
+public class ArchiveIndexEntry {
+    private final Path segment;
+    private final Long workspaceId;
+    private final String neuronIds;
+    private final String neuronName;
+    private final long timestamp;
+    private final long blockOffset;
+    private final int recordOffset;
+
+    ArchiveIndexEntry(Path segment, Long workspaceId, String neuronIds, String neuronName,
+                      long timestamp, long blockOffset, int recordOffset) {
+        this.segment = segment;
+        this.workspaceId = workspaceId;
+        this.neuronIds = neuronIds;
+        this.neuronName = neuronName;
+        this.timestamp = timestamp;
+        this.blockOffset = blockOffset;
+        this.recordOffset = recordOffset;
+    }
+
+    public Path getSegment() {
+        return segment;
+    }
+
+    public Long getWorkspaceId() {
+        return workspaceId;
+    }
+
+    public String getNeuronIds() {
+        return neuronIds;
+    }
+
+    public String getNeuronName() {
+        return neuronName;
+    }
+
+    /**
+     * @return the message timestamp header in milliseconds, only meaningful if {@link #hasTimestamp()}
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return false if the message had no timestamp header
+     */
+    public boolean hasTimestamp() {
+        return timestamp != MessageArchiveFormat.NO_TIMESTAMP;
+    }
+
+    public long getBlockOffset() {
+        return blockOffset;
+    }
+
+    public int getRecordOffset() {
+        return recordOffset;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveIndexEntry{" +
+                "segment=" + segment +
+                ", workspaceId=" + workspaceId +
+                ", neuronIds='" + neuronIds + '\'' +
+                ", neuronName='" + neuronName + '\'' +
+                ", timestamp=" + timestamp +
+                ", blockOffset=" + blockOffset +
+                ", recordOffset=" + recordOffset +
+                '}';
+    }
+}
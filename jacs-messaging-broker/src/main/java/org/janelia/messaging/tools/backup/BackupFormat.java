@@ -0,0 +1,15 @@
+package org.janelia.messaging.tools.backup;
+
+/**
+ * Format of the queue backups.
+ */
+public enum BackupFormat {
+    /**
+     * A single JSON array of messages written by {@link MessageBackupWriter}.
+     */
+    JSON,
+    /**
+     * A segmented, compressed and indexed archive written by {@link MessageArchiveWriter}.
+     */
+    ARCHIVE
+}
@@ -0,0 +1,86 @@
+package org.janelia.messaging.tools.backup;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.messaging.broker.neuronadapter.NeuronMessageHeaders;
+import org.janelia.messaging.utils.MessagingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the headers used for selecting backed up neuron messages without deserializing the neuron.
+ */
+public class BackupMessageHeaders {
+    private static final Logger LOG = LoggerFactory.getLogger(BackupMessageHeaders.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public static Long getWorkspaceId(Map<String, Object> headers) {
+        return parseLong(MessagingUtils.getHeaderAsString(headers, NeuronMessageHeaders.WORKSPACE));
+    }
+
+    public static Long getTimestamp(Map<String, Object> headers) {
+        return parseTimestamp(headers == null ? null : headers.get(NeuronMessageHeaders.TIMESTAMP));
+    }
+
+    /**
+     * @param timestamp timestamp header value - a date, the number of milliseconds or its string representation
+     * @return the timestamp in milliseconds or null if the value is not a timestamp
+     */
+    public static Long parseTimestamp(Object timestamp) {
+        if (timestamp instanceof Date) {
+            return ((Date) timestamp).getTime();
+        } else if (timestamp instanceof Number) {
+            return ((Number) timestamp).longValue();
+        } else {
+            return parseLong(MessagingUtils.valueAsString(timestamp));
+        }
+    }
+
+    public static String getNeuronName(Map<String, Object> headers) {
+        return getNeuronName(MessagingUtils.getHeaderAsString(headers, NeuronMessageHeaders.METADATA));
+    }
+
+    /**
+     * Read the top level name field from the neuron metadata JSON.
+     */
+    public static String getNeuronName(String metadata) {
+        if (StringUtils.isBlank(metadata)) {
+            return null;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(metadata)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken valueToken = parser.nextToken();
+                if ("name".equals(fieldName) && valueToken == JsonToken.VALUE_STRING) {
+                    return parser.getText();
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            LOG.debug("Error reading the neuron name from {}", metadata, e);
+        }
+        return null;
+    }
+
+    public static Long parseLong(String value) {
+        if (StringUtils.isNumeric(value)) {
+            try {
+                return Long.valueOf(value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+    }
+}
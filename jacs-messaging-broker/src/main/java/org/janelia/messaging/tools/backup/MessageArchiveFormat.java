@@ -0,0 +1,99 @@
+package org.janelia.messaging.tools.backup;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Layout of a message archive. An archive is a sequence of segment files named
+ * <code>&lt;prefix&gt;.&lt;sequence&gt;.seg</code>, each one with a sidecar index <code>&lt;prefix&gt;.&lt;sequence&gt;.idx</code>.
+ * <p>
+ * A segment starts with a magic number and a version followed by deflated blocks. Each block is stored as
+ * uncompressed length, compressed length, record count, CRC32 of the uncompressed data and the compressed data.
+ * The uncompressed block is a sequence of records, each one stored as the length of the JSON encoded headers,
+ * the headers, the length of the body (-1 for no body) and the body.
+ * <p>
+ * The index starts with a magic number and a version followed by one entry per record: workspace id (-1 if unknown),
+ * neuron ids, neuron name, timestamp ({@link Long#MIN_VALUE} if unknown), the offset of the block in the segment and the offset of the record
+ * in the uncompressed block. Index entries are only written after their block so an index never refers
+ * to data that is not in the segment.
+ */
+final class MessageArchiveFormat {
+    static final int SEGMENT_MAGIC = 0x4A4D4153; // JMAS
+    static final int INDEX_MAGIC = 0x4A4D4149; // JMAI
+    static final int VERSION = 1;
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String INDEX_SUFFIX = ".idx";
+    static final long NO_WORKSPACE = -1L;
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final Pattern SEQUENCE_PATTERN = Pattern.compile("\\d{5,}");
+
+    private MessageArchiveFormat() {
+    }
+
+    static Path segmentPath(Path archivePrefix, int sequence) {
+        return archivePrefix.resolveSibling(String.format("%s.%05d%s", archivePrefix.getFileName(), sequence, SEGMENT_SUFFIX));
+    }
+
+    static Path indexPath(Path segmentPath) {
+        String segmentName = segmentPath.getFileName().toString();
+        return segmentPath.resolveSibling(segmentName.substring(0, segmentName.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    static int segmentSequence(Path segmentPath) {
+        String segmentName = segmentPath.getFileName().toString();
+        String sequence = segmentName.substring(segmentName.lastIndexOf('.', segmentName.length() - SEGMENT_SUFFIX.length() - 1) + 1,
+                segmentName.length() - SEGMENT_SUFFIX.length());
+        return Integer.parseInt(sequence);
+    }
+
+    /**
+     * @return the segments of the archive in the order in which they were written
+     */
+    static List<Path> listSegments(Path archivePrefix) throws IOException {
+        Path archiveDir = archivePrefix.toAbsolutePath().getParent();
+        String namePrefix = archivePrefix.getFileName().toString() + ".";
+        if (archiveDir == null || Files.notExists(archiveDir)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> archiveFiles = Files.list(archiveDir)) {
+            return archiveFiles
+                    .filter(p -> {
+                        String fileName = p.getFileName().toString();
+                        return fileName.startsWith(namePrefix) && fileName.endsWith(SEGMENT_SUFFIX) &&
+                                SEQUENCE_PATTERN.matcher(fileName.substring(namePrefix.length(), fileName.length() - SEGMENT_SUFFIX.length())).matches();
+                    })
+                    .sorted((p1, p2) -> Integer.compare(segmentSequence(p1), segmentSequence(p2)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    static void writeString(DataOutput output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    static String readString(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,335 @@
+package org.janelia.messaging.tools.backup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.janelia.messaging.core.GenericMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the archives written by {@link MessageArchiveWriter}, either sequentially or by looking up
+ * the messages through the segment indexes. A reader is not thread safe.
+ */
+public class MessageArchiveReader implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MessageArchiveReader.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BLOCK_HEADER_SIZE = 16;
+    private static final TypeReference<Map<String, Object>> HEADERS_TYPE = new TypeReference<Map<String, Object>>() {};
+
+    private final Path archivePrefix;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Inflater inflater = new Inflater();
+    private final Map<Path, FileChannel> segmentChannels = new HashMap<>();
+    // the most recently decoded block, since consecutive lookups usually hit the same block
+    private Path cachedBlockSegment;
+    private long cachedBlockOffset = -1;
+    private byte[] cachedBlock;
+
+    public MessageArchiveReader(Path archivePrefix) {
+        this.archivePrefix = archivePrefix;
+    }
+
+    /**
+     * @return true if there is at least one archive segment with the given prefix
+     */
+    public static boolean isArchive(Path archivePrefix) {
+        try {
+            return !MessageArchiveFormat.listSegments(archivePrefix).isEmpty();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public List<Path> getSegments() throws IOException {
+        return MessageArchiveFormat.listSegments(archivePrefix);
+    }
+
+    /**
+     * Read the index of the segment. An index that is cut short, for example because the archive was still
+     * being written, returns the entries written so far.
+     */
+    public List<ArchiveIndexEntry> readIndex(Path segment) throws IOException {
+        Path indexPath = MessageArchiveFormat.indexPath(segment);
+        if (Files.notExists(indexPath)) {
+            return Collections.emptyList();
+        }
+        List<ArchiveIndexEntry> indexEntries = new ArrayList<>();
+        try (DataInputStream indexInput = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath.toFile()), BUFFER_SIZE))) {
+            checkHeader(indexInput, MessageArchiveFormat.INDEX_MAGIC, indexPath);
+            for (;;) {
+                long workspaceId;
+                try {
+                    workspaceId = indexInput.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    String neuronIds = MessageArchiveFormat.readString(indexInput);
+                    String neuronName = MessageArchiveFormat.readString(indexInput);
+                    long timestamp = indexInput.readLong();
+                    long blockOffset = indexInput.readLong();
+                    int recordOffset = indexInput.readInt();
+                    indexEntries.add(new ArchiveIndexEntry(segment,
+                            workspaceId == MessageArchiveFormat.NO_WORKSPACE ? null : workspaceId,
+                            neuronIds, neuronName, timestamp, blockOffset, recordOffset));
+                } catch (EOFException e) {
+                    LOG.warn("Index {} ends with an incomplete entry after {} entries", indexPath, indexEntries.size());
+                    break;
+                }
+            }
+        }
+        return indexEntries;
+    }
+
+    /**
+     * Read the indexes of all segments in the order the messages were written.
+     */
+    public List<ArchiveIndexEntry> readIndex() throws IOException {
+        List<ArchiveIndexEntry> indexEntries = new ArrayList<>();
+        for (Path segment : getSegments()) {
+            indexEntries.addAll(readIndex(segment));
+        }
+        return indexEntries;
+    }
+
+    /**
+     * Read a single message using its index entry.
+     */
+    public GenericMessage readMessage(ArchiveIndexEntry indexEntry) throws IOException {
+        byte[] block = readBlock(indexEntry.getSegment(), indexEntry.getBlockOffset());
+        DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(block));
+        recordInput.skipBytes(indexEntry.getRecordOffset());
+        return readRecord(recordInput);
+    }
+
+    /**
+     * Stream all messages from all segments in the order in which they were written. An incomplete block at
+     * the end of a segment ends that segment. The returned stream must be closed.
+     */
+    public Stream<GenericMessage> readMessages() throws IOException {
+        SequentialMessageIterator messageIterator = new SequentialMessageIterator(getSegments());
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(messageIterator, Spliterator.ORDERED), false)
+                .onClose(messageIterator::close);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException closeError = null;
+        for (FileChannel channel : segmentChannels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                closeError = e;
+            }
+        }
+        segmentChannels.clear();
+        inflater.end();
+        if (closeError != null) {
+            throw closeError;
+        }
+    }
+
+    private byte[] readBlock(Path segment, long blockOffset) throws IOException {
+        if (blockOffset == cachedBlockOffset && segment.equals(cachedBlockSegment)) {
+            return cachedBlock;
+        }
+        FileChannel channel = segmentChannels.get(segment);
+        if (channel == null) {
+            channel = FileChannel.open(segment, StandardOpenOption.READ);
+            segmentChannels.put(segment, channel);
+        }
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        readFully(channel, blockHeader, blockOffset, segment);
+        blockHeader.flip();
+        int uncompressedLength = blockHeader.getInt();
+        int compressedLength = blockHeader.getInt();
+        blockHeader.getInt(); // record count
+        int checksum = blockHeader.getInt();
+        ByteBuffer compressedBlock = ByteBuffer.allocate(compressedLength);
+        readFully(channel, compressedBlock, blockOffset + BLOCK_HEADER_SIZE, segment);
+        byte[] block = inflate(compressedBlock.array(), uncompressedLength, checksum, segment, blockOffset);
+        cachedBlockSegment = segment;
+        cachedBlockOffset = blockOffset;
+        cachedBlock = block;
+        return block;
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer buffer, long position, Path segment) throws IOException {
+        long currentPosition = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, currentPosition);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of " + segment + " at " + currentPosition);
+            }
+            currentPosition += n;
+        }
+    }
+
+    private byte[] inflate(byte[] compressedBlock, int uncompressedLength, int checksum, Path segment, long blockOffset) throws IOException {
+        byte[] block = new byte[uncompressedLength];
+        inflater.reset();
+        inflater.setInput(compressedBlock);
+        try {
+            int inflatedLength = 0;
+            while (inflatedLength < uncompressedLength && !inflater.finished()) {
+                int n = inflater.inflate(block, inflatedLength, uncompressedLength - inflatedLength);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflatedLength += n;
+            }
+            if (inflatedLength != uncompressedLength) {
+                throw new IOException("Block at " + blockOffset + " in " + segment + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Block at " + blockOffset + " in " + segment + " is corrupt", e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, block.length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch for block at " + blockOffset + " in " + segment);
+        }
+        return block;
+    }
+
+    private GenericMessage readRecord(DataInputStream recordInput) throws IOException {
+        byte[] headersBytes = new byte[recordInput.readInt()];
+        recordInput.readFully(headersBytes);
+        Map<String, Object> headers = mapper.readValue(headersBytes, HEADERS_TYPE);
+        int bodyLength = recordInput.readInt();
+        byte[] body;
+        if (bodyLength < 0) {
+            body = null;
+        } else {
+            body = new byte[bodyLength];
+            recordInput.readFully(body);
+        }
+        return new GenericMessage(headers, body);
+    }
+
+    private void checkHeader(DataInputStream input, int expectedMagic, Path path) throws IOException {
+        int magic = input.readInt();
+        int version = input.readInt();
+        if (magic != expectedMagic || version != MessageArchiveFormat.VERSION) {
+            throw new IOException(path + " is not a version " + MessageArchiveFormat.VERSION + " message archive file");
+        }
+    }
+
+    private class SequentialMessageIterator implements Iterator<GenericMessage> {
+        private final Iterator<Path> segments;
+        private Path currentSegment;
+        private DataInputStream segmentInput;
+        private DataInputStream blockInput;
+        private int remainingBlockRecords;
+
+        private SequentialMessageIterator(List<Path> segments) {
+            this.segments = segments.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (remainingBlockRecords == 0) {
+                    if (segmentInput == null) {
+                        if (!segments.hasNext()) {
+                            return false;
+                        }
+                        currentSegment = segments.next();
+                        segmentInput = new DataInputStream(new BufferedInputStream(new FileInputStream(currentSegment.toFile()), BUFFER_SIZE));
+                        checkHeader(segmentInput, MessageArchiveFormat.SEGMENT_MAGIC, currentSegment);
+                    }
+                    if (!nextBlock()) {
+                        closeSegment();
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public GenericMessage next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                remainingBlockRecords--;
+                return readRecord(blockInput);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private boolean nextBlock() throws IOException {
+            int uncompressedLength;
+            try {
+                uncompressedLength = segmentInput.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            try {
+                int compressedLength = segmentInput.readInt();
+                int recordCount = segmentInput.readInt();
+                int checksum = segmentInput.readInt();
+                byte[] compressedBlock = new byte[compressedLength];
+                segmentInput.readFully(compressedBlock);
+                byte[] block = inflate(compressedBlock, uncompressedLength, checksum, currentSegment, -1);
+                blockInput = new DataInputStream(new ByteArrayInputStream(block));
+                remainingBlockRecords = recordCount;
+                return true;
+            } catch (EOFException e) {
+                LOG.warn("Segment {} ends with an incomplete block", currentSegment);
+                return false;
+            }
+        }
+
+        private void closeSegment() throws IOException {
+            try {
+                segmentInput.close();
+            } finally {
+                segmentInput = null;
+                blockInput = null;
+            }
+        }
+
+        private void close() {
+            if (segmentInput != null) {
+                try {
+                    closeSegment();
+                } catch (IOException e) {
+                    LOG.debug("Error closing {}", currentSegment, e);
+                }
+            }
+        }
+    }
+}
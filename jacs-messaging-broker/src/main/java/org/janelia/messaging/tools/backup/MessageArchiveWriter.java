@@ -0,0 +1,318 @@
+package org.janelia.messaging.tools.backup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.CountingOutputStream;
+
+import org.janelia.messaging.broker.neuronadapter.NeuronMessageHeaders;
+import org.janelia.messaging.core.GenericMessage;
+import org.janelia.messaging.utils.MessagingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends messages to a segmented, block compressed archive with a sidecar index per segment that maps
+ * the workspace, neuron and timestamp of every message to its location in the segment
+ * (see {@link MessageArchiveFormat}). A new segment is started once the current one exceeds the segment size.
+ * Writing to an existing archive continues with a new segment after the existing ones.
+ */
+public class MessageArchiveWriter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MessageArchiveWriter.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    private static class PendingIndexEntry {
+        private final long workspaceId;
+        private final String neuronIds;
+        private final String neuronName;
+        private final long timestamp;
+        private final int recordOffset;
+
+        private PendingIndexEntry(long workspaceId, String neuronIds, String neuronName, long timestamp, int recordOffset) {
+            this.workspaceId = workspaceId;
+            this.neuronIds = neuronIds;
+            this.neuronName = neuronName;
+            this.timestamp = timestamp;
+            this.recordOffset = recordOffset;
+        }
+    }
+
+    private final Path archivePrefix;
+    private final int blockSize;
+    private final long segmentSize;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream blockBuffer;
+    private final DataOutputStream blockOutput;
+    private final ByteArrayOutputStream compressedBuffer;
+    private final byte[] deflateBuffer = new byte[BUFFER_SIZE];
+    private final List<PendingIndexEntry> blockIndexEntries = new ArrayList<>();
+    private int segmentSequence;
+    private FileOutputStream segmentFile;
+    private FileOutputStream indexFile;
+    private CountingOutputStream segmentCounter;
+    private DataOutputStream segmentOutput;
+    private DataOutputStream indexOutput;
+    private long messageCount;
+    private long segmentMessageCount;
+    // messages that were forced to the storage device
+    private long syncedMessageCount;
+    private boolean closed;
+
+    public MessageArchiveWriter(Path archivePrefix) throws IOException {
+        this(archivePrefix, DEFAULT_BLOCK_SIZE, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param archivePrefix path of the archive without the segment suffix
+     * @param blockSize size of the uncompressed data compressed together
+     * @param segmentSize size after which a new segment is started
+     */
+    public MessageArchiveWriter(Path archivePrefix, int blockSize, long segmentSize) throws IOException {
+        this.archivePrefix = archivePrefix;
+        this.blockSize = blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+        this.segmentSize = segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE;
+        this.blockBuffer = new ByteArrayOutputStream(this.blockSize + BUFFER_SIZE);
+        this.blockOutput = new DataOutputStream(blockBuffer);
+        this.compressedBuffer = new ByteArrayOutputStream(this.blockSize);
+        List<Path> existingSegments = MessageArchiveFormat.listSegments(archivePrefix);
+        this.segmentSequence = existingSegments.isEmpty()
+                ? 0
+                : MessageArchiveFormat.segmentSequence(existingSegments.get(existingSegments.size() - 1)) + 1;
+        openSegment();
+    }
+
+    /**
+     * Delete all segments and indexes of the archive.
+     */
+    public static void deleteArchive(Path archivePrefix) throws IOException {
+        for (Path segment : MessageArchiveFormat.listSegments(archivePrefix)) {
+            Files.deleteIfExists(MessageArchiveFormat.indexPath(segment));
+            Files.deleteIfExists(segment);
+        }
+    }
+
+    public void write(GenericMessage message) throws IOException {
+        Map<String, Object> headers = message.getHeaders();
+        byte[] headersBytes = mapper.writeValueAsBytes(headers);
+        byte[] body = message.getBody();
+        int recordOffset = blockBuffer.size();
+        blockOutput.writeInt(headersBytes.length);
+        blockOutput.write(headersBytes);
+        if (body == null) {
+            blockOutput.writeInt(-1);
+        } else {
+            blockOutput.writeInt(body.length);
+            blockOutput.write(body);
+        }
+        Long workspaceId = BackupMessageHeaders.getWorkspaceId(headers);
+        Long timestamp = BackupMessageHeaders.getTimestamp(headers);
+        blockIndexEntries.add(new PendingIndexEntry(
+                workspaceId != null ? workspaceId : MessageArchiveFormat.NO_WORKSPACE,
+                MessagingUtils.getHeaderAsString(headers, NeuronMessageHeaders.NEURONIDS),
+                BackupMessageHeaders.getNeuronName(headers),
+                timestamp != null ? timestamp : MessageArchiveFormat.NO_TIMESTAMP,
+                recordOffset));
+        messageCount++;
+        segmentMessageCount++;
+        if (blockBuffer.size() >= blockSize) {
+            writeBlockAndRotateIfFull();
+        }
+    }
+
+    /**
+     * Write all messages from the stream.
+     *
+     * @return the number of messages written
+     */
+    public long writeAll(Stream<GenericMessage> messages) throws IOException {
+        long startCount = messageCount;
+        try {
+            messages.forEach(message -> {
+                try {
+                    write(message);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return messageCount - startCount;
+    }
+
+    /**
+     * Compress and write the messages written so far, even if their block is not full.
+     */
+    public void flush() throws IOException {
+        writeBlockAndRotateIfFull();
+        segmentOutput.flush();
+        indexOutput.flush();
+    }
+
+    /**
+     * Write the messages written so far and force them to the storage device so that they survive a crash.
+     */
+    public void sync() throws IOException {
+        flush();
+        syncWrittenBlocks();
+    }
+
+    /**
+     * Force the blocks that were already written to the storage device. Unlike {@link #sync()} it does not cut
+     * the block that is being filled short, so syncing often does not hurt the compression; the messages of that
+     * block become durable once it is full or it is flushed.
+     *
+     * @return the number of messages written by this writer that are durable
+     */
+    public long syncWrittenBlocks() throws IOException {
+        long writtenMessageCount = messageCount - blockIndexEntries.size();
+        if (writtenMessageCount > syncedMessageCount) {
+            segmentOutput.flush();
+            indexOutput.flush();
+            segmentFile.getFD().sync();
+            indexFile.getFD().sync();
+            syncedMessageCount = writtenMessageCount;
+        }
+        return syncedMessageCount;
+    }
+
+    /**
+     * Close the current segment and start a new one unless the current segment is empty.
+     */
+    public void rotate() throws IOException {
+        if (segmentMessageCount == 0) {
+            LOG.debug("Archive segment {} is empty so it is not rotated", segmentSequence);
+        } else {
+            writeBlock();
+            nextSegment();
+        }
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return the number of messages written by this writer that are durable
+     */
+    public long getSyncedMessageCount() {
+        return syncedMessageCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeBlock();
+            closeSegment();
+        } finally {
+            deflater.end();
+        }
+        LOG.info("Archived {} messages to {}", messageCount, archivePrefix);
+    }
+
+    private void openSegment() throws IOException {
+        Path segmentPath = MessageArchiveFormat.segmentPath(archivePrefix, segmentSequence);
+        if (segmentPath.getParent() != null) {
+            Files.createDirectories(segmentPath.getParent());
+        }
+        segmentFile = new FileOutputStream(segmentPath.toFile());
+        segmentCounter = new CountingOutputStream(new BufferedOutputStream(segmentFile, BUFFER_SIZE));
+        segmentOutput = new DataOutputStream(segmentCounter);
+        segmentOutput.writeInt(MessageArchiveFormat.SEGMENT_MAGIC);
+        segmentOutput.writeInt(MessageArchiveFormat.VERSION);
+        indexFile = new FileOutputStream(MessageArchiveFormat.indexPath(segmentPath).toFile());
+        indexOutput = new DataOutputStream(new BufferedOutputStream(indexFile, BUFFER_SIZE));
+        segmentMessageCount = 0;
+        indexOutput.writeInt(MessageArchiveFormat.INDEX_MAGIC);
+        indexOutput.writeInt(MessageArchiveFormat.VERSION);
+        LOG.debug("Opened archive segment {}", segmentPath);
+    }
+
+    /**
+     * Close the current segment after forcing it to the storage device, which makes all messages written so far
+     * durable because the pending block was written before.
+     */
+    private void closeSegment() throws IOException {
+        try {
+            segmentOutput.flush();
+            indexOutput.flush();
+            segmentFile.getFD().sync();
+            indexFile.getFD().sync();
+            syncedMessageCount = messageCount - blockIndexEntries.size();
+        } finally {
+            try {
+                segmentOutput.close();
+            } finally {
+                indexOutput.close();
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockIndexEntries.isEmpty()) {
+            return;
+        }
+        long blockOffset = segmentCounter.getCount();
+        byte[] uncompressedBlock = blockBuffer.toByteArray();
+        crc.reset();
+        crc.update(uncompressedBlock, 0, uncompressedBlock.length);
+        deflater.reset();
+        deflater.setInput(uncompressedBlock);
+        deflater.finish();
+        compressedBuffer.reset();
+        while (!deflater.finished()) {
+            int compressedLength = deflater.deflate(deflateBuffer);
+            compressedBuffer.write(deflateBuffer, 0, compressedLength);
+        }
+        segmentOutput.writeInt(uncompressedBlock.length);
+        segmentOutput.writeInt(compressedBuffer.size());
+        segmentOutput.writeInt(blockIndexEntries.size());
+        segmentOutput.writeInt((int) crc.getValue());
+        compressedBuffer.writeTo(segmentOutput);
+        for (PendingIndexEntry indexEntry : blockIndexEntries) {
+            indexOutput.writeLong(indexEntry.workspaceId);
+            MessageArchiveFormat.writeString(indexOutput, indexEntry.neuronIds);
+            MessageArchiveFormat.writeString(indexOutput, indexEntry.neuronName);
+            indexOutput.writeLong(indexEntry.timestamp);
+            indexOutput.writeLong(blockOffset);
+            indexOutput.writeInt(indexEntry.recordOffset);
+        }
+        blockIndexEntries.clear();
+        blockBuffer.reset();
+    }
+
+    private void writeBlockAndRotateIfFull() throws IOException {
+        writeBlock();
+        if (segmentCounter.getCount() >= segmentSize) {
+            nextSegment();
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        closeSegment();
+        segmentSequence++;
+        openSegment();
+    }
+}
@@ -0,0 +1,92 @@
+package org.janelia.messaging.tools.backup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.janelia.messaging.core.GenericMessage;
+
+/**
+ * Streams the messages of a JSON backup written by {@link MessageBackupWriter} one at a time.
+ */
+public class MessageBackupReader {
+
+    /**
+     * Read the messages from a JSON backup or from a message archive. The returned stream must be closed.
+     *
+     * @param backup JSON backup file or archive prefix
+     */
+    public static Stream<GenericMessage> readBackup(Path backup) throws IOException {
+        if (MessageArchiveReader.isArchive(backup)) {
+            MessageArchiveReader archiveReader = new MessageArchiveReader(backup);
+            return archiveReader.readMessages().onClose(() -> {
+                try {
+                    archiveReader.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } else {
+            return readMessages(backup);
+        }
+    }
+
+    /**
+     * Read the messages from a JSON backup. The returned stream must be closed.
+     */
+    public static Stream<GenericMessage> readMessages(Path backupFile) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonParser parser = mapper.getFactory().createParser(backupFile.toFile());
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            parser.close();
+            throw new IllegalArgumentException("Invalid backup file " + backupFile);
+        }
+        Iterator<GenericMessage> messageIterator = new Iterator<GenericMessage>() {
+            private JsonToken currentToken;
+
+            @Override
+            public boolean hasNext() {
+                if (currentToken == null) {
+                    try {
+                        currentToken = parser.nextToken();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return currentToken == JsonToken.START_OBJECT;
+            }
+
+            @Override
+            public GenericMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return mapper.readValue(parser, GenericMessage.class);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    currentToken = null;
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(messageIterator, Spliterator.ORDERED), false)
+                .onClose(() -> {
+                    try {
+                        parser.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+}
@@ -0,0 +1,124 @@
+package org.janelia.messaging.tools.backup;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import org.janelia.messaging.core.GenericMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a backup as a JSON array of messages one message at a time so that memory use does not depend
+ * on the number of messages backed up. The output is the same as serializing the list of messages at once.
+ * The underlying stream is not closed by this writer. If writing a message failed the array is left
+ * unterminated so that an incomplete backup cannot be mistaken for a complete one.
+ */
+public class MessageBackupWriter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MessageBackupWriter.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private final JsonGenerator jsonGenerator;
+    private final ObjectWriter messageWriter;
+    private final int flushInterval;
+    private long messageCount;
+    private boolean failed;
+    private boolean closed;
+
+    public MessageBackupWriter(OutputStream outputStream) throws IOException {
+        this(outputStream, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * @param outputStream backup stream
+     * @param flushInterval number of messages written between flushes
+     */
+    public MessageBackupWriter(OutputStream outputStream, int flushInterval) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        this.jsonGenerator = mapper.getFactory()
+                .createGenerator(new BufferedOutputStream(outputStream, BUFFER_SIZE))
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                // the array is only terminated explicitly, when all writes succeeded
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        // the writer flushes periodically instead of after every message
+        this.messageWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.flushInterval = flushInterval > 0 ? flushInterval : DEFAULT_FLUSH_INTERVAL;
+        jsonGenerator.writeStartArray();
+    }
+
+    public void write(GenericMessage message) throws IOException {
+        try {
+            messageWriter.writeValue(jsonGenerator, message);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        if (++messageCount % flushInterval == 0) {
+            jsonGenerator.flush();
+            LOG.debug("Backed up {} messages", messageCount);
+        }
+    }
+
+    /**
+     * Write all messages from the stream.
+     *
+     * @return the number of messages written
+     */
+    public long writeAll(Stream<GenericMessage> messages) throws IOException {
+        long startCount = messageCount;
+        try {
+            messages.forEach(message -> {
+                try {
+                    write(message);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            failed = true;
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            // the messages could not be retrieved so the backup is incomplete as well
+            failed = true;
+            throw e;
+        }
+        return messageCount - startCount;
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return true if writing a message failed, in which case the backup is not terminated
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Terminate the array, unless a write failed, and flush everything that was written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (failed) {
+            LOG.warn("Backup is incomplete after {} messages - the message array is not terminated", messageCount);
+        } else {
+            jsonGenerator.writeEndArray();
+        }
+        jsonGenerator.close();
+    }
+}
@@ -0,0 +1,254 @@
+package org.janelia.messaging.tools.recovery;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.janelia.messaging.broker.neuronadapter.NeuronMessageHeaders;
+import org.janelia.messaging.core.GenericMessage;
+import org.janelia.messaging.tools.backup.ArchiveIndexEntry;
+import org.janelia.messaging.tools.backup.BackupMessageHeaders;
+import org.janelia.messaging.tools.backup.MessageArchiveReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds neuron versions in a set of backups. The backups are scanned in parallel, one backup per thread.
+ * Archive backups are searched using their index. JSON backups are streamed and each message is first checked
+ * against its workspace header and the neuron name from its metadata header, so neither the neuron metadata
+ * nor the message body is decoded while scanning. Only the version that is finally selected is read back
+ * from its backup with {@link #readVersion(NeuronVersion)}.
+ */
+public class NeuronRecoveryEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(NeuronRecoveryEngine.class);
+
+    private final List<Path> backups;
+    private final int threads;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param backups backup files or archive prefixes ordered from the oldest to the newest
+     * @param threads maximum number of backups scanned concurrently
+     */
+    public NeuronRecoveryEngine(List<Path> backups, int threads) {
+        this.backups = backups;
+        this.threads = threads > 0 ? threads : 1;
+    }
+
+    /**
+     * Find the last version of the neuron received, i.e. the last one in the newest backup that has the neuron,
+     * regardless of the timestamps.
+     */
+    public Optional<NeuronVersion> findLatest(long workspaceId, String neuronName) {
+        return scanBackups(workspaceId, neuronName, true).stream().max(NeuronVersion.BACKUP_ORDER);
+    }
+
+    /**
+     * @return all versions of the neuron from the oldest to the newest
+     */
+    public List<NeuronVersion> listVersions(long workspaceId, String neuronName) {
+        List<NeuronVersion> versions = scanBackups(workspaceId, neuronName, false);
+        versions.sort(NeuronVersion.CHRONOLOGICAL_ORDER);
+        return versions;
+    }
+
+    /**
+     * Find the version of the neuron that was current at the given time.
+     */
+    public Optional<NeuronVersion> findVersionAt(long workspaceId, String neuronName, long timestamp) {
+        return findVersionAt(listVersions(workspaceId, neuronName), timestamp);
+    }
+
+    /**
+     * Binary search for the newest version at or before the given time. Versions without a timestamp are not
+     * considered because it is not known when they were current.
+     *
+     * @param versions versions ordered from the oldest to the newest
+     * @param timestamp time in milliseconds
+     */
+    public static Optional<NeuronVersion> findVersionAt(List<NeuronVersion> versions, long timestamp) {
+        // the versions without a timestamp are ordered before all the others
+        int low = 0;
+        while (low < versions.size() && !versions.get(low).hasTimestamp()) {
+            low++;
+        }
+        int high = versions.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (versions.get(mid).getTimestamp() <= timestamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found < 0 ? Optional.empty() : Optional.of(versions.get(found));
+    }
+
+    /**
+     * Read the backed up message of the given version.
+     */
+    public GenericMessage readVersion(NeuronVersion version) throws IOException {
+        if (version.getArchiveEntry() != null) {
+            try (MessageArchiveReader archiveReader = new MessageArchiveReader(version.getSource())) {
+                return archiveReader.readMessage(version.getArchiveEntry());
+            }
+        }
+        try (InputStream backupStream = new BufferedInputStream(new FileInputStream(version.getSource().toFile()))) {
+            ByteStreams.skipFully(backupStream, version.getByteOffset());
+            try (JsonParser parser = mapper.getFactory().createParser(backupStream)) {
+                return mapper.readValue(parser, GenericMessage.class);
+            }
+        }
+    }
+
+    private List<NeuronVersion> scanBackups(long workspaceId, String neuronName, boolean newestOnly) {
+        ExecutorService scanExecutor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, backups.size())),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("neuron-recovery-%d")
+                        .setDaemon(true)
+                        .build());
+        try {
+            List<Future<List<NeuronVersion>>> scans = new ArrayList<>();
+            for (int i = 0; i < backups.size(); i++) {
+                int backupIndex = i;
+                Path backup = backups.get(i);
+                scans.add(scanExecutor.submit(() -> scanBackup(backupIndex, backup, workspaceId, neuronName, newestOnly)));
+            }
+            List<NeuronVersion> versions = new ArrayList<>();
+            for (int i = 0; i < scans.size(); i++) {
+                try {
+                    versions.addAll(scans.get(i).get());
+                } catch (ExecutionException e) {
+                    // a damaged backup should not prevent the recovery from the other backups
+                    LOG.error("Error scanning backup {}", backups.get(i), e.getCause());
+                }
+            }
+            return versions;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            scanExecutor.shutdownNow();
+        }
+    }
+
+    private List<NeuronVersion> scanBackup(int backupIndex, Path backup, long workspaceId, String neuronName, boolean newestOnly) throws IOException {
+        long startTime = System.currentTimeMillis();
+        List<NeuronVersion> versions;
+        if (MessageArchiveReader.isArchive(backup)) {
+            versions = scanArchive(backupIndex, backup, workspaceId, neuronName, newestOnly);
+        } else {
+            versions = scanJsonBackup(backupIndex, backup, workspaceId, neuronName, newestOnly);
+        }
+        LOG.info("Scanned {} in {}ms - found {} versions", backup, System.currentTimeMillis() - startTime, versions.size());
+        return versions;
+    }
+
+    private List<NeuronVersion> scanArchive(int backupIndex, Path archive, long workspaceId, String neuronName, boolean newestOnly) throws IOException {
+        List<NeuronVersion> versions = new ArrayList<>();
+        try (MessageArchiveReader archiveReader = new MessageArchiveReader(archive)) {
+            List<ArchiveIndexEntry> indexEntries = archiveReader.readIndex();
+            for (int position = 0; position < indexEntries.size(); position++) {
+                ArchiveIndexEntry indexEntry = indexEntries.get(position);
+                if (indexEntry.getWorkspaceId() != null && indexEntry.getWorkspaceId() == workspaceId &&
+                        neuronName.equals(indexEntry.getNeuronName())) {
+                    long timestamp = indexEntry.hasTimestamp() ? indexEntry.getTimestamp() : NeuronVersion.NO_TIMESTAMP;
+                    addVersion(versions, new NeuronVersion(archive, backupIndex, position, timestamp,
+                            indexEntry.getNeuronIds(), -1, indexEntry), newestOnly);
+                }
+            }
+        }
+        return versions;
+    }
+
+    private List<NeuronVersion> scanJsonBackup(int backupIndex, Path backupFile, long workspaceId, String neuronName, boolean newestOnly) throws IOException {
+        List<NeuronVersion> versions = new ArrayList<>();
+        try (JsonParser parser = mapper.getFactory().createParser(backupFile.toFile())) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IllegalArgumentException("Invalid backup file " + backupFile);
+            }
+            long position = 0;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                long byteOffset = parser.getTokenLocation().getByteOffset();
+                NeuronVersion candidate = readCandidate(parser, backupFile, backupIndex, position++, byteOffset, workspaceId, neuronName);
+                if (candidate != null) {
+                    addVersion(versions, candidate, newestOnly);
+                }
+            }
+        }
+        return versions;
+    }
+
+    private void addVersion(List<NeuronVersion> versions, NeuronVersion version, boolean newestOnly) {
+        if (!newestOnly || versions.isEmpty()) {
+            versions.add(version);
+        } else if (NeuronVersion.BACKUP_ORDER.compare(version, versions.get(0)) > 0) {
+            versions.set(0, version);
+        }
+    }
+
+    /**
+     * Read the headers of the current message from the parser and skip the rest of it.
+     *
+     * @return the neuron version if the message is for the given neuron, null otherwise
+     */
+    private NeuronVersion readCandidate(JsonParser parser, Path backupFile, int backupIndex, long position, long byteOffset,
+                                        long workspaceId, String neuronName) throws IOException {
+        boolean matches = false;
+        long timestamp = NeuronVersion.NO_TIMESTAMP;
+        String neuronIds = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken valueToken = parser.nextToken();
+            if ("headers".equals(fieldName) && valueToken == JsonToken.START_OBJECT) {
+                Long messageWorkspaceId = null;
+                String metadata = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String headerName = parser.getCurrentName();
+                    JsonToken headerToken = parser.nextToken();
+                    if (!headerToken.isScalarValue()) {
+                        parser.skipChildren();
+                    } else if (NeuronMessageHeaders.WORKSPACE.equals(headerName)) {
+                        messageWorkspaceId = BackupMessageHeaders.parseLong(parser.getText());
+                    } else if (NeuronMessageHeaders.TIMESTAMP.equals(headerName)) {
+                        Long headerTimestamp = headerToken == JsonToken.VALUE_NUMBER_INT
+                                ? Long.valueOf(parser.getLongValue())
+                                : BackupMessageHeaders.parseTimestamp(parser.getText());
+                        if (headerTimestamp != null) {
+                            timestamp = headerTimestamp;
+                        }
+                    } else if (NeuronMessageHeaders.NEURONIDS.equals(headerName)) {
+                        neuronIds = parser.getText();
+                    } else if (NeuronMessageHeaders.METADATA.equals(headerName) && headerToken == JsonToken.VALUE_STRING) {
+                        metadata = parser.getText();
+                    }
+                }
+                matches = messageWorkspaceId != null && messageWorkspaceId == workspaceId &&
+                        neuronName.equals(BackupMessageHeaders.getNeuronName(metadata));
+            } else {
+                // the body is skipped without being decoded
+                parser.skipChildren();
+            }
+        }
+        return matches
+                ? new NeuronVersion(backupFile, backupIndex, position, timestamp, neuronIds, byteOffset, null)
+                : null;
+    }
+}
@@ -0,0 +1,87 @@
+package org.janelia.messaging.tools.recovery;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Date;
+
+import org.janelia.messaging.tools.backup.ArchiveIndexEntry;
+
+/**
+ * Summary of a backed up version of a neuron. It only holds the location of the backed up message,
+ * the message itself is read with {@link NeuronRecoveryEngine#readVersion(NeuronVersion)}.
+ */
+public class NeuronVersion {
+    // used for versions that do not have a timestamp header so that they are ordered before all the others
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * Versions are ordered by their timestamp and then by the order of the backups and their position in the backup.
+     */
+    static final Comparator<NeuronVersion> CHRONOLOGICAL_ORDER = Comparator
+            .comparingLong(NeuronVersion::getTimestamp)
+            .thenComparingInt(v -> v.sourceIndex)
+            .thenComparingLong(v -> v.position);
+
+    /**
+     * Versions are ordered by the order of the backups and their position in the backup, i.e. the order in which
+     * the messages were received.
+     */
+    static final Comparator<NeuronVersion> BACKUP_ORDER = Comparator
+            .<NeuronVersion>comparingInt(v -> v.sourceIndex)
+            .thenComparingLong(v -> v.position);
+
+    private final Path source;
+    private final int sourceIndex;
+    private final long position;
+    private final long timestamp;
+    private final String neuronIds;
+    // location of the message in a JSON backup
+    private final long byteOffset;
+    // location of the message in an archive backup
+    private final ArchiveIndexEntry archiveEntry;
+
+    NeuronVersion(Path source, int sourceIndex, long position, long timestamp, String neuronIds,
+                  long byteOffset, ArchiveIndexEntry archiveEntry) {
+        this.source = source;
+        this.sourceIndex = sourceIndex;
+        this.position = position;
+        this.timestamp = timestamp;
+        this.neuronIds = neuronIds;
+        this.byteOffset = byteOffset;
+        this.archiveEntry = archiveEntry;
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean hasTimestamp() {
+        return timestamp != NO_TIMESTAMP;
+    }
+
+    public String getNeuronIds() {
+        return neuronIds;
+    }
+
+    long getByteOffset() {
+        return byteOffset;
+    }
+
+    ArchiveIndexEntry getArchiveEntry() {
+        return archiveEntry;
+    }
+
+    @Override
+    public String toString() {
+        return "NeuronVersion{" +
+                "source=" + source +
+                ", position=" + position +
+                ", timestamp=" + (hasTimestamp() ? new Date(timestamp) : "none") +
+                ", neuronIds='" + neuronIds + '\'' +
+                '}';
+    }
+}
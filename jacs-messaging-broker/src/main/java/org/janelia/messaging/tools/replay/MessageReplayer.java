@@ -0,0 +1,135 @@
+package org.janelia.messaging.tools.replay;
+
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.janelia.messaging.core.GenericMessage;
+import org.janelia.messaging.core.MessageSender;
+import org.janelia.messaging.tools.backup.BackupMessageHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes archived messages through a message sender paced according to the {@link ReplayMode}.
+ * The number of messages waiting for a publisher confirmation is bounded so that a fast replay does not
+ * buffer the whole archive in memory.
+ */
+public class MessageReplayer {
+    private static final Logger LOG = LoggerFactory.getLogger(MessageReplayer.class);
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+
+    private final MessageSender messageSender;
+    private final ReplayMetrics metrics;
+    private ReplayMode mode = ReplayMode.ORIGINAL;
+    private double speed = 1;
+    private double rate = 0;
+    private Long workspaceId;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    // the pacing is kept across replay calls so that the backups replayed one after the other keep their gaps
+    private boolean replayStarted;
+    private long replayStart;
+    private Long firstTimestamp;
+    private long publishedCount;
+
+    public MessageReplayer(MessageSender messageSender, ReplayMetrics metrics) {
+        this.messageSender = messageSender;
+        this.metrics = metrics;
+    }
+
+    public MessageReplayer setMode(ReplayMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Speed factor used by the {@link ReplayMode#SPEED} mode, e.g. 10 replays ten times faster than the original.
+     */
+    public MessageReplayer setSpeed(double speed) {
+        this.speed = speed > 0 ? speed : 1;
+        return this;
+    }
+
+    /**
+     * Messages per second published by the {@link ReplayMode#RATE} mode - 0 publishes as fast as possible.
+     */
+    public MessageReplayer setRate(double rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * Only replay the messages of this workspace if set.
+     */
+    public MessageReplayer setWorkspaceId(Long workspaceId) {
+        this.workspaceId = workspaceId;
+        return this;
+    }
+
+    public MessageReplayer setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : 1;
+        return this;
+    }
+
+    /**
+     * Replay the messages and wait until all of them were confirmed. The messages of consecutive calls are paced
+     * as one stream, e.g. for replaying several backups in order.
+     */
+    public void replay(Stream<GenericMessage> messages) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        if (!replayStarted) {
+            replayStarted = true;
+            replayStart = System.nanoTime();
+        }
+        Iterator<GenericMessage> messageIterator = messages.iterator();
+        while (messageIterator.hasNext()) {
+            GenericMessage message = messageIterator.next();
+            metrics.messageRead();
+            if (workspaceId != null && !workspaceId.equals(BackupMessageHeaders.getWorkspaceId(message.getHeaders()))) {
+                metrics.messageFiltered();
+                continue;
+            }
+            if (mode == ReplayMode.RATE) {
+                if (rate > 0) {
+                    sleepUntil(replayStart + (long) (publishedCount * 1e9 / rate));
+                }
+            } else {
+                Long timestamp = BackupMessageHeaders.getTimestamp(message.getHeaders());
+                if (timestamp != null) {
+                    if (firstTimestamp == null) {
+                        firstTimestamp = timestamp;
+                        replayStart = System.nanoTime();
+                    } else {
+                        double speedFactor = mode == ReplayMode.SPEED ? speed : 1;
+                        // messages with a timestamp before the first one are published right away
+                        sleepUntil(replayStart + (long) (TimeUnit.MILLISECONDS.toNanos(timestamp - firstTimestamp) / speedFactor));
+                    }
+                }
+            }
+            inFlight.acquire();
+            long publishTime = System.nanoTime();
+            messageSender.sendMessageWithConfirmation(message.getHeaders(), message.getBody())
+                    .whenComplete((result, error) -> {
+                        inFlight.release();
+                        if (error == null) {
+                            metrics.published(System.nanoTime() - publishTime);
+                        } else {
+                            metrics.publishFailed();
+                        }
+                    });
+            publishedCount++;
+        }
+        // wait for the outstanding confirmations
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        LOG.info("Replay finished: {}", metrics);
+    }
+
+    private void sleepUntil(long targetNanos) throws InterruptedException {
+        long waitNanos = targetNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.janelia.messaging.tools.replay;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Publish counters and a latency histogram for a replay. The latencies are kept in power of two microsecond
+ * buckets so the reported percentiles are upper bounds within a factor of two, using constant memory
+ * regardless of the number of messages replayed.
+ */
+public class ReplayMetrics {
+    private static final int LATENCY_BUCKETS = 40;
+
+    private final long startTime = System.nanoTime();
+    private final AtomicLong read = new AtomicLong();
+    private final AtomicLong filtered = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong maxLatencyInMicros = new AtomicLong();
+    private final AtomicLong totalLatencyInMicros = new AtomicLong();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKETS);
+
+    void messageRead() {
+        read.incrementAndGet();
+    }
+
+    void messageFiltered() {
+        filtered.incrementAndGet();
+    }
+
+    void publishFailed() {
+        failed.incrementAndGet();
+    }
+
+    void published(long latencyInNanos) {
+        published.incrementAndGet();
+        long latencyInMicros = TimeUnit.NANOSECONDS.toMicros(latencyInNanos);
+        totalLatencyInMicros.addAndGet(latencyInMicros);
+        maxLatencyInMicros.accumulateAndGet(latencyInMicros, Math::max);
+        int bucket = Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latencyInMicros));
+        latencyBuckets.incrementAndGet(bucket);
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public double getThroughput() {
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        return elapsedSeconds > 0 ? published.get() / elapsedSeconds : 0;
+    }
+
+    /**
+     * @param percentile value between 0 and 100
+     * @return upper bound of the latency percentile in microseconds
+     */
+    public long getLatencyPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            total += latencyBuckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long count = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            count += latencyBuckets.get(i);
+            if (count >= threshold) {
+                return i == 0 ? 0 : Math.min(1L << i, maxLatencyInMicros.get());
+            }
+        }
+        return maxLatencyInMicros.get();
+    }
+
+    @Override
+    public String toString() {
+        long publishedCount = published.get();
+        return String.format("read %d, filtered %d, published %d, failed %d, %.1f msg/s, latency avg %dus p50 %dus p99 %dus max %dus",
+                read.get(), filtered.get(), publishedCount, failed.get(), getThroughput(),
+                publishedCount > 0 ? totalLatencyInMicros.get() / publishedCount : 0,
+                getLatencyPercentile(50), getLatencyPercentile(99), maxLatencyInMicros.get());
+    }
+}
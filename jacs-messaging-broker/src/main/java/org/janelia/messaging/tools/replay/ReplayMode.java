@@ -0,0 +1,19 @@
+package org.janelia.messaging.tools.replay;
+
+/**
+ * How fast archived messages are replayed.
+ */
+public enum ReplayMode {
+    /**
+     * Keep the original intervals between the message timestamps.
+     */
+    ORIGINAL,
+    /**
+     * Keep the original intervals between the message timestamps divided by a speed factor.
+     */
+    SPEED,
+    /**
+     * Ignore the timestamps and publish at a fixed rate or as fast as possible if the rate is not set.
+     */
+    RATE
+}
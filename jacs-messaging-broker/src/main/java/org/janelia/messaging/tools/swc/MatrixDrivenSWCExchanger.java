@@ -29,9 +29,15 @@ public class MatrixDrivenSWCExchanger implements ImportExportSWCExchanger {
     private Matrix voxToMicronMatrix;
     private Long workspaceId;
     private double[] scale;
+    private final WorkspaceTransformCache transformCache;
 
     public MatrixDrivenSWCExchanger(Long workspaceId) {
+        this(workspaceId, WorkspaceTransformCache.getSharedInstance());
+    }
+
+    public MatrixDrivenSWCExchanger(Long workspaceId, WorkspaceTransformCache transformCache) {
         this.workspaceId = workspaceId;
+        this.transformCache = transformCache;
     }
 
     public void init(String persistenceServer, String user) throws Exception {
@@ -40,6 +46,13 @@ public class MatrixDrivenSWCExchanger implements ImportExportSWCExchanger {
     }
 
     public void init(DomainMgr domainMgr, String user) throws Exception {
+        WorkspaceTransformCache.WorkspaceTransform cachedTransform = transformCache.get(workspaceId, user);
+        if (cachedTransform != null) {
+            micronToVoxMatrix = cachedTransform.micronToVoxMatrix;
+            voxToMicronMatrix = cachedTransform.voxToMicronMatrix;
+            scale = cachedTransform.scale;
+            return;
+        }
         // fetch the sample and extract the origin and scale attributes
 
         TmSample sample = domainMgr.getSampleByWorkspaceId(workspaceId, user);
@@ -72,6 +85,7 @@ public class MatrixDrivenSWCExchanger implements ImportExportSWCExchanger {
 
         micronToVoxMatrix = MatrixUtilities.buildMicronToVox(scale, origin);
         voxToMicronMatrix = MatrixUtilities.buildVoxToMicron(scale, origin);
+        transformCache.put(workspaceId, user, new WorkspaceTransformCache.WorkspaceTransform(micronToVoxMatrix, voxToMicronMatrix, scale));
     }
 
     @Override
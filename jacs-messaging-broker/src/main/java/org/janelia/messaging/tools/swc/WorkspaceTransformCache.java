@@ -0,0 +1,90 @@
+package org.janelia.messaging.tools.swc;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import Jama.Matrix;
+
+/**
+ * Cache of the coordinate transforms computed from a workspace's sample so that converting neurons for
+ * the same workspace does not have to fetch the workspace and the sample every time. Entries expire
+ * after a while in case the sample is changed and the cache size is bounded. The transforms are cached
+ * per workspace and subject so that a subject only gets a transform after the server allowed that subject
+ * to read the workspace.
+ */
+public class WorkspaceTransformCache {
+    private static final long DEFAULT_TTL_IN_MILLIS = 3600000L;
+    private static final long DEFAULT_MAX_SIZE = 1000L;
+
+    private static final WorkspaceTransformCache SHARED_INSTANCE = new WorkspaceTransformCache(DEFAULT_TTL_IN_MILLIS, DEFAULT_MAX_SIZE);
+
+    public static WorkspaceTransformCache getSharedInstance() {
+        return SHARED_INSTANCE;
+    }
+
+    static class WorkspaceTransform {
+        final Matrix micronToVoxMatrix;
+        final Matrix voxToMicronMatrix;
+        final double[] scale;
+
+        WorkspaceTransform(Matrix micronToVoxMatrix, Matrix voxToMicronMatrix, double[] scale) {
+            this.micronToVoxMatrix = micronToVoxMatrix;
+            this.voxToMicronMatrix = voxToMicronMatrix;
+            this.scale = scale;
+        }
+    }
+
+    private static class TransformKey {
+        private final Long workspaceId;
+        private final String subjectKey;
+
+        TransformKey(Long workspaceId, String subjectKey) {
+            this.workspaceId = workspaceId;
+            this.subjectKey = subjectKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            TransformKey that = (TransformKey) o;
+            return Objects.equals(workspaceId, that.workspaceId) && Objects.equals(subjectKey, that.subjectKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(workspaceId, subjectKey);
+        }
+    }
+
+    private final Cache<TransformKey, WorkspaceTransform> transforms;
+
+    public WorkspaceTransformCache(long ttlInMillis, long maxSize) {
+        this.transforms = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlInMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    WorkspaceTransform get(Long workspaceId, String subjectKey) {
+        return transforms.getIfPresent(new TransformKey(workspaceId, subjectKey));
+    }
+
+    void put(Long workspaceId, String subjectKey, WorkspaceTransform workspaceTransform) {
+        transforms.put(new TransformKey(workspaceId, subjectKey), workspaceTransform);
+    }
+
+    /**
+     * Drop the transforms of the workspace for all subjects.
+     */
+    public void invalidate(Long workspaceId) {
+        transforms.asMap().keySet().removeIf(key -> Objects.equals(key.workspaceId, workspaceId));
+    }
+}
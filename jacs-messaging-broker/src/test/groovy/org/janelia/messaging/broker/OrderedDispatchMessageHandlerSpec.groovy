@@ -0,0 +1,103 @@
+package org.janelia.messaging.broker
+
+import org.janelia.messaging.core.MessageHandler
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+
+class OrderedDispatchMessageHandlerSpec extends Specification {
+
+    Map<String, List<Integer>> handledByKey
+    List<String> handlingThreads
+    OrderedDispatchMessageHandler dispatchHandler
+
+    def setup() {
+        handledByKey = new ConcurrentHashMap<>()
+        handlingThreads = new CopyOnWriteArrayList<>()
+        def delegate = [
+                handleMessage: { Map<String, Object> messageHeaders, byte[] messageBody ->
+                    // random delays so that lanes which are not ordered would mix up the messages
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(3))
+                    handledByKey.computeIfAbsent(messageHeaders.key as String, { k -> new CopyOnWriteArrayList<>() })
+                            .add(messageHeaders.seq as Integer)
+                    handlingThreads.add(Thread.currentThread().name)
+                },
+                cancelMessage: { String routingTag -> }
+        ] as MessageHandler
+        dispatchHandler = new OrderedDispatchMessageHandler("test", delegate, { headers -> headers.key }, 4, 10)
+    }
+
+    def cleanup() {
+        dispatchHandler.shutdown()
+    }
+
+    def "messages with the same key are handled in the order they were received"() {
+        given:
+        def keys = ["ws1", "ws2", "ws3", "ws4", "ws5"]
+        def completions = []
+
+        when:
+        for (int seq = 0; seq < 200; seq++) {
+            completions.add(dispatchHandler.handleMessageAsync([key: keys[seq % keys.size()], seq: seq], new byte[0]).toCompletableFuture())
+        }
+        CompletableFuture.allOf(completions as CompletableFuture[]).get(30, TimeUnit.SECONDS)
+
+        then:
+        handledByKey.keySet() == keys as Set
+        handledByKey.every { key, seqs -> seqs == seqs.sort(false) && seqs.size() == 40 }
+    }
+
+    def "messages with different keys are handled on more than one lane"() {
+        when:
+        def completions = (0..<50).collect { seq ->
+            dispatchHandler.handleMessageAsync([key: "ws" + seq, seq: seq], new byte[0]).toCompletableFuture()
+        }
+        CompletableFuture.allOf(completions as CompletableFuture[]).get(30, TimeUnit.SECONDS)
+
+        then:
+        handlingThreads.toSet().size() > 1
+    }
+
+    def "a failed message completes its stage exceptionally without blocking its lane"() {
+        given:
+        def failingHandler = new OrderedDispatchMessageHandler("failing", [
+                handleMessage: { Map<String, Object> messageHeaders, byte[] messageBody ->
+                    if (messageHeaders.fail) {
+                        throw new IllegalStateException("failed")
+                    }
+                },
+                cancelMessage: { String routingTag -> }
+        ] as MessageHandler, { headers -> "ws" }, 2, 10)
+
+        when:
+        def failed = failingHandler.handleMessageAsync([fail: true], new byte[0]).toCompletableFuture()
+        def next = failingHandler.handleMessageAsync([fail: false], new byte[0]).toCompletableFuture()
+        next.get(10, TimeUnit.SECONDS)
+
+        then:
+        failed.isCompletedExceptionally()
+        !next.isCompletedExceptionally()
+
+        cleanup:
+        failingHandler.shutdown()
+    }
+
+    def "draining the lanes handles the messages that were already queued"() {
+        given:
+        def completions = (0..<20).collect { seq ->
+            dispatchHandler.handleMessageAsync([key: "ws" + (seq % 2), seq: seq], new byte[0]).toCompletableFuture()
+        }
+
+        when:
+        def drained = dispatchHandler.shutdownAndDrain(30, TimeUnit.SECONDS)
+
+        then:
+        drained
+        completions.every { it.isDone() && !it.isCompletedExceptionally() }
+        handledByKey.values().sum { it.size() } == 20
+    }
+}
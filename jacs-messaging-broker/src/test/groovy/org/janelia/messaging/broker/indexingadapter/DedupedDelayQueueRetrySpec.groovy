@@ -0,0 +1,191 @@
+package org.janelia.messaging.broker.indexingadapter
+
+import org.janelia.messaging.core.impl.RetryableStateException
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+
+class DedupedDelayQueueRetrySpec extends Specification {
+
+    Set<Long> rejectedDocIds
+    Set<Long> failingOnceDocIds
+    boolean serverDown
+    List<Long> processedDocIds
+    List<Long> parkedDocIds
+    int requests
+    LongDedupedDelayQueue queue
+
+    def setup() {
+        rejectedDocIds = new HashSet<>()
+        failingOnceDocIds = new HashSet<>()
+        serverDown = false
+        processedDocIds = []
+        parkedDocIds = []
+        requests = 0
+        queue = new LongDedupedDelayQueue() {
+            @Override
+            void processList(long[] workItems) {
+                requests++
+                if (serverDown) {
+                    throw new IndexingServiceException("Service unavailable", 503)
+                }
+                def rejected = workItems.findAll { rejectedDocIds.contains(it) || failingOnceDocIds.remove(it) }
+                if (rejected) {
+                    throw new IndexingServiceException("Rejected " + rejected, 400)
+                }
+                processedDocIds.addAll(workItems as List)
+            }
+        }
+        queue.setWorkItemDelay(0)
+        queue.setRetryPolicy(new RetryPolicy(3, 10, 100, 1.0))
+        queue.setDeadLetterCallback({ long[] workItems, Throwable error -> parkedDocIds.addAll(workItems as List) })
+    }
+
+    private static Throwable failureOf(CompletableFuture<Void> tracker) {
+        try {
+            tracker.get()
+            return null
+        } catch (ExecutionException e) {
+            return e.cause
+        }
+    }
+
+    private void processUntilEmpty() {
+        for (int i = 0; i < 50 && queue.getQueueSize() > 0; i++) {
+            Thread.sleep(110)
+            queue.process(1000)
+        }
+    }
+
+    def "rejected documents are isolated and parked after the max attempts"() {
+        given:
+        rejectedDocIds.addAll([7L, 42L])
+        (0L..<100L).each { queue.addWorkItem(it) }
+
+        when:
+        processUntilEmpty()
+
+        then:
+        parkedDocIds.toSet() == [7L, 42L] as Set
+        processedDocIds.size() == 98
+        !processedDocIds.contains(7L)
+        queue.getQueueSize() == 0
+        queue.getRejectedItems() == 0
+    }
+
+    def "each tracked document of a split batch completes from the outcome of its own part"() {
+        given:
+        rejectedDocIds.add(3L)
+        queue.addWorkItem(0L)
+        def trackers = (1L..4L).collectEntries { [(it): queue.addTrackedWorkItem(it)] }
+        queue.addWorkItem(5L)
+        Thread.sleep(110)
+
+        when:
+        def processed = queue.process(1000)
+
+        then:
+        processed == 5
+        processedDocIds.toSet() == [0L, 1L, 2L, 4L, 5L] as Set
+        [1L, 2L, 4L].every { failureOf(trackers[it]) == null }
+        failureOf(trackers[3L]) instanceof RetryableStateException
+        queue.getQueueSize() == 1
+    }
+
+    def "the tracked document is completed once it is parked"() {
+        given:
+        rejectedDocIds.add(3L)
+        List<CompletableFuture<Void>> trackers = []
+
+        when: "the message is redelivered after each rejected attempt"
+        for (int i = 0; i < 20 && parkedDocIds.isEmpty(); i++) {
+            trackers.add(queue.addTrackedWorkItem(3L))
+            Thread.sleep(220)
+            queue.process(1000)
+        }
+
+        then:
+        def attemptTrackers = trackers.unique(false)
+        parkedDocIds == [3L]
+        attemptTrackers.size() == 3
+        attemptTrackers[0..1].every { failureOf(it) instanceof RetryableStateException }
+        failureOf(attemptTrackers[2]) == null
+    }
+
+    def "a batch that fails because of the server is put back whole and its tracked items fail"() {
+        given:
+        serverDown = true
+        CompletableFuture<Void> tracker = queue.addTrackedWorkItem(1L)
+        queue.addWorkItem(2L)
+        Thread.sleep(110)
+
+        when:
+        def processed = queue.process(1000)
+
+        then:
+        processed == 0
+        requests == 1
+        queue.getQueueSize() == 2
+        failureOf(tracker) instanceof RetryableStateException
+        queue.getRejectedItems() == 0
+        parkedDocIds.isEmpty()
+    }
+
+    def "the attempts of a rejected document are forgotten once it succeeds in another batch"() {
+        given:
+        failingOnceDocIds.add(7L)
+        queue.addWorkItem(7L)
+        Thread.sleep(110)
+        queue.process(1000)
+
+        expect:
+        queue.getRejectedItems() == 1
+        queue.getQueueSize() == 1
+
+        when:
+        queue.addWorkItem(8L)
+        processUntilEmpty()
+
+        then:
+        processedDocIds.toSet() == [7L, 8L] as Set
+        queue.getRejectedItems() == 0
+        parkedDocIds.isEmpty()
+    }
+
+    def "the attempts of a rejected document are forgotten once it is superseded"() {
+        given:
+        failingOnceDocIds.add(7L)
+        queue.addWorkItem(7L)
+        Thread.sleep(110)
+        queue.process(1000)
+
+        expect:
+        queue.getRejectedItems() == 1
+
+        when:
+        queue.workItemsSuperseded([7L] as long[])
+
+        then:
+        queue.getRejectedItems() == 0
+    }
+
+    def "a batch rejected as part of a larger request is retried on its own"() {
+        given:
+        rejectedDocIds.add(3L)
+        queue.addWorkItem(3L)
+        queue.addWorkItem(4L)
+        Thread.sleep(110)
+        def workBatch = queue.takeExpired(1000)
+
+        when:
+        def processed = queue.retryBatch(workBatch)
+
+        then:
+        workBatch.workItems.length == 2
+        processed == 1
+        processedDocIds == [4L]
+        queue.getRejectedItems() == 1
+        queue.getQueueSize() == 1
+    }
+}
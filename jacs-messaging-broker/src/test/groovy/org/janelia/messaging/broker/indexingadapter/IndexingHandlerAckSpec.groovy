@@ -0,0 +1,173 @@
+package org.janelia.messaging.broker.indexingadapter
+
+import org.janelia.messaging.core.impl.RetryableStateException
+import org.janelia.model.domain.Reference
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+
+class IndexingHandlerAckSpec extends Specification {
+
+    boolean serverDown
+    List<Long> indexedDocIds
+    List<Long> removedDocIds
+    DedupedDelayQueue<Reference> docsToIndex
+    LongDedupedDelayQueue docIdsToRemove
+    Map<Long, LongDedupedDelayQueue> docDescendantsToAdd
+
+    def setup() {
+        serverDown = false
+        indexedDocIds = []
+        removedDocIds = []
+        docsToIndex = new DedupedDelayQueue<Reference>() {
+            @Override
+            void processList(List<Reference> workItems) {
+                if (serverDown) {
+                    throw new IndexingServiceException("Service unavailable", 503)
+                }
+                indexedDocIds.addAll(workItems.collect { it.getTargetId() })
+            }
+        }
+        docIdsToRemove = new LongDedupedDelayQueue() {
+            @Override
+            void processList(long[] workItems) {
+                removedDocIds.addAll(workItems as List)
+            }
+        }
+        [docsToIndex, docIdsToRemove].each { it.setWorkItemDelay(0) }
+        docDescendantsToAdd = new HashMap<>()
+    }
+
+    private IndexingHandler createHandler(boolean ackAfterFlush) {
+        return new IndexingHandler(docsToIndex, docIdsToRemove, new PendingDocumentStates(), docDescendantsToAdd,
+                { Long ancestorId ->
+                    def docDescendants = new LongDedupedDelayQueue() {
+                        @Override
+                        void processList(long[] workItems) {
+                        }
+                    }
+                    docDescendants.setWorkItemDelay(0)
+                    return docDescendants
+                },
+                null,
+                ackAfterFlush)
+    }
+
+    private static Map<String, Object> updateDocHeaders(long docId) {
+        return [
+                (IndexingMessageHeaders.TYPE)        : IndexingMessageType.UPDATE_DOC.name(),
+                (IndexingMessageHeaders.OBJECT_CLASS): "Sample",
+                (IndexingMessageHeaders.OBJECT_ID)   : String.valueOf(docId)
+        ]
+    }
+
+    private static Map<String, Object> deleteDocHeaders(long docId) {
+        return [
+                (IndexingMessageHeaders.TYPE)     : IndexingMessageType.DELETE_DOC.name(),
+                (IndexingMessageHeaders.OBJECT_ID): String.valueOf(docId)
+        ]
+    }
+
+    private static void waitForDeadlines() {
+        Thread.sleep(AbstractDedupedDelayQueue.DEADLINE_BUCKET_WIDTH + 10)
+    }
+
+    private static Throwable failureOf(CompletableFuture<Void> ack) {
+        try {
+            ack.get()
+            return null
+        } catch (ExecutionException e) {
+            return e.cause
+        }
+    }
+
+    def "without ack after flush the message is acknowledged as soon as it is queued"() {
+        given:
+        def handler = createHandler(false)
+
+        when:
+        def ack = handler.handleMessageAsync(updateDocHeaders(1L), null).toCompletableFuture()
+
+        then:
+        ack.isDone()
+        docsToIndex.getQueueSize() == 1
+        indexedDocIds.isEmpty()
+    }
+
+    def "with ack after flush the message is acknowledged once its batch was sent"() {
+        given:
+        def handler = createHandler(true)
+
+        when:
+        def indexAck = handler.handleMessageAsync(updateDocHeaders(1L), null).toCompletableFuture()
+        def removeAck = handler.handleMessageAsync(deleteDocHeaders(2L), null).toCompletableFuture()
+
+        then:
+        !indexAck.isDone()
+        !removeAck.isDone()
+
+        when:
+        waitForDeadlines()
+        docsToIndex.process(100)
+        docIdsToRemove.process(100)
+
+        then:
+        indexedDocIds == [1L]
+        removedDocIds == [2L]
+        failureOf(indexAck) == null
+        failureOf(removeAck) == null
+    }
+
+    def "with ack after flush the message is requeued if its batch failed"() {
+        given:
+        def handler = createHandler(true)
+        serverDown = true
+
+        when:
+        def ack = handler.handleMessageAsync(updateDocHeaders(1L), null).toCompletableFuture()
+        waitForDeadlines()
+        docsToIndex.process(100)
+
+        then:
+        ack.isCompletedExceptionally()
+        failureOf(ack) instanceof RetryableStateException
+        indexedDocIds.isEmpty()
+        docsToIndex.getQueueSize() == 1
+    }
+
+    def "with ack after flush an invalid message fails instead of throwing"() {
+        given:
+        def handler = createHandler(true)
+
+        when:
+        def ack = handler.handleMessageAsync([(IndexingMessageHeaders.TYPE): "UNKNOWN"], null).toCompletableFuture()
+
+        then:
+        ack.isCompletedExceptionally()
+        failureOf(ack) instanceof IllegalArgumentException
+    }
+
+    def "with ack after flush an add ancestor message is acknowledged once the descendants were flushed"() {
+        given:
+        def handler = createHandler(true)
+
+        when:
+        def ack = handler.handleMessageAsync([
+                (IndexingMessageHeaders.TYPE)       : IndexingMessageType.ADD_ANCESTOR.name(),
+                (IndexingMessageHeaders.OBJECT_ID)  : "1",
+                (IndexingMessageHeaders.ANCESTOR_ID): "10"
+        ], null).toCompletableFuture()
+
+        then:
+        !ack.isDone()
+        docDescendantsToAdd.keySet() == [10L] as Set
+
+        when:
+        waitForDeadlines()
+        docDescendantsToAdd.get(10L).process(100)
+
+        then:
+        failureOf(ack) == null
+    }
+}
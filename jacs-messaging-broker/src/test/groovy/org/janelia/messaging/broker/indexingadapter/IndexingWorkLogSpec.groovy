@@ -0,0 +1,157 @@
+package org.janelia.messaging.broker.indexingadapter
+
+import org.janelia.model.domain.Reference
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class IndexingWorkLogSpec extends Specification {
+
+    // a remove record is the length, the record type, the document id and the CRC
+    static final int REMOVE_RECORD_LENGTH = 4 + 1 + 8 + 4
+
+    Path logDir
+    Path logPath
+    List<String> replayed
+
+    def setup() {
+        logDir = Files.createTempDirectory("indexingWorkLog")
+        logPath = logDir.resolve("indexing.log")
+        replayed = []
+    }
+
+    def cleanup() {
+        logDir.toFile().deleteDir()
+    }
+
+    private IndexingWorkLog.WorkItemConsumer recordingConsumer() {
+        return [
+                indexDoc        : { Reference docReference -> replayed.add("index " + docReference.getTargetId()) },
+                removeDoc       : { long docId -> replayed.add("remove " + docId) },
+                addAncestorToDoc: { long ancestorId, long docId -> replayed.add("ancestor " + ancestorId + " " + docId) }
+        ] as IndexingWorkLog.WorkItemConsumer
+    }
+
+    private long reopen() {
+        replayed.clear()
+        def workLog = new IndexingWorkLog(logPath, 1024 * 1024, 1)
+        def replayedItems = workLog.open(recordingConsumer())
+        workLog.close()
+        return replayedItems
+    }
+
+    private IndexingWorkLog openWithRemovals(List<Long> docIds) {
+        def workLog = new IndexingWorkLog(logPath, 1024 * 1024, 1)
+        workLog.open(recordingConsumer())
+        docIds.each { docId -> workLog.logRemoveDoc(docId, { -> null }) }
+        return workLog
+    }
+
+    def "the logged work items are replayed in order"() {
+        given:
+        def workLog = new IndexingWorkLog(logPath, 1024 * 1024, 10)
+        workLog.open(recordingConsumer())
+        def enqueued = []
+
+        when:
+        def indexResult = workLog.logIndexDoc(Reference.createFor("Sample", 1L), { -> enqueued.add("index 1"); "queued" })
+        workLog.logRemoveDoc(2L, { -> enqueued.add("remove 2") })
+        workLog.logAddAncestorToDoc(3L, 4L, { -> enqueued.add("ancestor 3 4") })
+        workLog.close()
+        def replayedItems = reopen()
+
+        then:
+        indexResult == "queued"
+        enqueued == ["index 1", "remove 2", "ancestor 3 4"]
+        replayedItems == 3
+        replayed == ["index 1", "remove 2", "ancestor 3 4"]
+    }
+
+    def "the record is written before the work item is queued"() {
+        given:
+        def workLog = new IndexingWorkLog(logPath, 1024 * 1024, 10)
+        workLog.open(recordingConsumer())
+        def logSizeWhenQueued = -1L
+
+        when:
+        workLog.logRemoveDoc(1L, { ->
+            workLog.sync()
+            logSizeWhenQueued = Files.size(logPath)
+        })
+        workLog.close()
+
+        then:
+        logSizeWhenQueued == REMOVE_RECORD_LENGTH
+    }
+
+    def "a torn final record is dropped and the log is appended after the last complete record"() {
+        given:
+        openWithRemovals([1L, 2L, 3L]).close()
+        def logContent = Files.readAllBytes(logPath)
+        // the last record was only partially written when the broker stopped
+        Files.write(logPath, Arrays.copyOf(logContent, logContent.length - 5))
+
+        when:
+        def replayedItems = reopen()
+
+        then:
+        logContent.length == 3 * REMOVE_RECORD_LENGTH
+        replayedItems == 2
+        replayed == ["remove 1", "remove 2"]
+
+        when:
+        openWithRemovals([4L]).close()
+        def replayedAfterAppend = reopen()
+
+        then:
+        replayedAfterAppend == 3
+        replayed == ["remove 1", "remove 2", "remove 4"]
+    }
+
+    def "replay stops at a record with a CRC mismatch"() {
+        given:
+        openWithRemovals([1L, 2L, 3L]).close()
+        def logContent = Files.readAllBytes(logPath)
+        // flip a bit in the document id of the second record
+        int flippedByte = REMOVE_RECORD_LENGTH + 4 + 1 + 7
+        logContent[flippedByte] = (byte) (logContent[flippedByte] ^ 1)
+        Files.write(logPath, logContent)
+
+        when:
+        def replayedItems = reopen()
+
+        then:
+        replayedItems == 1
+        replayed == ["remove 1"]
+    }
+
+    def "a flush that processed items truncates the log to the pending items"() {
+        given:
+        def workLog = openWithRemovals([1L, 2L, 3L])
+
+        when:
+        workLog.flushCompleted(2, { IndexingWorkLog.WorkItemConsumer pendingItems -> pendingItems.removeDoc(3L) })
+        workLog.logRemoveDoc(4L, { -> null })
+        workLog.close()
+        def replayedItems = reopen()
+
+        then:
+        replayedItems == 2
+        replayed == ["remove 3", "remove 4"]
+    }
+
+    def "a flush that processed nothing leaves a small log as it is"() {
+        given:
+        def workLog = openWithRemovals([1L, 2L])
+
+        when:
+        workLog.flushCompleted(0, { IndexingWorkLog.WorkItemConsumer pendingItems -> })
+        workLog.close()
+        def replayedItems = reopen()
+
+        then:
+        replayedItems == 2
+        replayed == ["remove 1", "remove 2"]
+    }
+}
@@ -0,0 +1,135 @@
+package org.janelia.messaging.broker.indexingadapter
+
+import spock.lang.Specification
+
+class LongOpenHashSetSpec extends Specification {
+
+    /**
+     * Values that all hash to the last slot of a table with the given capacity, e.g. 16 for a set sized for 8 values,
+     * so their probe sequence wraps around to the start of the table.
+     */
+    private static List<Long> collidingAtTableEnd(int capacity, int count) {
+        def values = []
+        for (long value = 1; values.size() < count; value++) {
+            long h = value * 0x9E3779B97F4A7C15L
+            if ((((int) (h ^ (h >>> 32))) & (capacity - 1)) == capacity - 1) {
+                values.add(value)
+            }
+        }
+        return values
+    }
+
+    def "adds, finds and removes values including zero"() {
+        given:
+        def set = new LongOpenHashSet()
+
+        when:
+        def added = [0L, 5L, -7L, Long.MAX_VALUE, Long.MIN_VALUE].collect { set.add(it) }
+        def addedAgain = [0L, 5L].collect { set.add(it) }
+
+        then:
+        added.every { it }
+        addedAgain.every { !it }
+        set.size() == 5
+        [0L, 5L, -7L, Long.MAX_VALUE, Long.MIN_VALUE].every { set.contains(it) }
+        !set.contains(6L)
+
+        when:
+        def removed = [0L, -7L].collect { set.remove(it) }
+        def removedAgain = set.remove(0L)
+
+        then:
+        removed.every { it }
+        !removedAgain
+        set.size() == 3
+        !set.contains(0L)
+        !set.contains(-7L)
+        [5L, Long.MAX_VALUE, Long.MIN_VALUE].every { set.contains(it) }
+    }
+
+    def "colliding values that wrap around the end of the table stay reachable after any of them is removed"() {
+        given:
+        def colliding = collidingAtTableEnd(16, 4)
+
+        expect:
+        colliding.size() == 4
+
+        when:
+        def remaining = colliding.collect { removedValue ->
+            def set = new LongOpenHashSet(8)
+            colliding.each { set.add(it) }
+            set.remove(removedValue)
+            // the probe sequence of the remaining values must not be broken by the removal
+            colliding.findAll { it != removedValue }.every { set.contains(it) } && !set.contains(removedValue) && set.size() == 3
+        }
+
+        then:
+        remaining.every { it }
+    }
+
+    def "a removed colliding value can be added back"() {
+        given:
+        def colliding = collidingAtTableEnd(16, 3)
+        def set = new LongOpenHashSet(8)
+        colliding.each { set.add(it) }
+
+        when:
+        set.remove(colliding[0])
+        def addedBack = set.add(colliding[0])
+        def addedTwice = set.add(colliding[2])
+
+        then:
+        addedBack
+        !addedTwice
+        set.size() == 3
+        colliding.every { set.contains(it) }
+    }
+
+    def "the table grows and shrinks without losing values"() {
+        given:
+        def set = new LongOpenHashSet()
+
+        when:
+        (1L..10000L).each { set.add(it * 1024) }
+
+        then:
+        set.size() == 10000
+        (1L..10000L).every { set.contains(it * 1024) }
+        !set.contains(1023L)
+
+        when:
+        (1L..9990L).each { set.remove(it * 1024) }
+
+        then:
+        set.size() == 10
+        (9991L..10000L).every { set.contains(it * 1024) }
+        !set.contains(1024L)
+    }
+
+    def "random operations match a hash set"() {
+        given:
+        def random = new Random(42)
+        def set = new LongOpenHashSet()
+        def expected = new HashSet<Long>()
+        def mismatches = 0
+
+        when:
+        for (int i = 0; i < 50000; i++) {
+            // a small range of values makes collisions and repeated operations on the same value likely
+            long value = random.nextInt(2000) - 1000
+            boolean remove = random.nextInt(3) == 0
+            boolean changed = remove ? set.remove(value) : set.add(value)
+            boolean expectedChanged = remove ? expected.remove(value) : expected.add(value)
+            if (changed != expectedChanged || set.contains(value) != expected.contains(value)) {
+                mismatches++
+            }
+        }
+        def visited = new HashSet<Long>()
+        set.forEach({ long value -> visited.add(value) })
+
+        then:
+        mismatches == 0
+        set.size() == expected.size()
+        visited == expected
+    }
+}
@@ -0,0 +1,141 @@
+package org.janelia.messaging.broker.indexingadapter
+
+import org.janelia.model.domain.Reference
+import spock.lang.Specification
+
+import java.util.function.ToLongFunction
+
+class PendingDocumentStatesSpec extends Specification {
+
+    PendingDocumentStates documentStates
+
+    def setup() {
+        documentStates = new PendingDocumentStates()
+    }
+
+    private static List<Reference> docReferences(Long... docIds) {
+        return docIds.collect { Reference.createFor("Sample", it) }
+    }
+
+    def "a document that waits in a single queue has no state"() {
+        when:
+        documentStates.indexRequested(1L, false)
+        documentStates.removeRequested(2L, false)
+
+        then:
+        documentStates.size() == 0
+        !documentStates.isIndexSuperseded(1L)
+        !documentStates.isRemoveSuperseded(2L)
+    }
+
+    def "the handler only records the state of a document that waits in both queues"() {
+        given:
+        def docsToIndex = new DedupedDelayQueue<Reference>({ Reference docReference -> docReference.getTargetId() } as ToLongFunction) {
+            @Override
+            void processList(List<Reference> workItems) {
+            }
+        }
+        def docIdsToRemove = new LongDedupedDelayQueue() {
+            @Override
+            void processList(long[] workItems) {
+            }
+        }
+        def handler = new IndexingHandler(docsToIndex, docIdsToRemove, documentStates, new HashMap<>(), { Long ancestorId -> null }, null, false)
+
+        when:
+        handler.indexDoc(Reference.createFor("Sample", 1L))
+        handler.removeDoc(2L)
+
+        then:
+        documentStates.size() == 0
+
+        when:
+        handler.removeDoc(1L)
+        handler.indexDoc(Reference.createFor("Sample", 2L))
+
+        then:
+        documentStates.size() == 2
+        documentStates.isIndexSuperseded(1L)
+        documentStates.isRemoveSuperseded(2L)
+    }
+
+    def "a removal after an index supersedes the pending index"() {
+        when:
+        documentStates.indexRequested(1L, false)
+        documentStates.indexRequested(2L, false)
+        documentStates.removeRequested(1L, true)
+
+        then:
+        documentStates.isIndexSuperseded(1L)
+        !documentStates.isRemoveSuperseded(1L)
+        documentStates.withoutSupersededIndexing(docReferences(1L, 2L)).collect { it.getTargetId() } == [2L]
+        documentStates.withoutSupersededRemovals([1L] as long[]) == [1L] as long[]
+    }
+
+    def "an index after a removal revives the document"() {
+        when:
+        documentStates.removeRequested(1L, false)
+        documentStates.removeRequested(2L, false)
+        documentStates.indexRequested(1L, true)
+
+        then:
+        documentStates.isRemoveSuperseded(1L)
+        !documentStates.isIndexSuperseded(1L)
+        documentStates.withoutSupersededRemovals([1L, 2L] as long[]) == [2L] as long[]
+        documentStates.withoutSupersededIndexing(docReferences(1L)).collect { it.getTargetId() } == [1L]
+    }
+
+    def "the state is cleared once the document does not wait in any queue"() {
+        given:
+        documentStates.indexRequested(1L, false)
+        documentStates.removeRequested(1L, true)
+        def batchSequence = documentStates.currentSequence()
+
+        when:
+        documentStates.indexingCompleted(docReferences(1L), batchSequence)
+
+        then:
+        documentStates.size() == 1
+
+        when:
+        documentStates.removalsCompleted([1L] as long[], batchSequence)
+
+        then:
+        documentStates.size() == 0
+        !documentStates.isIndexSuperseded(1L)
+        !documentStates.isRemoveSuperseded(1L)
+    }
+
+    def "an index requested again while the previous one was sent stays pending"() {
+        given:
+        documentStates.removeRequested(1L, false)
+        documentStates.indexRequested(1L, true)
+        def firstBatchSequence = documentStates.currentSequence()
+        documentStates.removalsCompleted([1L] as long[], firstBatchSequence)
+        documentStates.indexRequested(1L, false)
+
+        expect:
+        !documentStates.isIndexSuperseded(1L)
+        documentStates.withoutSupersededIndexing(docReferences(1L)).collect { it.getTargetId() } == [1L]
+
+        when:
+        documentStates.indexingCompleted(docReferences(1L), firstBatchSequence)
+
+        then:
+        documentStates.size() == 1
+
+        when:
+        documentStates.removeRequested(1L, false)
+
+        then:
+        documentStates.isIndexSuperseded(1L)
+
+        when:
+        def secondBatchSequence = documentStates.currentSequence()
+        documentStates.indexingCompleted(docReferences(1L), secondBatchSequence)
+        documentStates.removalsCompleted([1L] as long[], secondBatchSequence)
+
+        then:
+        documentStates.size() == 0
+    }
+}
@@ -7,6 +7,8 @@ import org.janelia.model.domain.Reference
 import org.janelia.model.domain.tiledMicroscope.TmNeuronMetadata
 import spock.lang.Specification
 
+import java.util.concurrent.CompletableFuture
+
 class PersistNeuronHandlerSpec extends Specification {
 
     def user1Neuron
@@ -230,4 +232,53 @@ class PersistNeuronHandlerSpec extends Specification {
         }
         0 * replyErrorSender.sendMessage(_, _)
     }
-}
\ No newline at end of file
+
+    def "coalesced saves persist only the latest version of the neuron before it is deleted"() {
+        given:
+        def saveCoalescer = new NeuronSaveCoalescer(domainMgr, 60000, 1)
+        def coalescingHandler = new PersistNeuronHandler(
+                domainMgr,
+                "group:mouselight",
+                { Map<String, Object> messageHeaders, byte[] messageBody ->
+                    replySuccessSender.sendMessage(messageHeaders, messageBody);
+                },
+                { Map<String, Object> messageHeaders, byte[] messageBody ->
+                    replySuccessSender.sendMessage(messageHeaders, messageBody);
+                    replyErrorSender.sendMessage(messageHeaders, messageBody);
+                },
+                saveCoalescer
+        )
+        def saveHeader = [
+                (NeuronMessageHeaders.USER)     : LongStringHelper.asLongString("user:testuser1"),
+                (NeuronMessageHeaders.NEURONIDS): ["2468630633941827729"],
+                (NeuronMessageHeaders.WORKSPACE): LongStringHelper.asLongString("2463496977254449297"),
+                (NeuronMessageHeaders.TYPE)     : LongStringHelper.asLongString("NEURON_SAVE_NEURONDATA")
+        ]
+        def deleteHeader = [
+                (NeuronMessageHeaders.USER)     : LongStringHelper.asLongString("user:testuser1"),
+                (NeuronMessageHeaders.NEURONIDS): ["2468630633941827729"],
+                (NeuronMessageHeaders.WORKSPACE): LongStringHelper.asLongString("2463496977254449297"),
+                (NeuronMessageHeaders.TYPE)     : LongStringHelper.asLongString("NEURON_DELETE")
+        ]
+
+        when:
+        coalescingHandler.handleMessage(saveHeader, mapper.writeValueAsBytes(user1Neuron))
+        user1Neuron.name = "Neuron 1 - renamed"
+        coalescingHandler.handleMessage(saveHeader, mapper.writeValueAsBytes(user1Neuron))
+        coalescingHandler.handleMessage(deleteHeader, mapper.writeValueAsBytes(user1Neuron))
+
+        then: "only the latest version is persisted and it is persisted before the delete"
+        1 * domainMgr.saveMetadataAsync({ it.name == "Neuron 1 - renamed" }, "user:testuser1") >> { args -> CompletableFuture.completedFuture(args[0]) }
+
+        then: "only the persisted version is broadcast"
+        1 * replySuccessSender.sendMessage(_, { mapper.readValue(it, TmNeuronMetadata.class).name == "Neuron 1 - renamed" })
+
+        then:
+        1 * domainMgr.remove(_, "user:testuser1")
+        1 * replySuccessSender.sendMessage(_, _)
+        0 * replyErrorSender.sendMessage(_, _)
+
+        cleanup:
+        saveCoalescer.shutdown()
+    }
+}
@@ -0,0 +1,142 @@
+package org.janelia.messaging.tools.backup
+
+import org.janelia.messaging.broker.neuronadapter.NeuronMessageHeaders
+import org.janelia.messaging.core.GenericMessage
+import spock.lang.Specification
+
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.stream.Collectors
+
+class MessageArchiveSpec extends Specification {
+
+    Path archiveDir
+    Path archivePrefix
+
+    def setup() {
+        archiveDir = Files.createTempDirectory("messageArchive")
+        archivePrefix = archiveDir.resolve("backup")
+    }
+
+    def cleanup() {
+        archiveDir.toFile().deleteDir()
+    }
+
+    private static GenericMessage neuronMessage(int i) {
+        return new GenericMessage([
+                (NeuronMessageHeaders.WORKSPACE): "100",
+                (NeuronMessageHeaders.TIMESTAMP): String.valueOf(1000L + i),
+                (NeuronMessageHeaders.METADATA) : '{"name":"Neuron ' + i + '"}'
+        ], ("neuron data " + i).getBytes())
+    }
+
+    private List<GenericMessage> readAllMessages(MessageArchiveReader archiveReader) {
+        def messages = archiveReader.readMessages()
+        try {
+            return messages.collect(Collectors.toList())
+        } finally {
+            messages.close()
+        }
+    }
+
+    private static boolean sameMessage(GenericMessage message, GenericMessage expected) {
+        return message.getHeaders() == expected.getHeaders() && Arrays.equals(message.getBody(), expected.getBody())
+    }
+
+    def "messages written to several segments are read back in order and through the index"() {
+        given:
+        def messages = (0..<50).collect { neuronMessage(it) }
+        def archiveWriter = new MessageArchiveWriter(archivePrefix, 128, 256)
+        archiveWriter.writeAll(messages.stream())
+        archiveWriter.close()
+        def archiveReader = new MessageArchiveReader(archivePrefix)
+
+        when:
+        def readMessages = readAllMessages(archiveReader)
+        def indexEntries = archiveReader.readIndex()
+
+        then:
+        archiveReader.getSegments().size() > 1
+        readMessages.size() == 50
+        (0..<50).every { sameMessage(readMessages[it], messages[it]) }
+        indexEntries.size() == 50
+        (0..<50).every {
+            indexEntries[it].getWorkspaceId() == 100L &&
+                    indexEntries[it].getNeuronName() == "Neuron " + it &&
+                    indexEntries[it].hasTimestamp() &&
+                    indexEntries[it].getTimestamp() == 1000L + it
+        }
+        (0..<50).every { sameMessage(archiveReader.readMessage(indexEntries[it]), messages[it]) }
+
+        cleanup:
+        archiveReader.close()
+    }
+
+    def "a message without workspace or timestamp headers is indexed without them"() {
+        given:
+        def archiveWriter = new MessageArchiveWriter(archivePrefix)
+        archiveWriter.write(new GenericMessage([(NeuronMessageHeaders.METADATA): '{"name":"Neuron 1"}'], null))
+        archiveWriter.close()
+        def archiveReader = new MessageArchiveReader(archivePrefix)
+
+        when:
+        def indexEntries = archiveReader.readIndex()
+
+        then:
+        indexEntries.size() == 1
+        indexEntries[0].getWorkspaceId() == null
+        !indexEntries[0].hasTimestamp()
+        archiveReader.readMessage(indexEntries[0]).getBody() == null
+
+        cleanup:
+        archiveReader.close()
+    }
+
+    def "a block with a checksum mismatch is rejected"() {
+        given:
+        def archiveWriter = new MessageArchiveWriter(archivePrefix)
+        archiveWriter.write(neuronMessage(1))
+        archiveWriter.close()
+        def archiveReader = new MessageArchiveReader(archivePrefix)
+        def segment = archiveReader.getSegments()[0]
+        def indexEntry = archiveReader.readIndex()[0]
+        // the checksum is the last field of the block header that follows the segment magic and version
+        def segmentBytes = Files.readAllBytes(segment)
+        segmentBytes[20] = (byte) (segmentBytes[20] ^ 0xFF)
+        Files.write(segment, segmentBytes)
+
+        when:
+        archiveReader.readMessage(indexEntry)
+
+        then:
+        def e = thrown(IOException)
+        e.getMessage().startsWith("Checksum mismatch")
+
+        cleanup:
+        archiveReader.close()
+    }
+
+    def "a torn final block ends the segment"() {
+        given:
+        def archiveWriter = new MessageArchiveWriter(archivePrefix)
+        archiveWriter.write(neuronMessage(1))
+        archiveWriter.flush()
+        archiveWriter.write(neuronMessage(2))
+        archiveWriter.close()
+        def archiveReader = new MessageArchiveReader(archivePrefix)
+        def segment = archiveReader.getSegments()[0]
+        FileChannel.open(segment, StandardOpenOption.WRITE).withCloseable { it.truncate(Files.size(segment) - 5) }
+
+        when:
+        def readMessages = readAllMessages(archiveReader)
+
+        then:
+        readMessages.size() == 1
+        sameMessage(readMessages[0], neuronMessage(1))
+
+        cleanup:
+        archiveReader.close()
+    }
+}
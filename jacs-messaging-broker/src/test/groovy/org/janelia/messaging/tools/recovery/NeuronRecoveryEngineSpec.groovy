@@ -0,0 +1,85 @@
+package org.janelia.messaging.tools.recovery
+
+import org.janelia.messaging.broker.neuronadapter.NeuronMessageHeaders
+import org.janelia.messaging.core.GenericMessage
+import org.janelia.messaging.tools.backup.MessageArchiveWriter
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class NeuronRecoveryEngineSpec extends Specification {
+
+    Path backupDir
+
+    def setup() {
+        backupDir = Files.createTempDirectory("neuronRecovery")
+    }
+
+    def cleanup() {
+        backupDir.toFile().deleteDir()
+    }
+
+    private static NeuronVersion version(long position, long timestamp) {
+        return new NeuronVersion(null, 0, position, timestamp, String.valueOf(position), -1, null)
+    }
+
+    private static List<NeuronVersion> sortedVersions(Long... timestamps) {
+        def versions = []
+        timestamps.eachWithIndex { Long timestamp, int position -> versions.add(version(position, timestamp)) }
+        versions.sort(NeuronVersion.CHRONOLOGICAL_ORDER)
+        return versions
+    }
+
+    private Path writeArchive(String name, Long timestamp) {
+        def archivePrefix = backupDir.resolve(name)
+        def headers = [
+                (NeuronMessageHeaders.WORKSPACE): "100",
+                (NeuronMessageHeaders.NEURONIDS): name,
+                (NeuronMessageHeaders.METADATA) : '{"name":"Neuron 1"}'
+        ]
+        if (timestamp != null) {
+            headers.put(NeuronMessageHeaders.TIMESTAMP, String.valueOf(timestamp))
+        }
+        def archiveWriter = new MessageArchiveWriter(archivePrefix)
+        archiveWriter.write(new GenericMessage(headers, null))
+        archiveWriter.close()
+        return archivePrefix
+    }
+
+    def "the version at a time skips the versions without a timestamp"() {
+        given:
+        def versions = sortedVersions(NeuronVersion.NO_TIMESTAMP, NeuronVersion.NO_TIMESTAMP, 100L, 200L, 300L)
+
+        expect:
+        NeuronRecoveryEngine.findVersionAt(versions, 50L) == Optional.empty()
+        NeuronRecoveryEngine.findVersionAt(sortedVersions(NeuronVersion.NO_TIMESTAMP), Long.MAX_VALUE) == Optional.empty()
+        NeuronRecoveryEngine.findVersionAt([], 100L) == Optional.empty()
+    }
+
+    def "the version at a time is the newest one at or before that time"() {
+        given:
+        def versions = sortedVersions(NeuronVersion.NO_TIMESTAMP, 100L, 200L, 300L)
+
+        expect:
+        NeuronRecoveryEngine.findVersionAt(versions, 100L).get().getTimestamp() == 100L
+        NeuronRecoveryEngine.findVersionAt(versions, 250L).get().getTimestamp() == 200L
+        NeuronRecoveryEngine.findVersionAt(versions, 300L).get().getTimestamp() == 300L
+        NeuronRecoveryEngine.findVersionAt(versions, 1000L).get().getTimestamp() == 300L
+        NeuronRecoveryEngine.findVersionAt(versions, 99L) == Optional.empty()
+    }
+
+    def "the latest version is the last one received even if an older backup has a timestamp"() {
+        given:
+        def olderBackup = writeArchive("older", 1000L)
+        def newerBackup = writeArchive("newer", null)
+        def recoveryEngine = new NeuronRecoveryEngine([olderBackup, newerBackup], 2)
+
+        when:
+        def latest = recoveryEngine.findLatest(100L, "Neuron 1")
+
+        then:
+        latest.get().getNeuronIds() == "newer"
+        !latest.get().hasTimestamp()
+    }
+}
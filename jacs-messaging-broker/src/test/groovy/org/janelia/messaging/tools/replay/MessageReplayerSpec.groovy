@@ -0,0 +1,118 @@
+package org.janelia.messaging.tools.replay
+
+import org.janelia.messaging.broker.neuronadapter.NeuronMessageHeaders
+import org.janelia.messaging.core.GenericMessage
+import org.janelia.messaging.core.MessageSender
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+class MessageReplayerSpec extends Specification {
+
+    List<Map<String, Object>> sentHeaders
+    List<Long> sendTimes
+    boolean publishFails
+    ReplayMetrics metrics
+    MessageReplayer replayer
+
+    def setup() {
+        sentHeaders = []
+        sendTimes = []
+        publishFails = false
+        metrics = new ReplayMetrics()
+        MessageSender messageSender = [
+                sendMessageWithConfirmation: { Map<String, Object> messageHeaders, byte[] messageBody ->
+                    sentHeaders.add(messageHeaders)
+                    sendTimes.add(System.nanoTime())
+                    def confirmation = new CompletableFuture<Void>()
+                    if (publishFails) {
+                        confirmation.completeExceptionally(new IOException("Nacked"))
+                    } else {
+                        confirmation.complete(null)
+                    }
+                    return confirmation
+                }
+        ] as MessageSender
+        replayer = new MessageReplayer(messageSender, metrics)
+    }
+
+    private static GenericMessage message(long workspaceId, Long timestamp) {
+        def headers = [(NeuronMessageHeaders.WORKSPACE): String.valueOf(workspaceId)] as Map<String, Object>
+        if (timestamp != null) {
+            headers.put(NeuronMessageHeaders.TIMESTAMP, String.valueOf(timestamp))
+        }
+        return new GenericMessage(headers, null)
+    }
+
+    private long millisBetweenSends(int from, int to) {
+        return TimeUnit.NANOSECONDS.toMillis(sendTimes[to] - sendTimes[from])
+    }
+
+    def "the original mode keeps the gaps between the messages of consecutive replays"() {
+        given:
+        replayer.setMode(ReplayMode.ORIGINAL)
+
+        when:
+        replayer.replay([message(1L, 1000L), message(1L, 1100L)].stream())
+        replayer.replay([message(1L, 1300L)].stream())
+
+        then:
+        sentHeaders.size() == 3
+        millisBetweenSends(0, 1) >= 100
+        millisBetweenSends(0, 2) >= 300
+        millisBetweenSends(0, 2) < 1000
+    }
+
+    def "the speed mode divides the gaps between the messages by the speed"() {
+        given:
+        replayer.setMode(ReplayMode.SPEED).setSpeed(4)
+
+        when:
+        replayer.replay([message(1L, 1000L)].stream())
+        replayer.replay([message(1L, 2000L)].stream())
+
+        then:
+        sentHeaders.size() == 2
+        millisBetweenSends(0, 1) >= 250
+        millisBetweenSends(0, 1) < 1000
+    }
+
+    def "the rate mode ignores the timestamps"() {
+        given:
+        replayer.setMode(ReplayMode.RATE).setRate(20)
+
+        when:
+        replayer.replay([message(1L, 1000L), message(1L, 1000000L), message(1L, null)].stream())
+
+        then:
+        sentHeaders.size() == 3
+        millisBetweenSends(0, 2) >= 100
+        millisBetweenSends(0, 2) < 1000
+    }
+
+    def "only the messages of the selected workspace are replayed"() {
+        given:
+        replayer.setMode(ReplayMode.RATE).setWorkspaceId(2L)
+
+        when:
+        replayer.replay([message(1L, null), message(2L, null), message(3L, null)].stream())
+
+        then:
+        sentHeaders.collect { it.get(NeuronMessageHeaders.WORKSPACE) } == ["2"]
+        metrics.getPublished() == 1
+    }
+
+    def "a message that is not confirmed is counted as failed"() {
+        given:
+        replayer.setMode(ReplayMode.RATE)
+        publishFails = true
+
+        when:
+        replayer.replay([message(1L, null), message(1L, null)].stream())
+
+        then:
+        metrics.getFailed() == 2
+        metrics.getPublished() == 0
+    }
+}
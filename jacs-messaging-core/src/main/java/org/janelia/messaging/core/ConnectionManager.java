@@ -22,6 +22,14 @@ public class ConnectionManager {
         return new MessageConnectionImpl();
     }
 
+    public MessageConnection getConnection(int maxPublisherChannels) {
+        return new MessageConnectionImpl(maxPublisherChannels);
+    }
+
+    public MessageConnection getConnection(int maxPublisherChannels, boolean publisherConfirms) {
+        return new MessageConnectionImpl(maxPublisherChannels, publisherConfirms);
+    }
+
     public MessageConnection getConnection(String host, String user, String password, int threadPoolSize, Consumer<Throwable> connectionErrorHandler) {
         return getConnection(
                 new ConnectionParameters()
@@ -35,11 +43,14 @@ public class ConnectionManager {
     }
 
     public MessageConnection getConnection(ConnectionParameters connectionParameters, Consumer<Throwable> connectionErrorHandler) {
-        LOG.info("Creating connection with max retries {}, pauseBetweenRetries {}, and consumer threads {}",
+        LOG.info("Creating connection with max retries {}, pauseBetweenRetries {}, consumer threads {}, publisher channels {} and publisher confirms {}",
                 connectionParameters.maxRetries,
                 connectionParameters.pauseBetweenRetriesInMillis,
-                connectionParameters.consumerThreads);
-        MessageConnection messageConnection = new RetriedMessageConnectionImpl(getConnection(),
+                connectionParameters.consumerThreads,
+                connectionParameters.publisherChannels,
+                connectionParameters.publisherConfirms);
+        MessageConnection messageConnection = new RetriedMessageConnectionImpl(
+                getConnection(connectionParameters.publisherChannels, connectionParameters.publisherConfirms),
                 connectionParameters.maxRetries,
                 connectionParameters.pauseBetweenRetriesInMillis);
         try {
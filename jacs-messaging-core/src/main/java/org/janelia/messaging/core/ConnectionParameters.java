@@ -7,6 +7,8 @@ public class ConnectionParameters {
     int maxRetries = 1;
     long pauseBetweenRetriesInMillis = 1000;
     int consumerThreads;
+    int publisherChannels = Runtime.getRuntime().availableProcessors();
+    boolean publisherConfirms;
 
     public ConnectionParameters() {
     }
@@ -40,4 +42,14 @@ public class ConnectionParameters {
         this.consumerThreads = consumerThreads;
         return this;
     }
+
+    public ConnectionParameters setPublisherChannels(int publisherChannels) {
+        this.publisherChannels = publisherChannels;
+        return this;
+    }
+
+    public ConnectionParameters setPublisherConfirms(boolean publisherConfirms) {
+        this.publisherConfirms = publisherConfirms;
+        return this;
+    }
 }
@@ -1,6 +1,7 @@
 package org.janelia.messaging.core;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 
 /**
@@ -21,9 +22,48 @@ public interface MessageConnection {
 
     void publish(String exchange, String routingKey, Map<String, Object> headers, byte[] body);
 
+    /**
+     * Publish a message and return a future that completes when the broker confirmed the message. If the connection
+     * does not use publisher confirms the future completes as soon as the message was handed to the client library.
+     * The future completes exceptionally if the message could not be published or if it was rejected by the broker.
+     */
+    default CompletableFuture<Void> publishWithConfirmation(String exchange, String routingKey, Map<String, Object> headers, byte[] body) {
+        CompletableFuture<Void> confirmation = new CompletableFuture<>();
+        try {
+            publish(exchange, routingKey, headers, body);
+            confirmation.complete(null);
+        } catch (Exception e) {
+            confirmation.completeExceptionally(e);
+        }
+        return confirmation;
+    }
+
     String subscribe(String queue, boolean ack, MessageHandler messageHandler);
 
+    /**
+     * Subscribe to a queue.
+     *
+     * @param queue queue name
+     * @param autoAck if false, deliveries are acknowledged once the handler completes them
+     * @param prefetchCount max number of unacknowledged deliveries the server pushes to the consumer - 0 means unlimited
+     * @param ackBatchSize number of completed deliveries acknowledged together with a single multiple ack
+     * @param messageHandler message handler
+     * @return subscription tag
+     */
+    String subscribe(String queue, boolean autoAck, int prefetchCount, int ackBatchSize, MessageHandler messageHandler);
+
     void cancelSubscription(String subscriptionTag);
 
     Stream<GenericMessage> retrieveMessages(String queue, boolean ack);
+
+    /**
+     * Retrieve the messages that are in the queue when the retrieval starts.
+     *
+     * @param queue queue name
+     * @param ack if true the retrieved messages are removed from the queue
+     * @param prefetchCount if greater than 0 and ack is true the messages are streamed by a temporary consumer which
+     *                      keeps at most prefetchCount messages in flight instead of fetching them one at a time
+     * @return the stream of retrieved messages
+     */
+    Stream<GenericMessage> retrieveMessages(String queue, boolean ack, int prefetchCount);
 }
@@ -1,6 +1,8 @@
 package org.janelia.messaging.core;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public interface MessageHandler {
 
@@ -17,4 +19,20 @@ public interface MessageHandler {
 
     void handleMessage(Map<String, Object> messageHeaders, byte[] messageBody);
     void cancelMessage(String routingTag);
+
+    /**
+     * Handle a message received from a subscription that does not use auto acknowledgement. The delivery is
+     * acknowledged when the returned stage completes normally and it is rejected if the stage completes
+     * exceptionally. The default implementation handles the message synchronously.
+     */
+    default CompletionStage<Void> handleMessageAsync(Map<String, Object> messageHeaders, byte[] messageBody) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        try {
+            handleMessage(messageHeaders, messageBody);
+            completion.complete(null);
+        } catch (Exception e) {
+            completion.completeExceptionally(e);
+        }
+        return completion;
+    }
 }
@@ -1,10 +1,16 @@
 package org.janelia.messaging.core;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface MessageSender {
     void connectTo(String exchange, String routingKey);
     void disconnect();
     boolean isConnected();
     void sendMessage(Map<String, Object> messageHeaders, byte[] messageBody);
+
+    /**
+     * Send a message and return a future that completes once the broker has confirmed it.
+     */
+    CompletableFuture<Void> sendMessageWithConfirmation(Map<String, Object> messageHeaders, byte[] messageBody);
 }
@@ -13,11 +13,38 @@ public class AsyncMessageConsumerImpl extends AbstractMessageConsumer implements
     private static final Logger LOG = LoggerFactory.getLogger(AsyncMessageConsumer.class);
 
     private String messageHandlerTag;
+    private int prefetchCount;
+    private int ackBatchSize = 1;
 
     public AsyncMessageConsumerImpl(MessageConnection messageConnection) {
         super(messageConnection);
     }
 
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Set the max number of unacknowledged messages the server pushes to this consumer. It only has an effect
+     * if the consumer does not use auto acknowledgement.
+     */
+    public AsyncMessageConsumerImpl setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = prefetchCount;
+        return this;
+    }
+
+    public int getAckBatchSize() {
+        return ackBatchSize;
+    }
+
+    /**
+     * Set the number of handled messages that are acknowledged together.
+     */
+    public AsyncMessageConsumerImpl setAckBatchSize(int ackBatchSize) {
+        this.ackBatchSize = ackBatchSize;
+        return this;
+    }
+
     @Override
     public void disconnect() {
         messageConnection.cancelSubscription(messageHandlerTag);
@@ -27,8 +54,9 @@ public class AsyncMessageConsumerImpl extends AbstractMessageConsumer implements
 
     public AsyncMessageConsumer subscribe(MessageHandler messageHandler){
         if (messageConnection.isOpen()) {
-            messageHandlerTag = messageConnection.subscribe(getQueue(), isAutoAck(), messageHandler);
-            LOG.info("Connected handler {} to queue {} using autoAck set to {}", messageHandlerTag, getQueue(), isAutoAck());
+            messageHandlerTag = messageConnection.subscribe(getQueue(), isAutoAck(), prefetchCount, ackBatchSize, messageHandler);
+            LOG.info("Connected handler {} to queue {} using autoAck set to {}, prefetch count {} and ack batch size {}",
+                    messageHandlerTag, getQueue(), isAutoAck(), prefetchCount, ackBatchSize);
             return this;
         } else {
             return null;
@@ -19,10 +19,25 @@ public class BulkMessageConsumerImpl extends AbstractMessageConsumer implements
 
     private static final Logger LOG = LoggerFactory.getLogger(BulkMessageConsumerImpl.class);
 
+    private int prefetchCount;
+
     public BulkMessageConsumerImpl(MessageConnection messageConnection) {
         super(messageConnection);
     }
 
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * @param prefetchCount if greater than 0 the messages are streamed using a consumer with this prefetch window
+     *                      instead of being fetched one at a time - this only applies to auto-ack retrievals
+     */
+    public BulkMessageConsumerImpl setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = prefetchCount;
+        return this;
+    }
+
     @Override
     public void disconnect() {
         // do nothing
@@ -30,7 +45,7 @@ public class BulkMessageConsumerImpl extends AbstractMessageConsumer implements
 
     @Override
     public Stream<GenericMessage> retrieveMessages() {
-        return messageConnection.retrieveMessages(getQueue(), isAutoAck());
+        return messageConnection.retrieveMessages(getQueue(), isAutoAck(), prefetchCount);
     }
 
     private Map<String, String> filterHeaders(Map<String, Object> headers, Set<String> requiredHeaders) {
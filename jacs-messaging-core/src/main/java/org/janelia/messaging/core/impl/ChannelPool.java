@@ -0,0 +1,122 @@
+package org.janelia.messaging.core.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of AMQP channels opened on a single connection. Channels are not thread safe for publishing
+ * so each publisher thread leases its own channel for the duration of a publish and returns it afterwards.
+ * New channels are opened lazily up to the configured maximum, after which callers wait for a channel
+ * to be released.
+ */
+class ChannelPool {
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelPool.class);
+
+    interface ChannelInitializer {
+        void initialize(Channel channel) throws IOException;
+    }
+
+    private final Connection connection;
+    private final int maxChannels;
+    private final ChannelInitializer channelInitializer;
+    private final BlockingQueue<Channel> idleChannels;
+    private final AtomicInteger openedChannels;
+
+    ChannelPool(Connection connection, int maxChannels, ChannelInitializer channelInitializer) {
+        this.connection = connection;
+        this.maxChannels = maxChannels > 0 ? maxChannels : 1;
+        this.channelInitializer = channelInitializer;
+        this.idleChannels = new LinkedBlockingQueue<>();
+        this.openedChannels = new AtomicInteger(0);
+    }
+
+    /**
+     * Lease a channel from the pool. The caller must return the channel using {@link #release(Channel)}.
+     */
+    Channel acquire() throws IOException, InterruptedException {
+        for (;;) {
+            Channel channel = idleChannels.poll();
+            if (channel != null) {
+                if (channel.isOpen()) {
+                    return channel;
+                }
+                // the channel was closed by the broker - discard it and try again
+                openedChannels.decrementAndGet();
+                continue;
+            }
+            if (openedChannels.incrementAndGet() <= maxChannels) {
+                try {
+                    return openChannel();
+                } catch (IOException | RuntimeException e) {
+                    openedChannels.decrementAndGet();
+                    throw e;
+                }
+            }
+            openedChannels.decrementAndGet();
+            channel = idleChannels.take();
+            if (channel.isOpen()) {
+                return channel;
+            }
+            openedChannels.decrementAndGet();
+        }
+    }
+
+    /**
+     * Return a leased channel to the pool.
+     */
+    void release(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        if (channel.isOpen()) {
+            idleChannels.offer(channel);
+        } else {
+            openedChannels.decrementAndGet();
+        }
+    }
+
+    /**
+     * Open a channel which does not count against the pool capacity, e.g. for a dedicated consumer.
+     */
+    Channel openDedicatedChannel() throws IOException {
+        Channel channel = connection.createChannel();
+        if (channel == null) {
+            throw new IOException("No channel available on " + connection);
+        }
+        return channel;
+    }
+
+    void close() {
+        List<Channel> channels = new ArrayList<>();
+        idleChannels.drainTo(channels);
+        channels.forEach(channel -> {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (Exception e) {
+                LOG.debug("Error closing pooled channel {}", channel, e);
+            }
+        });
+        openedChannels.set(0);
+    }
+
+    private Channel openChannel() throws IOException {
+        Channel channel = openDedicatedChannel();
+        if (channelInitializer != null) {
+            channelInitializer.initialize(channel);
+        }
+        LOG.debug("Opened pooled channel {} ({} of max {})", channel.getChannelNumber(), openedChannels.get(), maxChannels);
+        return channel;
+    }
+}
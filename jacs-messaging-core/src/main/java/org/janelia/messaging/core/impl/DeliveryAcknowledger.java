@@ -0,0 +1,223 @@
+package org.janelia.messaging.core.impl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.rabbitmq.client.Channel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Acknowledges the deliveries of a manual-ack subscription. Messages may complete out of order so the
+ * acknowledger keeps the delivery tags that are still unsettled in a ring buffer sorted by tag and only acks,
+ * using a single multiple ack, the longest prefix of successfully handled deliveries. A failed delivery is
+ * rejected individually and it is requeued only if the failure was a {@link RetryableStateException}.
+ * The acks and rejections are decided while holding the acknowledger's monitor but they are sent to the channel
+ * after releasing it, one thread at a time and in the order in which they were decided, so the threads completing
+ * deliveries never wait for the channel while holding the monitor.
+ */
+class DeliveryAcknowledger {
+    private static final Logger LOG = LoggerFactory.getLogger(DeliveryAcknowledger.class);
+    private static final int INITIAL_CAPACITY = 64;
+    private static final byte PENDING = 0;
+    private static final byte SUCCEEDED = 1;
+    private static final byte FAILED = 2;
+    private static final byte REQUEUE = 3;
+
+    private static class Settlement {
+        private final long deliveryTag;
+        private final byte state;
+
+        private Settlement(long deliveryTag, byte state) {
+            this.deliveryTag = deliveryTag;
+            this.state = state;
+        }
+    }
+
+    private final Channel channel;
+    private final int ackBatchSize;
+    private long[] deliveryTags;
+    private byte[] states;
+    private int head;
+    private int size;
+    private long lastAckableTag;
+    private long lastAckedTag;
+    private int unackedCount;
+    // acks and rejections that were decided but not sent yet, guarded by the monitor
+    private final ArrayDeque<Settlement> pendingSettlements = new ArrayDeque<>();
+    private final AtomicBoolean sendingSettlements = new AtomicBoolean();
+    private ScheduledFuture<?> flushTask;
+
+    DeliveryAcknowledger(Channel channel, int ackBatchSize) {
+        this.channel = channel;
+        this.ackBatchSize = ackBatchSize > 0 ? ackBatchSize : 1;
+        this.deliveryTags = new long[INITIAL_CAPACITY];
+        this.states = new byte[INITIAL_CAPACITY];
+    }
+
+    void setFlushTask(ScheduledFuture<?> flushTask) {
+        this.flushTask = flushTask;
+    }
+
+    /**
+     * Register a delivery before it is handed to the message handler. Deliveries arrive in increasing tag order.
+     */
+    synchronized void delivered(long deliveryTag) {
+        if (size == deliveryTags.length) {
+            grow();
+        }
+        int tail = index(size);
+        deliveryTags[tail] = deliveryTag;
+        states[tail] = PENDING;
+        size++;
+    }
+
+    /**
+     * Mark a delivery as handled.
+     *
+     * @param deliveryTag delivery tag
+     * @param error null if the message was handled successfully
+     */
+    void completed(long deliveryTag, Throwable error) {
+        synchronized (this) {
+            int pos = search(deliveryTag);
+            if (pos < 0) {
+                LOG.warn("Unknown delivery tag {} on channel {}", deliveryTag, channel.getChannelNumber());
+                return;
+            }
+            if (error == null) {
+                states[pos] = SUCCEEDED;
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                states[pos] = cause instanceof RetryableStateException ? REQUEUE : FAILED;
+                LOG.error("Error handling delivery {} on channel {} - the message will {}be requeued",
+                        deliveryTag, channel.getChannelNumber(), states[pos] == REQUEUE ? "" : "not ", cause);
+            }
+            while (size > 0 && states[head] != PENDING) {
+                long headTag = deliveryTags[head];
+                byte headState = states[head];
+                head = index(1);
+                size--;
+                if (headState == SUCCEEDED) {
+                    lastAckableTag = headTag;
+                    unackedCount++;
+                } else {
+                    pendingSettlements.add(new Settlement(headTag, headState));
+                }
+            }
+            if (unackedCount >= ackBatchSize) {
+                settleAckable();
+            }
+        }
+        sendSettlements();
+    }
+
+    /**
+     * Ack all deliveries that have been handled so far.
+     */
+    void flush() {
+        synchronized (this) {
+            settleAckable();
+        }
+        sendSettlements();
+    }
+
+    void close() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flush();
+    }
+
+    /**
+     * Queue a single multiple ack for the deliveries handled so far. The ack is considered sent from now on,
+     * if sending it fails the channel is broken and the broker requeues the unacked deliveries anyway.
+     */
+    private void settleAckable() {
+        if (lastAckableTag > lastAckedTag) {
+            pendingSettlements.add(new Settlement(lastAckableTag, SUCCEEDED));
+            lastAckedTag = lastAckableTag;
+            unackedCount = 0;
+        }
+    }
+
+    /**
+     * Send the pending settlements unless another thread is already sending them, in which case that thread
+     * also sends the ones queued by this thread.
+     */
+    private void sendSettlements() {
+        while (sendingSettlements.compareAndSet(false, true)) {
+            try {
+                for (Settlement settlement = nextSettlement(); settlement != null; settlement = nextSettlement()) {
+                    send(settlement);
+                }
+            } finally {
+                sendingSettlements.set(false);
+            }
+            synchronized (this) {
+                if (pendingSettlements.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized Settlement nextSettlement() {
+        return pendingSettlements.poll();
+    }
+
+    private void send(Settlement settlement) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (settlement.state == SUCCEEDED) {
+                channel.basicAck(settlement.deliveryTag, true);
+            } else {
+                channel.basicNack(settlement.deliveryTag, false, settlement.state == REQUEUE);
+            }
+        } catch (IOException e) {
+            LOG.error(settlement.state == SUCCEEDED ? "Error acknowledging deliveries up to {} on channel {}" : "Error rejecting delivery {} on channel {}",
+                    settlement.deliveryTag, channel.getChannelNumber(), e);
+        }
+    }
+
+    private int search(long deliveryTag) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midTag = deliveryTags[index(mid)];
+            if (midTag < deliveryTag) {
+                low = mid + 1;
+            } else if (midTag > deliveryTag) {
+                high = mid - 1;
+            } else {
+                return index(mid);
+            }
+        }
+        return -1;
+    }
+
+    private int index(int offset) {
+        return (head + offset) & (deliveryTags.length - 1);
+    }
+
+    private void grow() {
+        int newCapacity = deliveryTags.length << 1;
+        long[] newDeliveryTags = new long[newCapacity];
+        byte[] newStates = new byte[newCapacity];
+        for (int i = 0; i < size; i++) {
+            int pos = index(i);
+            newDeliveryTags[i] = deliveryTags[pos];
+            newStates[i] = states[pos];
+        }
+        deliveryTags = newDeliveryTags;
+        states = newStates;
+        head = 0;
+    }
+}
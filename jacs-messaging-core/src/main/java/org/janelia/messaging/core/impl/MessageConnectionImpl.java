@@ -4,7 +4,12 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -28,15 +33,44 @@ import org.slf4j.LoggerFactory;
  */
 public class MessageConnectionImpl implements MessageConnection {
     private static final Logger LOG = LoggerFactory.getLogger(MessageConnectionImpl.class);
+    private static final long ACK_FLUSH_INTERVAL_IN_MILLIS = 1000L;
 
     private final ConnectionFactory factory;
+    private final int maxPublisherChannels;
+    private final boolean publisherConfirmsEnabled;
+    private final Map<String, Channel> consumerChannels;
+    private final Map<String, DeliveryAcknowledger> consumerAcknowledgers;
+    private final Map<Channel, PublisherConfirms> publisherConfirms;
+    private ScheduledExecutorService ackFlushExecutor;
     Connection connection;
-    Channel channel;
+    Channel channel; // channel used for declaring and binding queues
+    private ChannelPool publisherChannels;
 
     public MessageConnectionImpl() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxPublisherChannels max number of channels that can be used concurrently for publishing messages
+     */
+    public MessageConnectionImpl(int maxPublisherChannels) {
+        this(maxPublisherChannels, false);
+    }
+
+    /**
+     * @param maxPublisherChannels max number of channels that can be used concurrently for publishing messages
+     * @param publisherConfirmsEnabled if true the publisher channels are put in confirm mode and the broker
+     *                                 acknowledges every published message asynchronously
+     */
+    public MessageConnectionImpl(int maxPublisherChannels, boolean publisherConfirmsEnabled) {
         factory = new ConnectionFactory();
         factory.setConnectionTimeout(0);
         connection = null;
+        this.maxPublisherChannels = maxPublisherChannels;
+        this.publisherConfirmsEnabled = publisherConfirmsEnabled;
+        this.consumerChannels = new ConcurrentHashMap<>();
+        this.consumerAcknowledgers = new ConcurrentHashMap<>();
+        this.publisherConfirms = new ConcurrentHashMap<>();
     }
 
     public boolean isOpen() {
@@ -53,6 +87,8 @@ public class MessageConnectionImpl implements MessageConnection {
                     ? factory.newConnection(Executors.newFixedThreadPool(threadPoolSize))
                     : factory.newConnection();
             this.channel = this.connection.createChannel();
+            this.publisherChannels = new ChannelPool(this.connection, maxPublisherChannels,
+                    publisherConfirmsEnabled ? this::enablePublisherConfirms : null);
         } catch (Exception e) {
             LOG.debug("Error connecting to {} as {}", host, username, e);
             throw new RetryableStateException(e);
@@ -61,6 +97,18 @@ public class MessageConnectionImpl implements MessageConnection {
 
     public void closeConnection() {
         if (connection != null) {
+            consumerAcknowledgers.forEach((consumerTag, acknowledger) -> acknowledger.close());
+            consumerAcknowledgers.clear();
+            consumerChannels.forEach((consumerTag, consumerChannel) -> closeChannel(consumerChannel));
+            consumerChannels.clear();
+            if (ackFlushExecutor != null) {
+                ackFlushExecutor.shutdown();
+                ackFlushExecutor = null;
+            }
+            if (publisherChannels != null) {
+                publisherChannels.close();
+                publisherChannels = null;
+            }
             if (channel != null) {
                 try {
                     this.channel.close();
@@ -102,75 +150,228 @@ public class MessageConnectionImpl implements MessageConnection {
 
     @Override
     public void publish(String exchange, String routingKey, Map<String, Object> headers, byte[] body) {
+        publishWithConfirmation(exchange, routingKey, headers, body);
+    }
+
+    @Override
+    public CompletableFuture<Void> publishWithConfirmation(String exchange, String routingKey, Map<String, Object> headers, byte[] body) {
         if (isNotOpen()) {
             throw new IllegalStateException("Connection must be opened before publishing a message to " + exchange + " with " + routingKey);
         }
+        CompletableFuture<Void> confirmation = new CompletableFuture<>();
+        ChannelPool channelPool = publisherChannels;
+        Channel publisherChannel = null;
         try {
-            LOG.debug("Send message {} to exchange {} ({}) with routingKey \"{}\"", headers, exchange, channel.getConnection(), routingKey);
-            channel.basicPublish(exchange, routingKey,
-                    new AMQP.BasicProperties.Builder()
-                            .headers(headers)
-                            .build(), body);
+            publisherChannel = channelPool.acquire();
+            LOG.debug("Send message {} to exchange {} ({}) with routingKey \"{}\"", headers, exchange, publisherChannel.getConnection(), routingKey);
+            PublisherConfirms channelConfirms = publisherConfirms.get(publisherChannel);
+            long deliveryTag = 0;
+            if (channelConfirms != null) {
+                // register the confirmation before publishing because the ack may arrive before basicPublish returns
+                deliveryTag = publisherChannel.getNextPublishSeqNo();
+                channelConfirms.register(deliveryTag, confirmation);
+            }
+            try {
+                publisherChannel.basicPublish(exchange, routingKey,
+                        new AMQP.BasicProperties.Builder()
+                                .headers(headers)
+                                .build(), body);
+            } catch (IOException | RuntimeException e) {
+                if (channelConfirms != null) {
+                    channelConfirms.cancel(deliveryTag, e);
+                }
+                throw e;
+            }
+            if (channelConfirms == null) {
+                confirmation.complete(null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while waiting for a channel to publish message {} to the exchange {} with routingKey \"{}\"", headers, exchange, routingKey, e);
+            confirmation.completeExceptionally(e);
         } catch (Exception e) {
             LOG.error("Error publishing message {} to the exchange {} with routingKey \"{}\"", headers, exchange, routingKey, e);
+            confirmation.completeExceptionally(e);
+        } finally {
+            channelPool.release(publisherChannel);
         }
+        return confirmation;
+    }
+
+    private void enablePublisherConfirms(Channel publisherChannel) throws IOException {
+        PublisherConfirms channelConfirms = new PublisherConfirms();
+        publisherChannel.confirmSelect();
+        publisherChannel.addConfirmListener(channelConfirms);
+        publisherChannel.addShutdownListener(cause -> {
+            publisherConfirms.remove(publisherChannel);
+            channelConfirms.failAll(cause);
+        });
+        publisherConfirms.put(publisherChannel, channelConfirms);
     }
 
     @Override
     public String subscribe(String queue, boolean ack, MessageHandler messageHandler) {
+        return subscribe(queue, ack, 0, 1, messageHandler);
+    }
+
+    @Override
+    public String subscribe(String queue, boolean autoAck, int prefetchCount, int ackBatchSize, MessageHandler messageHandler) {
         if (isNotOpen()) {
             throw new IllegalStateException("Connection must be opened before subscribing to " + queue);
         }
+        Channel consumerChannel = null;
         try {
-            LOG.info("Connect to queue {} using autoAck set to {}", queue, ack);
-            return channel.basicConsume(queue, ack,
-                    (consumerTag, delivery) -> messageHandler.handleMessage(delivery.getProperties().getHeaders(), delivery.getBody()),
-                    (consumerTag) -> messageHandler.cancelMessage(consumerTag));
+            LOG.info("Connect to queue {} using autoAck set to {}, prefetch count {} and ack batch size {}",
+                    queue, autoAck, prefetchCount, ackBatchSize);
+            // each subscription gets its own channel so that deliveries do not contend with publishers
+            consumerChannel = publisherChannels.openDedicatedChannel();
+            if (prefetchCount > 0) {
+                consumerChannel.basicQos(prefetchCount);
+            }
+            String consumerTag;
+            if (autoAck) {
+                consumerTag = consumerChannel.basicConsume(queue, true,
+                        (tag, delivery) -> messageHandler.handleMessage(delivery.getProperties().getHeaders(), delivery.getBody()),
+                        (tag) -> messageHandler.cancelMessage(tag));
+            } else {
+                // never wait for more completed deliveries than the server is allowed to push
+                int effectiveAckBatchSize = prefetchCount > 0 ? Math.max(1, Math.min(ackBatchSize, prefetchCount / 2)) : ackBatchSize;
+                DeliveryAcknowledger acknowledger = new DeliveryAcknowledger(consumerChannel, effectiveAckBatchSize);
+                consumerTag = consumerChannel.basicConsume(queue, false,
+                        (tag, delivery) -> {
+                            long deliveryTag = delivery.getEnvelope().getDeliveryTag();
+                            acknowledger.delivered(deliveryTag);
+                            CompletionStage<Void> completion;
+                            try {
+                                completion = messageHandler.handleMessageAsync(delivery.getProperties().getHeaders(), delivery.getBody());
+                            } catch (Exception e) {
+                                acknowledger.completed(deliveryTag, e);
+                                return;
+                            }
+                            completion.whenComplete((result, error) -> acknowledger.completed(deliveryTag, error));
+                        },
+                        (tag) -> messageHandler.cancelMessage(tag));
+                acknowledger.setFlushTask(getAckFlushExecutor().scheduleWithFixedDelay(acknowledger::flush,
+                        ACK_FLUSH_INTERVAL_IN_MILLIS, ACK_FLUSH_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS));
+                consumerAcknowledgers.put(consumerTag, acknowledger);
+            }
+            consumerChannels.put(consumerTag, consumerChannel);
+            return consumerTag;
         } catch (IOException e) {
+            closeChannel(consumerChannel);
             throw new IllegalStateException(e);
         }
     }
 
+    private synchronized ScheduledExecutorService getAckFlushExecutor() {
+        if (ackFlushExecutor == null) {
+            ackFlushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread flushThread = new Thread(runnable, "ack-flush");
+                flushThread.setDaemon(true);
+                return flushThread;
+            });
+        }
+        return ackFlushExecutor;
+    }
+
     @Override
     public void cancelSubscription(String subscriptionTag) {
         if (isNotOpen()) {
             throw new IllegalStateException("Connection must be opened for canceling subscription " + subscriptionTag);
         }
         if (StringUtils.isNotBlank(subscriptionTag)) {
+            Channel consumerChannel = consumerChannels.remove(subscriptionTag);
+            DeliveryAcknowledger acknowledger = consumerAcknowledgers.remove(subscriptionTag);
+            if (acknowledger != null) {
+                acknowledger.close();
+            }
             try {
                 LOG.info("Cancel subscription {}", subscriptionTag);
-                channel.basicCancel(subscriptionTag);
+                if (consumerChannel != null) {
+                    consumerChannel.basicCancel(subscriptionTag);
+                } else {
+                    channel.basicCancel(subscriptionTag);
+                }
             } catch (IOException e) {
                 throw new IllegalStateException(e);
+            } finally {
+                closeChannel(consumerChannel);
             }
         }
     }
 
     @Override
     public Stream<GenericMessage> retrieveMessages(String queue, boolean ack) {
+        return retrieveMessages(queue, ack, 0);
+    }
+
+    @Override
+    public Stream<GenericMessage> retrieveMessages(String queue, boolean ack, int prefetchCount) {
+        if (!ack || prefetchCount <= 0) {
+            // without auto-ack the messages must stay unacknowledged so they can only be peeked one at a time
+            return retrieveMessagesOneByOne(queue, ack);
+        }
+        if (isNotOpen()) {
+            throw new IllegalStateException("Connection must be opened for retrieving messages from " + queue);
+        }
+        Channel retrieveChannel;
+        PrefetchingMessageSpliterator messageSupplier;
+        try {
+            retrieveChannel = publisherChannels.openDedicatedChannel();
+        } catch (IOException e) {
+            LOG.error("Error opening channel for retrieving messages from {}", queue, e);
+            throw new IllegalStateException(e);
+        }
+        try {
+            messageSupplier = new PrefetchingMessageSpliterator(retrieveChannel, queue, prefetchCount, this::getMessageHeadersFromResponse);
+        } catch (IOException e) {
+            LOG.error("Error starting the retrieval of messages from {}", queue, e);
+            closeChannel(retrieveChannel);
+            throw new IllegalStateException(e);
+        }
+        return StreamSupport.stream(messageSupplier, false)
+                .onClose(messageSupplier::finish);
+    }
+
+    private Stream<GenericMessage> retrieveMessagesOneByOne(String queue, boolean ack) {
         if (isNotOpen()) {
             throw new IllegalStateException("Connection must be opened for retrieving messages from " + queue);
         }
+        Channel retrieveChannel;
+        try {
+            // use a separate channel so that a long running retrieval does not block other operations
+            retrieveChannel = publisherChannels.openDedicatedChannel();
+        } catch (IOException e) {
+            LOG.error("Error opening channel for retrieving messages from {}", queue, e);
+            throw new IllegalStateException(e);
+        }
         Spliterator<GenericMessage> messageSupplier = new Spliterator<GenericMessage>() {
             GetResponse lastResponse = null;
             @Override
             public boolean tryAdvance(Consumer<? super GenericMessage> action) {
                 try {
-                    if (isNotOpen()) {
+                    if (isNotOpen() || !retrieveChannel.isOpen()) {
                         LOG.info("The message channel was closed");
                         return false;
                     }
-                    lastResponse = channel.basicGet(queue, ack);
+                    lastResponse = retrieveChannel.basicGet(queue, ack);
                     if (lastResponse == null) {
+                        closeChannel(retrieveChannel);
                         return false;
                     }
                     GenericMessage message = new GenericMessage(
                             getMessageHeadersFromResponse(lastResponse.getProps().getHeaders()),
                             lastResponse.getBody());
                     action.accept(message);
-                    return lastResponse.getMessageCount() > 0;
+                    if (lastResponse.getMessageCount() > 0) {
+                        return true;
+                    } else {
+                        closeChannel(retrieveChannel);
+                        return false;
+                    }
                 } catch (IOException e) {
                     LOG.error("Error retrieving message from {}", queue, e);
+                    closeChannel(retrieveChannel);
                     return false;
                 }
             }
@@ -194,7 +395,18 @@ public class MessageConnectionImpl implements MessageConnection {
                 return ORDERED;
             }
         };
-        return StreamSupport.stream(messageSupplier, false);
+        return StreamSupport.stream(messageSupplier, false)
+                .onClose(() -> closeChannel(retrieveChannel));
+    }
+
+    private void closeChannel(Channel channelToClose) {
+        if (channelToClose != null && channelToClose.isOpen()) {
+            try {
+                channelToClose.close();
+            } catch (Exception e) {
+                LOG.debug("Error closing channel {}", channelToClose, e);
+            }
+        }
     }
 
     private Map<String, Object> getMessageHeadersFromResponse(Map<String, Object> responseHeaders) {
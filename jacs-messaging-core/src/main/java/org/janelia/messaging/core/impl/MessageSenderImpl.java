@@ -1,6 +1,7 @@
 package org.janelia.messaging.core.impl;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import com.google.common.base.Preconditions;
 
@@ -56,4 +57,18 @@ public class MessageSenderImpl implements MessageSender {
         }
     }
 
+    @Override
+    public CompletableFuture<Void> sendMessageWithConfirmation(Map<String, Object> messageHeaders, byte[] messageBody) {
+        Preconditions.checkArgument(messageConnection.isOpen(),
+                "The connection must be open before trying to send a message");
+        try {
+            return messageConnection.publishWithConfirmation(exchange, routingKey, messageHeaders, messageBody);
+        } catch (Exception e) {
+            LOG.error("Error publishing message {} to the exchange {} with routingKey {}", messageHeaders, exchange, routingKey, e);
+            CompletableFuture<Void> confirmation = new CompletableFuture<>();
+            confirmation.completeExceptionally(e);
+            return confirmation;
+        }
+    }
+
 }
@@ -0,0 +1,170 @@
+package org.janelia.messaging.core.impl;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import org.janelia.messaging.core.GenericMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains a queue using a temporary consumer with a bounded prefetch window instead of one basicGet round trip
+ * per message. Only the messages that were in the queue when the retrieval started are consumed. Each message
+ * is acknowledged, with a multiple ack, after it was handed to the stream so the messages are removed from
+ * the queue as they are retrieved, the same as with an auto-ack basicGet.
+ */
+class PrefetchingMessageSpliterator implements Spliterator<GenericMessage> {
+    private static final Logger LOG = LoggerFactory.getLogger(PrefetchingMessageSpliterator.class);
+    private static final long DELIVERY_TIMEOUT_IN_MILLIS = 30000L;
+
+    private static class Delivery {
+        private final long deliveryTag;
+        private final GenericMessage message;
+
+        private Delivery(long deliveryTag, GenericMessage message) {
+            this.deliveryTag = deliveryTag;
+            this.message = message;
+        }
+    }
+
+    // marks the end of the deliveries when the consumer is cancelled or the channel is shut down
+    private static final Delivery END_OF_DELIVERIES = new Delivery(-1, null);
+
+    private final Channel channel;
+    private final String queue;
+    private final int ackBatchSize;
+    private final long messagesToRetrieve;
+    private final BlockingQueue<Delivery> deliveries;
+    private String consumerTag;
+    private long retrievedMessages;
+    private long lastDeliveryTag;
+    private int unackedMessages;
+    private boolean done;
+
+    PrefetchingMessageSpliterator(Channel channel, String queue, int prefetchCount,
+                                  Function<Map<String, Object>, Map<String, Object>> headersMapper) throws IOException {
+        this.channel = channel;
+        this.queue = queue;
+        this.ackBatchSize = Math.max(1, prefetchCount / 2);
+        this.deliveries = new LinkedBlockingQueue<>();
+        this.messagesToRetrieve = channel.messageCount(queue);
+        LOG.info("Retrieve {} messages from {} with a prefetch count of {}", messagesToRetrieve, queue, prefetchCount);
+        if (messagesToRetrieve > 0) {
+            channel.basicQos(prefetchCount);
+            consumerTag = channel.basicConsume(queue, false, new DefaultConsumer(channel) {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                    deliveries.offer(new Delivery(envelope.getDeliveryTag(), new GenericMessage(headersMapper.apply(properties.getHeaders()), body)));
+                }
+
+                @Override
+                public void handleCancel(String consumerTag) {
+                    deliveries.offer(END_OF_DELIVERIES);
+                }
+
+                @Override
+                public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                    deliveries.offer(END_OF_DELIVERIES);
+                }
+            });
+        } else {
+            finish();
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super GenericMessage> action) {
+        if (done) {
+            return false;
+        }
+        if (retrievedMessages >= messagesToRetrieve) {
+            finish();
+            return false;
+        }
+        Delivery delivery;
+        try {
+            delivery = deliveries.poll(DELIVERY_TIMEOUT_IN_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            delivery = null;
+        }
+        if (delivery == null || delivery == END_OF_DELIVERIES) {
+            LOG.info("Stopped retrieving messages from {} after {} out of {} messages", queue, retrievedMessages, messagesToRetrieve);
+            finish();
+            return false;
+        }
+        action.accept(delivery.message);
+        retrievedMessages++;
+        lastDeliveryTag = delivery.deliveryTag;
+        if (++unackedMessages >= ackBatchSize) {
+            ack();
+        }
+        return true;
+    }
+
+    @Override
+    public Spliterator<GenericMessage> trySplit() {
+        return null; // not supported
+    }
+
+    @Override
+    public long estimateSize() {
+        return messagesToRetrieve - retrievedMessages;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED;
+    }
+
+    /**
+     * Ack what was retrieved so far, stop the consumer and close the channel. Prefetched messages which were not
+     * retrieved are requeued by the server when the channel is closed.
+     */
+    void finish() {
+        if (done) {
+            return;
+        }
+        done = true;
+        ack();
+        if (consumerTag != null && channel.isOpen()) {
+            try {
+                channel.basicCancel(consumerTag);
+            } catch (IOException e) {
+                LOG.debug("Error cancelling consumer {} for {}", consumerTag, queue, e);
+            }
+        }
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (Exception e) {
+            LOG.debug("Error closing channel used for retrieving messages from {}", queue, e);
+        }
+        LOG.info("Retrieved {} messages from {}", retrievedMessages, queue);
+    }
+
+    private void ack() {
+        if (unackedMessages == 0 || !channel.isOpen()) {
+            return;
+        }
+        try {
+            channel.basicAck(lastDeliveryTag, true);
+            unackedMessages = 0;
+        } catch (IOException e) {
+            LOG.error("Error acknowledging messages up to {} from {}", lastDeliveryTag, queue, e);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.janelia.messaging.core.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.rabbitmq.client.ConfirmListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the outstanding publisher confirms for a channel in confirm mode. Delivery tags on a channel are
+ * monotonically increasing so they are kept in a growable ring buffer of primitive longs which is sorted by
+ * construction. A single ack is located with a binary search; a multiple ack completes the whole prefix up to
+ * the acknowledged tag.
+ */
+class PublisherConfirms implements ConfirmListener {
+    private static final Logger LOG = LoggerFactory.getLogger(PublisherConfirms.class);
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] deliveryTags;
+    private CompletableFuture<Void>[] confirmations;
+    private int head;
+    private int size;
+
+    PublisherConfirms() {
+        deliveryTags = new long[INITIAL_CAPACITY];
+        confirmations = newConfirmationsArray(INITIAL_CAPACITY);
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Register the confirmation for the given delivery tag. Tags must be registered in increasing order.
+     */
+    synchronized void register(long deliveryTag, CompletableFuture<Void> confirmation) {
+        if (size > 0 && deliveryTags[index(size - 1)] >= deliveryTag) {
+            throw new IllegalArgumentException("Delivery tag " + deliveryTag + " is not greater than the last registered tag " + deliveryTags[index(size - 1)]);
+        }
+        if (size == deliveryTags.length) {
+            grow();
+        }
+        int tail = index(size);
+        deliveryTags[tail] = deliveryTag;
+        confirmations[tail] = confirmation;
+        size++;
+    }
+
+    synchronized int getOutstandingConfirms() {
+        int outstanding = 0;
+        for (int i = 0; i < size; i++) {
+            if (confirmations[index(i)] != null) {
+                outstanding++;
+            }
+        }
+        return outstanding;
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, null);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        LOG.warn("Broker rejected message(s) with delivery tag {} (multiple: {})", deliveryTag, multiple);
+        confirm(deliveryTag, multiple, new IOException("Message " + deliveryTag + " was rejected by the broker"));
+    }
+
+    /**
+     * Fail the confirmation for a message that could not be published.
+     */
+    void cancel(long deliveryTag, Throwable cause) {
+        confirm(deliveryTag, false, cause);
+    }
+
+    /**
+     * Fail all outstanding confirmations, e.g. when the channel was shut down.
+     */
+    void failAll(Throwable cause) {
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < size; i++) {
+                int pos = index(i);
+                if (confirmations[pos] != null) {
+                    failed.add(confirmations[pos]);
+                    confirmations[pos] = null;
+                }
+            }
+            head = 0;
+            size = 0;
+        }
+        failed.forEach(confirmation -> confirmation.completeExceptionally(cause));
+    }
+
+    private void confirm(long deliveryTag, boolean multiple, Throwable error) {
+        List<CompletableFuture<Void>> completed = new ArrayList<>();
+        synchronized (this) {
+            if (multiple) {
+                while (size > 0 && deliveryTags[head] <= deliveryTag) {
+                    if (confirmations[head] != null) {
+                        completed.add(confirmations[head]);
+                    }
+                    removeHead();
+                }
+            } else {
+                int pos = search(deliveryTag);
+                if (pos >= 0 && confirmations[pos] != null) {
+                    completed.add(confirmations[pos]);
+                    confirmations[pos] = null;
+                }
+                // discard the tags that have already been confirmed
+                while (size > 0 && confirmations[head] == null) {
+                    removeHead();
+                }
+            }
+        }
+        // complete the futures outside the lock since they may trigger arbitrary callbacks
+        if (error == null) {
+            completed.forEach(confirmation -> confirmation.complete(null));
+        } else {
+            completed.forEach(confirmation -> confirmation.completeExceptionally(error));
+        }
+    }
+
+    private int search(long deliveryTag) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midTag = deliveryTags[index(mid)];
+            if (midTag < deliveryTag) {
+                low = mid + 1;
+            } else if (midTag > deliveryTag) {
+                high = mid - 1;
+            } else {
+                return index(mid);
+            }
+        }
+        return -1;
+    }
+
+    private void removeHead() {
+        confirmations[head] = null;
+        head = index(1);
+        size--;
+    }
+
+    private int index(int offset) {
+        return (head + offset) & (deliveryTags.length - 1);
+    }
+
+    private void grow() {
+        int newCapacity = deliveryTags.length << 1;
+        long[] newDeliveryTags = new long[newCapacity];
+        CompletableFuture<Void>[] newConfirmations = newConfirmationsArray(newCapacity);
+        for (int i = 0; i < size; i++) {
+            int pos = index(i);
+            newDeliveryTags[i] = deliveryTags[pos];
+            newConfirmations[i] = confirmations[pos];
+        }
+        deliveryTags = newDeliveryTags;
+        confirmations = newConfirmations;
+        head = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<Void>[] newConfirmationsArray(int capacity) {
+        return (CompletableFuture<Void>[]) new CompletableFuture<?>[capacity];
+    }
+}
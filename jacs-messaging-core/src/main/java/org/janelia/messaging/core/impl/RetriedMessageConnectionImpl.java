@@ -1,6 +1,7 @@
 package org.janelia.messaging.core.impl;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 
 import org.janelia.messaging.core.GenericMessage;
@@ -71,11 +72,21 @@ public class RetriedMessageConnectionImpl implements MessageConnection {
         proxy.publish(exchange, routingKey, headers, body);
     }
 
+    @Override
+    public CompletableFuture<Void> publishWithConfirmation(String exchange, String routingKey, Map<String, Object> headers, byte[] body) {
+        return proxy.publishWithConfirmation(exchange, routingKey, headers, body);
+    }
+
     @Override
     public String subscribe(String queue, boolean ack, MessageHandler messageHandler) {
         return proxy.subscribe(queue, ack, messageHandler);
     }
 
+    @Override
+    public String subscribe(String queue, boolean autoAck, int prefetchCount, int ackBatchSize, MessageHandler messageHandler) {
+        return proxy.subscribe(queue, autoAck, prefetchCount, ackBatchSize, messageHandler);
+    }
+
     @Override
     public void cancelSubscription(String subscriptionTag) {
         proxy.cancelSubscription(subscriptionTag);
@@ -85,4 +96,9 @@ public class RetriedMessageConnectionImpl implements MessageConnection {
     public Stream<GenericMessage> retrieveMessages(String queue, boolean ack) {
         return proxy.retrieveMessages(queue, ack);
     }
+
+    @Override
+    public Stream<GenericMessage> retrieveMessages(String queue, boolean ack, int prefetchCount) {
+        return proxy.retrieveMessages(queue, ack, prefetchCount);
+    }
 }
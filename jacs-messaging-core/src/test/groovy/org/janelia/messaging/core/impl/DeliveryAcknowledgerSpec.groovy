@@ -0,0 +1,106 @@
+package org.janelia.messaging.core.impl
+
+import com.rabbitmq.client.Channel
+import spock.lang.Specification
+
+import java.util.concurrent.CompletionException
+
+class DeliveryAcknowledgerSpec extends Specification {
+
+    List<String> settlements
+    boolean settledWhileLocked
+    DeliveryAcknowledger acknowledger
+
+    private DeliveryAcknowledger createAcknowledger(int ackBatchSize) {
+        settlements = []
+        settledWhileLocked = false
+        Channel channel = [
+                getChannelNumber: { -> 1 },
+                isOpen          : { -> true },
+                basicAck        : { long deliveryTag, boolean multiple ->
+                    settledWhileLocked |= Thread.holdsLock(acknowledger)
+                    settlements.add("ack " + deliveryTag + (multiple ? " multiple" : ""))
+                },
+                basicNack       : { long deliveryTag, boolean multiple, boolean requeue ->
+                    settledWhileLocked |= Thread.holdsLock(acknowledger)
+                    settlements.add((requeue ? "requeue " : "reject ") + deliveryTag)
+                }
+        ] as Channel
+        acknowledger = new DeliveryAcknowledger(channel, ackBatchSize)
+        return acknowledger
+    }
+
+    def "deliveries completed out of order are acked once all the previous ones completed"() {
+        given:
+        createAcknowledger(1)
+        (1L..3L).each { acknowledger.delivered(it) }
+
+        when:
+        acknowledger.completed(2L, null)
+
+        then:
+        settlements.isEmpty()
+
+        when:
+        acknowledger.completed(1L, null)
+        acknowledger.completed(3L, null)
+
+        then:
+        settlements == ["ack 2 multiple", "ack 3 multiple"]
+        !settledWhileLocked
+    }
+
+    def "the acks are batched until the batch is full or the acknowledger is flushed"() {
+        given:
+        createAcknowledger(3)
+        (1L..5L).each { acknowledger.delivered(it) }
+
+        when:
+        (1L..4L).each { acknowledger.completed(it, null) }
+
+        then:
+        settlements == ["ack 3 multiple"]
+
+        when:
+        acknowledger.flush()
+        acknowledger.flush()
+
+        then:
+        settlements == ["ack 3 multiple", "ack 4 multiple"]
+    }
+
+    def "a retryable failure is requeued and any other failure is rejected"() {
+        given:
+        createAcknowledger(1)
+        (1L..3L).each { acknowledger.delivered(it) }
+
+        when:
+        acknowledger.completed(3L, null)
+        acknowledger.completed(2L, new IllegalArgumentException("Invalid message"))
+        acknowledger.completed(1L, new CompletionException(new RetryableStateException(new IOException("Server unavailable"))))
+
+        then:
+        settlements == ["requeue 1", "reject 2", "ack 3 multiple"]
+        !settledWhileLocked
+    }
+
+    def "the ring buffer grows while it wraps around"() {
+        given:
+        createAcknowledger(1)
+        (1L..50L).each { acknowledger.delivered(it) }
+        (1L..40L).each { acknowledger.completed(it, null) }
+        settlements.clear()
+
+        when: "the tags wrap around the end of the buffer before it grows"
+        (51L..200L).each { acknowledger.delivered(it) }
+        def completionOrder = (41L..200L).toList()
+        Collections.shuffle(completionOrder, new Random(7))
+        completionOrder.each { acknowledger.completed(it, it % 50 == 0 ? new IllegalStateException("Failed") : null) }
+
+        then:
+        settlements.findAll { it.startsWith("reject") } as Set == ["reject 50", "reject 100", "reject 150", "reject 200"] as Set
+        def ackedTags = settlements.findAll { it.startsWith("ack") }.collect { Long.parseLong(it.split(" ")[1]) }
+        ackedTags == ackedTags.sort(false)
+        ackedTags.last() == 199L
+    }
+}